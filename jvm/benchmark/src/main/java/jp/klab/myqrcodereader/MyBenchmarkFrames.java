@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Random;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Synthesizes a corpus of NV21 preview frames for the benchmarks: a code
+ * printed on a slightly noisy background inside the finder area (hit), a
+ * small QR code off the centre of a wide finder area (small hit), a textured
+ * scene without any code (miss), and a flat grey frame (blank).
+ * Frames of the same kind differ in noise and code position so that a
+ * benchmark cycling through them does not decode one cached image.
+ */
+final class MyBenchmarkFrames {
+
+    static final int VARIANTS = 8;
+
+    private static final int PAPER = 210;
+    private static final int INK = 40;
+    private static final int NOISE = 16;
+
+    final int width;
+    final int height;
+    // ファインダ矩形相当 (アプリの 320x200dip と同じ 8:5) をフレーム中央に配置
+    final int cropLeft;
+    final int cropTop;
+    final int cropWidth;
+    final int cropHeight;
+
+    MyBenchmarkFrames(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int w = width * 2 / 3;
+        int h = w * 5 / 8;
+        if (h > height) {
+            h = height;
+            w = h * 8 / 5;
+        }
+        cropWidth = w;
+        cropHeight = h;
+        cropLeft = (width - w) / 2;
+        cropTop = (height - h) / 2;
+    }
+
+    /**
+     * @param kind one of "qr", "qrsmall", "ean13", "code128", "miss" or
+     *            "blank"
+     */
+    byte[][] build(String kind) throws WriterException {
+        Random random = new Random(kind.hashCode() * 31L + width);
+        BitMatrix code = null;
+        boolean small = "qrsmall".equals(kind);
+        if (small) {
+            code = new MultiFormatWriter().encode("http://www.klab.com/jp/", BarcodeFormat.QR_CODE,
+                    cropHeight / 4, cropHeight / 4);
+        } else if ("qr".equals(kind)) {
+            code = new MultiFormatWriter().encode("http://www.klab.com/jp/", BarcodeFormat.QR_CODE,
+                    cropHeight * 3 / 4, cropHeight * 3 / 4);
+        } else if ("ean13".equals(kind)) {
+            code = new MultiFormatWriter().encode("4901234567894", BarcodeFormat.EAN_13,
+                    cropWidth * 3 / 4, cropHeight / 2);
+        } else if ("code128".equals(kind)) {
+            code = new MultiFormatWriter().encode("MYQR-0123456789", BarcodeFormat.CODE_128,
+                    cropWidth * 3 / 4, cropHeight / 2);
+        } else if (!"miss".equals(kind) && !"blank".equals(kind)) {
+            throw new IllegalArgumentException(kind);
+        }
+        byte[][] frames = new byte[VARIANTS][];
+        for (int v = 0; v < VARIANTS; v++) {
+            byte[] frame = new byte[width * height * 3 / 2];
+            if ("blank".equals(kind)) {
+                fill(frame, 128, 0, random);
+            } else {
+                fill(frame, PAPER, NOISE, random);
+            }
+            if ("miss".equals(kind)) {
+                drawClutter(frame, random);
+            }
+            if (code != null) {
+                int x = cropLeft + (cropWidth - code.getWidth()) / 2 + random.nextInt(9) - 4;
+                int y = cropTop + (cropHeight - code.getHeight()) / 2 + random.nextInt(9) - 4;
+                if (small) {
+                    // ファインダ左上寄り
+                    x -= cropWidth / 4;
+                    y -= cropHeight / 5;
+                }
+                draw(frame, code, x, y, random);
+            }
+            frames[v] = frame;
+        }
+        return frames;
+    }
+
+    private void fill(byte[] frame, int level, int noise, Random random) {
+        int ySize = width * height;
+        for (int i = 0; i < ySize; i++) {
+            frame[i] = (byte) (noise == 0 ? level : level - noise / 2 + random.nextInt(noise));
+        }
+        for (int i = ySize; i < frame.length; i++) {
+            frame[i] = (byte) 128;
+        }
+    }
+
+    // コードを含まない文字や罫線状の模様
+    private void drawClutter(byte[] frame, Random random) {
+        for (int n = 0; n < 60; n++) {
+            int w = 2 + random.nextInt(cropWidth / 6);
+            int h = 2 + random.nextInt(cropHeight / 6);
+            int x0 = cropLeft + random.nextInt(cropWidth - w);
+            int y0 = cropTop + random.nextInt(cropHeight - h);
+            int level = INK + random.nextInt(80);
+            for (int y = y0; y < y0 + h; y++) {
+                for (int x = x0; x < x0 + w; x++) {
+                    frame[y * width + x] = (byte) level;
+                }
+            }
+        }
+    }
+
+    private void draw(byte[] frame, BitMatrix code, int left, int top, Random random) {
+        for (int y = 0; y < code.getHeight(); y++) {
+            int fy = top + y;
+            if (fy < 0 || fy >= height) {
+                continue;
+            }
+            for (int x = 0; x < code.getWidth(); x++) {
+                int fx = left + x;
+                if (fx >= 0 && fx < width && code.get(x, y)) {
+                    frame[fy * width + fx] = (byte) (INK + random.nextInt(NOISE));
+                }
+            }
+        }
+    }
+}
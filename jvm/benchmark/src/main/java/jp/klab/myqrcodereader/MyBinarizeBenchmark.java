@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * Measures the luminance and binarization stage alone, per frame: building
+ * the luminance source for the finder area, the black matrix used by the 2D
+ * readers and the black rows sampled by the 1D readers. "zxing" builds a
+ * PlanarYUVLuminanceSource and HybridBinarizer per frame as the app used to;
+ * "reusable" re-targets one MyYUVLuminanceSource and MyReusableBinarizer,
+ * "preview" one MyYUVLuminanceSource and MyPreviewBinarizer.
+ * Run with "-prof gc": gc.alloc.rate.norm is the garbage left per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyBinarizeBenchmark {
+
+    // 1D リーダーが走査する行数 (MultiFormatOneDReader の非 TRY_HARDER 時と同程度)
+    private static final int ROWS = 15;
+
+    @Param({ "320x240", "640x480", "1280x720" })
+    public String resolution;
+
+    @Param({ "zxing", "reusable", "preview" })
+    public String pipeline;
+
+    private MyBenchmarkFrames corpus;
+    private byte[][] frames;
+    private MyYUVLuminanceSource source;
+    private MyReusableBinarizer binarizer;
+    private MyPreviewBinarizer previewBinarizer;
+    private BitArray row;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws WriterException {
+        int x = resolution.indexOf('x');
+        corpus = new MyBenchmarkFrames(Integer.parseInt(resolution.substring(0, x)),
+                Integer.parseInt(resolution.substring(x + 1)));
+        frames = corpus.build("qr");
+        source = new MyYUVLuminanceSource(corpus.cropWidth, corpus.cropHeight);
+        binarizer = new MyReusableBinarizer(source);
+        previewBinarizer = new MyPreviewBinarizer(source);
+        row = new BitArray(corpus.cropWidth);
+    }
+
+    private Binarizer nextFrame() {
+        byte[] data = frames[next++ % MyBenchmarkFrames.VARIANTS];
+        if ("zxing".equals(pipeline)) {
+            return new HybridBinarizer(new PlanarYUVLuminanceSource(data, corpus.width,
+                    corpus.height, corpus.cropLeft, corpus.cropTop, corpus.cropWidth,
+                    corpus.cropHeight, false));
+        }
+        source.setFrame(data, corpus.width, corpus.height, corpus.cropLeft, corpus.cropTop);
+        if ("preview".equals(pipeline)) {
+            previewBinarizer.invalidate();
+            return previewBinarizer;
+        }
+        binarizer.invalidate();
+        return binarizer;
+    }
+
+    @Benchmark
+    public Object blackMatrix() throws NotFoundException {
+        return nextFrame().getBlackMatrix();
+    }
+
+    @Benchmark
+    public void blackRows(Blackhole bh) throws NotFoundException {
+        Binarizer b = nextFrame();
+        int height = b.getHeight();
+        for (int i = 0; i < ROWS; i++) {
+            row = b.getBlackRow(height * (i + 1) / (ROWS + 1), row);
+            bh.consume(row);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.WriterException;
+
+/**
+ * Times one pass of the app's decode path over a preview frame: the
+ * PlanarYUVLuminanceSource crop of the finder area, HybridBinarizer and
+ * MultiFormatReader.decodeWithState, as MyDecodeHandler ran it before any of
+ * the optional stages. The "app" mode runs MyDecoder with the app's
+ * MyDecodeOptions instead, after priming it with QR hits as in a deployment
+ * which mostly scans QR codes, and binarizes with MyPreviewBinarizer or, with
+ * binarizer "hybrid", with MyReusableBinarizer (HybridBinarizer's algorithm).
+ * Run with "-prof gc" to get the allocation rate alongside ns/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MyDecodeBenchmark {
+
+    // 320x240 から MAX_PREVIEW_PIXELS 上限の 1280x720 まで
+    @Param({ "320x240", "640x480", "800x480", "1280x720" })
+    public String resolution;
+
+    @Param({ "qr", "qrsmall", "ean13", "code128", "miss", "blank" })
+    public String frame;
+
+    @Param({ "all", "qr", "oned", "twod" })
+    public String formats;
+
+    @Param({ "plain", "app" })
+    public String mode;
+
+    @Param({ "preview", "hybrid" })
+    public String binarizer;
+
+    private MyBenchmarkFrames corpus;
+    private byte[][] frames;
+    private MyDecoder decoder;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws WriterException {
+        int x = resolution.indexOf('x');
+        corpus = new MyBenchmarkFrames(Integer.parseInt(resolution.substring(0, x)),
+                Integer.parseInt(resolution.substring(x + 1)));
+        frames = corpus.build(frame);
+        boolean app = "app".equals(mode);
+        MyDecodeOptions options = app ? MyDecodeOptions.forApp() : MyDecodeOptions.plain();
+        options.previewBinarizer &= "preview".equals(binarizer);
+        decoder = new MyDecoder(MyDecodeHints.build(formatSet(formats), null), options);
+        if (app) {
+            byte[][] qr = corpus.build("qr");
+            for (int i = 0; i < 64; i++) {
+                decode(qr[i % MyBenchmarkFrames.VARIANTS]);
+            }
+        }
+    }
+
+    @Benchmark
+    public Result decode() {
+        return decode(frames[next++ % MyBenchmarkFrames.VARIANTS]);
+    }
+
+    private Result decode(byte[] data) {
+        return decoder.decode(data, corpus.width, corpus.height, corpus.cropLeft,
+                corpus.cropTop, corpus.cropWidth, corpus.cropHeight);
+    }
+
+    static Collection<BarcodeFormat> formatSet(String name) {
+        if ("all".equals(name)) {
+            return MyDecodeHints.defaultFormats();
+        }
+        if ("qr".equals(name)) {
+            return EnumSet.of(BarcodeFormat.QR_CODE);
+        }
+        if ("twod".equals(name)) {
+            return EnumSet.of(BarcodeFormat.QR_CODE, BarcodeFormat.DATA_MATRIX);
+        }
+        if ("oned".equals(name)) {
+            Collection<BarcodeFormat> formats = MyDecodeHints.defaultFormats();
+            formats.removeAll(EnumSet.of(BarcodeFormat.QR_CODE, BarcodeFormat.DATA_MATRIX));
+            return formats;
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.Result;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+
+/**
+ * Decodes a directory tree of still images (PNG, JPEG, GIF, BMP) with the
+ * app's decode configuration, one JSON object per image on the output as
+ * soon as the image is done.
+ *
+ * <pre>
+ * java -cp myqrcodereader-tools-1.0.jar jp.klab.myqrcodereader.MyBatchDecodeMain
+ *          DIR [-o FILE] [--threads N] [--try-harder] [--plain]
+ * </pre>
+ *
+ * Directories and runs of files are split into fork-join tasks, so that idle
+ * threads steal work from a large directory; each thread has its own
+ * {@link MyDecoder}. A summary with the throughput, the 50th and 99th
+ * percentile time per image and the failure counts goes to stderr. Runs with
+ * java.awt.headless set, so no display is needed.
+ */
+final class MyBatchDecodeMain {
+
+    // 1 タスクで処理するファイル数
+    private static final int FILES_PER_TASK = 32;
+    private static final int FLUSH_EVERY = 256;
+
+    private final Map<DecodeHintType, Object> hints;
+    private final MyDecodeOptions options;
+    private final Writer out;
+    private final ThreadLocal<MyDecoder> decoders = new ThreadLocal<MyDecoder>() {
+        @Override
+        protected MyDecoder initialValue() {
+            return new MyDecoder(hints, options);
+        }
+    };
+
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong unreadable = new AtomicLong();
+    private long[] nanos = new long[1024];
+    private int count;
+    private int unflushed;
+
+    private MyBatchDecodeMain(Map<DecodeHintType, Object> hints, MyDecodeOptions options,
+            Writer out) {
+        this.hints = hints;
+        this.options = options;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: MyBatchDecodeMain DIR [-o FILE] [--threads N]"
+                    + " [--try-harder] [--plain]");
+            System.exit(2);
+        }
+        System.setProperty("java.awt.headless", "true");
+        File root = new File(args[0]);
+        OutputStream stream = System.out;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean tryHarder = false;
+        MyDecodeOptions options = MyDecodeOptions.forApp();
+        for (int i = 1; i < args.length; i++) {
+            if ("-o".equals(args[i]) && i + 1 < args.length) {
+                stream = new FileOutputStream(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--try-harder".equals(args[i])) {
+                tryHarder = true;
+            } else if ("--plain".equals(args[i])) {
+                options = MyDecodeOptions.plain();
+            } else {
+                System.err.println("unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (!root.isDirectory()) {
+            System.err.println("not a directory: " + root);
+            System.exit(2);
+        }
+
+        // アプリの認識スレッドと同じ DecodeHint
+        Map<DecodeHintType, Object> hints = MyDecodeHints.build(
+                MyDecodeHints.defaultFormats(), null);
+        if (tryHarder) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+        MyBatchDecodeMain batch = new MyBatchDecodeMain(hints, options, out);
+        long start = System.nanoTime();
+        new ForkJoinPool(threads).invoke(batch.new DirectoryTask(root));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        out.flush();
+        if (stream != System.out) {
+            out.close();
+        }
+        System.err.println(batch.summary(seconds, threads));
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+
+        DirectoryTask(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            File[] entries = dir.listFiles();
+            if (entries == null) {
+                return;
+            }
+            Arrays.sort(entries);
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            List<File> files = new ArrayList<File>(FILES_PER_TASK);
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    tasks.add(new DirectoryTask(entry));
+                } else if (isImage(entry.getName())) {
+                    files.add(entry);
+                    if (files.size() == FILES_PER_TASK) {
+                        tasks.add(new FilesTask(files));
+                        files = new ArrayList<File>(FILES_PER_TASK);
+                    }
+                }
+            }
+            if (!files.isEmpty()) {
+                tasks.add(new FilesTask(files));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private final class FilesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+
+        FilesTask(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            MyDecoder decoder = decoders.get();
+            for (File file : files) {
+                decodeFile(decoder, file);
+            }
+        }
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg")
+                || lower.endsWith(".gif") || lower.endsWith(".bmp");
+    }
+
+    private void decodeFile(MyDecoder decoder, File file) {
+        long start = System.nanoTime();
+        String error = null;
+        Result result = null;
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                error = "unsupported image";
+            } else {
+                result = decoder.decode(new BufferedImageLuminanceSource(image));
+            }
+        } catch (IOException e) {
+            error = String.valueOf(e.getMessage());
+        } catch (RuntimeException e) {
+            // 壊れた JPEG / PNG では ImageIO が非検査例外を投げることがある
+            // 1 ファイルのために全体の処理を止めない
+            error = e.toString();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        StringBuilder line = new StringBuilder(128);
+        line.append("{\"file\":");
+        appendJsonString(line, file.getPath());
+        if (error != null) {
+            unreadable.incrementAndGet();
+            line.append(",\"status\":\"unreadable\",\"error\":");
+            appendJsonString(line, error);
+        } else if (result == null) {
+            notFound.incrementAndGet();
+            line.append(",\"status\":\"not_found\"");
+        } else {
+            decoded.incrementAndGet();
+            line.append(",\"status\":\"ok\",\"format\":\"").append(result.getBarcodeFormat())
+                    .append("\",\"text\":");
+            appendJsonString(line, result.getText());
+        }
+        line.append(",\"ms\":").append(String.format(Locale.US, "%.2f", elapsed / 1e6))
+                .append("}\n");
+        write(line, elapsed);
+    }
+
+    private synchronized void write(CharSequence line, long elapsed) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = elapsed;
+        try {
+            out.append(line);
+            if (++unflushed >= FLUSH_EVERY) {
+                out.flush();
+                unflushed = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized String summary(double seconds, int threads) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return String.format(Locale.US,
+                "%d images in %.1f s on %d threads, %.1f images/s, p50 %.1f ms, p99 %.1f ms,"
+                        + " decoded=%d not_found=%d unreadable=%d",
+                count, seconds, threads, count / seconds, percentile(sorted, 50) / 1e6,
+                percentile(sorted, 99) / 1e6, decoded.get(), notFound.get(), unreadable.get());
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.Result;
+
+/**
+ * The desktop counterpart of the MyDecodeThread pool: frames from a
+ * {@link MyFrameSource} go through a {@link MyFrameDispatcher} to a number of
+ * single-threaded workers, each with its own {@link MyDecoder} built from the
+ * app's decode hints.
+ */
+final class MyHeadlessScanner implements MyFrameDispatcher.ResultSink {
+
+    // アプリと同じ空振りキャッシュの設定
+    private static final int MISS_CACHE_CAPACITY = 8;
+    private static final long MISS_CACHE_TTL_MS = 1000L;
+
+    interface Listener {
+        void onDecoded(Result result);
+    }
+
+    private final MyScanMetrics metrics = new MyScanMetrics();
+    private final MyFrameDispatcher dispatcher = new MyFrameDispatcher(this, metrics);
+    private final ExecutorService[] executors;
+    private final MyDecoder[] decoders;
+    private final Listener listener;
+    private final int[] crop;
+    private final MyFrameQualityGate qualityGate = new MyFrameQualityGate();
+    private final MyFrameHashCache missCache = new MyFrameHashCache(MISS_CACHE_CAPACITY,
+            MISS_CACHE_TTL_MS);
+
+    /**
+     * @param crop left, top, width and height of the area to decode in frame
+     *            coordinates, or null to decode whole frames
+     */
+    MyHeadlessScanner(int workers, int[] crop, MyDecodeOptions options, Listener listener) {
+        this.crop = crop;
+        this.listener = listener;
+        Map<DecodeHintType, Object> hints = MyDecodeHints.build(
+                MyDecodeHints.defaultFormats(), null);
+        executors = new ExecutorService[workers];
+        decoders = new MyDecoder[workers];
+        for (int i = 0; i < workers; i++) {
+            executors[i] = Executors.newSingleThreadExecutor();
+            decoders[i] = new MyDecoder(hints, options, qualityGate, missCache, metrics);
+            dispatcher.addWorker(new Worker(executors[i], decoders[i]));
+        }
+    }
+
+    /**
+     * Sets the governor which admits the frames, as the app does; without
+     * one every frame is offered to the workers.
+     */
+    void setGovernor(MyDecodeGovernor governor) {
+        dispatcher.setGovernor(governor);
+    }
+
+    void start(MyFrameSource source) throws IOException {
+        dispatcher.attachFrameSource(source);
+    }
+
+    @Override
+    // MyFrameDispatcher.ResultSink
+    public void onResult(long seq, Result[] results) {
+        if (results != null && listener != null) {
+            for (Result result : results) {
+                listener.onDecoded(result);
+            }
+        }
+    }
+
+    MyFrameCounters getFrameCounters() {
+        return dispatcher.getFrameCounters();
+    }
+
+    MyScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    MyFrameQualityGate getQualityGate() {
+        return qualityGate;
+    }
+
+    MyFrameHashCache getMissCache() {
+        return missCache;
+    }
+
+    void shutdown() throws InterruptedException {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : executors) {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (MyDecoder decoder : decoders) {
+            decoder.close();
+        }
+    }
+
+    private final class Worker implements MyFrameDispatcher.Worker {
+
+        private final ExecutorService executor;
+        private final MyDecoder decoder;
+
+        Worker(ExecutorService executor, MyDecoder decoder) {
+            this.executor = executor;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void process(final MyFrame frame) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // 処理中に保留されたフレームがあれば続けて処理
+                    while (dispatcher.finish(frame, decode(frame))) {
+                    }
+                }
+            });
+        }
+
+        private Result[] decode(MyFrame frame) {
+            long start = System.nanoTime();
+            metrics.queueWait.recordNanos(start - frame.arrivalNanos);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DECODE_START, frame.seq,
+                    MyTraceRecorder.OUTCOME_NONE, 0);
+            Result[] results;
+            if (crop == null) {
+                results = decoder.decodeMultiple(frame.plane, frame.width, frame.height,
+                        0, 0, frame.width, frame.height);
+            } else {
+                results = decoder.decodeMultiple(frame.plane, frame.width, frame.height,
+                        crop[0], crop[1], crop[2], crop[3]);
+            }
+            long elapsed = System.nanoTime() - start;
+            metrics.decode.recordNanos(elapsed);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DECODE_END, frame.seq,
+                    results != null ? MyTraceRecorder.OUTCOME_HIT : MyTraceRecorder.OUTCOME_MISS,
+                    (int) (elapsed / 1000));
+            return results;
+        }
+    }
+}
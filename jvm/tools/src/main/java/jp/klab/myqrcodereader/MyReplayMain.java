@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.zxing.Result;
+
+/**
+ * Replays a recorded NV21 preview stream through the decode pipeline on a
+ * desktop JVM.
+ *
+ * <pre>
+ * java -jar myqrcodereader-tools-1.0.jar FILE WIDTH HEIGHT [FPS] [--loop]
+ *          [--crop LEFT,TOP,WIDTH,HEIGHT] [--workers N] [--plain] [--dedup MS]
+ *          [--multi] [--row-padding N] [--hybrid] [--governor PROFILE]
+ *          [--latency-target MS]
+ * </pre>
+ *
+ * An FPS of 0 (the default) replays the file as fast as it can be decoded.
+ * The app's decode options are used unless --plain turns the optional stages
+ * off. With --dedup, a payload seen again within MS milliseconds of its last
+ * sighting is not printed, as in the app's continuous scan mode. --multi
+ * decodes every code of a frame rather than the first one. --row-padding
+ * delivers each frame as a direct ByteBuffer plane whose rows are padded by N
+ * bytes, the way a Camera2 ImageReader does. --hybrid binarizes with
+ * HybridBinarizer's algorithm rather than MyPreviewBinarizer, to compare the
+ * decode rates of the two on the same stream. --governor admits the frames
+ * through a {@link MyDecodeGovernor} with the given profile (balanced,
+ * throughput or saver) and a latency target of --latency-target milliseconds,
+ * 200 by default as in the app.
+ */
+final class MyReplayMain {
+
+    private static final long SNAPSHOT_INTERVAL_NANOS = 1000000000L;
+    private static final int TRACE_CAPACITY = 65536;
+    private static final long DEFAULT_LATENCY_TARGET_MS = 200L;
+    private static final int SPARE_BUFFERS = 2;
+
+    private MyReplayMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("usage: MyReplayMain FILE WIDTH HEIGHT [FPS] [--loop]"
+                    + " [--crop LEFT,TOP,WIDTH,HEIGHT] [--workers N] [--plain] [--dedup MS]"
+                    + " [--multi] [--metrics FILE] [--trace FILE] [--row-padding N] [--hybrid]"
+                    + " [--rotated] [--no-miss-cache] [--race] [--governor PROFILE]"
+                    + " [--latency-target MS]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        int width = Integer.parseInt(args[1]);
+        int height = Integer.parseInt(args[2]);
+        float fps = 0;
+        boolean loop = false;
+        int[] crop = null;
+        int workers = MyFrameDispatcher.defaultWorkerCount();
+        MyDecodeOptions options = MyDecodeOptions.forApp();
+        MyResultDeduplicator deduplicator = null;
+        boolean multiSymbol = false;
+        File metricsFile = null;
+        File traceFile = null;
+        int rowPadding = 0;
+        boolean hybrid = false;
+        boolean rotated = false;
+        boolean missCache = true;
+        boolean race = false;
+        String governorProfile = null;
+        long latencyTarget = DEFAULT_LATENCY_TARGET_MS;
+        for (int i = 3; i < args.length; i++) {
+            if ("--loop".equals(args[i])) {
+                loop = true;
+            } else if ("--crop".equals(args[i]) && i + 1 < args.length) {
+                String[] v = args[++i].split(",");
+                crop = new int[] { Integer.parseInt(v[0]), Integer.parseInt(v[1]),
+                        Integer.parseInt(v[2]), Integer.parseInt(v[3]) };
+            } else if ("--plain".equals(args[i])) {
+                options = MyDecodeOptions.plain();
+            } else if ("--hybrid".equals(args[i])) {
+                hybrid = true;
+            } else if ("--rotated".equals(args[i])) {
+                rotated = true;
+            } else if ("--no-miss-cache".equals(args[i])) {
+                missCache = false;
+            } else if ("--race".equals(args[i])) {
+                race = true;
+            } else if ("--governor".equals(args[i]) && i + 1 < args.length) {
+                governorProfile = args[++i];
+            } else if ("--latency-target".equals(args[i]) && i + 1 < args.length) {
+                latencyTarget = Long.parseLong(args[++i]);
+            } else if ("--multi".equals(args[i])) {
+                multiSymbol = true;
+            } else if ("--dedup".equals(args[i]) && i + 1 < args.length) {
+                deduplicator = new MyResultDeduplicator(64, Long.parseLong(args[++i]));
+            } else if ("--metrics".equals(args[i]) && i + 1 < args.length) {
+                metricsFile = new File(args[++i]);
+            } else if ("--trace".equals(args[i]) && i + 1 < args.length) {
+                traceFile = new File(args[++i]);
+            } else if ("--row-padding".equals(args[i]) && i + 1 < args.length) {
+                rowPadding = Integer.parseInt(args[++i]);
+            } else if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else {
+                fps = Float.parseFloat(args[i]);
+            }
+        }
+
+        options.multiSymbol = multiSymbol;
+        options.previewBinarizer &= !hybrid;
+        options.rotatedOneD = rotated;
+        options.missCache &= missCache;
+        options.raceReaders = race;
+        if (traceFile != null) {
+            MyTraceRecorder.setActive(new MyTraceRecorder(TRACE_CAPACITY));
+            MyTraceRecorder.writeOnCrash(traceFile);
+        }
+        // アプリと同じく認識スレッド数 + 2 枚のバッファで供給
+        MyReplayFrameSource source = new MyReplayFrameSource(file, width, height, fps, loop,
+                rowPadding, workers + SPARE_BUFFERS);
+        final MyResultDeduplicator dedup = deduplicator;
+        MyHeadlessScanner scanner = new MyHeadlessScanner(workers, crop, options,
+                new MyHeadlessScanner.Listener() {
+                    @Override
+                    public void onDecoded(Result result) {
+                        if (dedup != null && !dedup.accept(result, System.currentTimeMillis())) {
+                            return;
+                        }
+                        System.out.println(result.getBarcodeFormat() + "\t" + result.getText());
+                    }
+                });
+        if (governorProfile != null) {
+            scanner.setGovernor(new MyDecodeGovernor(
+                    MyDecodeGovernor.parseProfile(governorProfile), latencyTarget));
+        }
+        long start = System.nanoTime();
+        scanner.start(source);
+        long nextSnapshot = start + SNAPSHOT_INTERVAL_NANOS;
+        while (!source.isFinished()) {
+            Thread.sleep(50L);
+            if (metricsFile != null && System.nanoTime() >= nextSnapshot) {
+                scanner.getMetrics().writeSnapshot(metricsFile);
+                nextSnapshot += SNAPSHOT_INTERVAL_NANOS;
+            }
+        }
+        source.stop();
+        scanner.shutdown();
+        if (metricsFile != null) {
+            scanner.getMetrics().writeSnapshot(metricsFile);
+        }
+        if (traceFile != null) {
+            MyTraceRecorder.getActive().writeTo(traceFile);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        MyFrameCounters counters = scanner.getFrameCounters();
+        System.err.printf("%d frames read, %d skipped by the source, %s, %.1f decoded frames/s%n",
+                source.getFramesRead(), source.getFramesSkipped(), counters,
+                counters.getDecoded() / seconds);
+        if (dedup != null) {
+            System.err.println("dedup: " + dedup);
+        }
+        if (options.qualityGate) {
+            System.err.println("quality gate: " + scanner.getQualityGate());
+        }
+        if (options.missCache) {
+            System.err.println("miss cache: " + scanner.getMissCache());
+        }
+        System.err.print(scanner.getMetrics());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns a trace file written by {@link MyTraceRecorder} into a timeline, one
+ * event per line with its time since the first event, then a summary: the
+ * per-frame latencies between the pipeline stages, gaps in the frame stream
+ * longer than the stall threshold, and results which waited longer than that
+ * for the UI thread.
+ *
+ * <pre>
+ * java -cp myqrcodereader-tools-1.0.jar jp.klab.myqrcodereader.MyTraceDump
+ *          FILE [--stall MS] [--summary]
+ * </pre>
+ *
+ * --summary leaves out the timeline.
+ */
+final class MyTraceDump {
+
+    private static final long DEFAULT_STALL_MS = 100;
+
+    private MyTraceDump() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: MyTraceDump FILE [--stall MS] [--summary]");
+            System.exit(2);
+        }
+        long stallNanos = DEFAULT_STALL_MS * 1000000L;
+        boolean timeline = true;
+        for (int i = 1; i < args.length; i++) {
+            if ("--stall".equals(args[i]) && i + 1 < args.length) {
+                stallNanos = Long.parseLong(args[++i]) * 1000000L;
+            } else if ("--summary".equals(args[i])) {
+                timeline = false;
+            } else {
+                System.err.println("unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(args[0]))));
+        long writtenNanos;
+        long writtenMillis;
+        int count;
+        long[] times;
+        long[] frames;
+        int[] stages;
+        int[] outcomes;
+        int[] threads;
+        int[] argsOf;
+        try {
+            if (in.readInt() != MyTraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file: " + args[0]);
+            }
+            int version = in.readInt();
+            if (version != MyTraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            writtenNanos = in.readLong();
+            writtenMillis = in.readLong();
+            count = in.readInt();
+            times = new long[count];
+            frames = new long[count];
+            stages = new int[count];
+            outcomes = new int[count];
+            threads = new int[count];
+            argsOf = new int[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+                frames[i] = in.readLong();
+                stages[i] = in.readUnsignedByte();
+                outcomes[i] = in.readUnsignedByte();
+                threads[i] = in.readUnsignedShort();
+                argsOf[i] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        if (count == 0) {
+            System.out.println("no events");
+            return;
+        }
+
+        long origin = times[0];
+        long originMillis = writtenMillis - (writtenNanos - origin) / 1000000L;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        System.out.printf(Locale.US, "%d events from %s over %.1f ms%n", count,
+                format.format(new Date(originMillis)), (times[count - 1] - origin) / 1e6);
+        if (timeline) {
+            for (int i = 0; i < count; i++) {
+                System.out.printf(Locale.US, "%12.3f  T%-5d %-13s %7s  %-9s %d%n",
+                        (times[i] - origin) / 1e6, threads[i],
+                        MyTraceRecorder.stageName(stages[i]),
+                        frames[i] < 0 ? "-" : "#" + frames[i],
+                        MyTraceRecorder.outcomeName(outcomes[i]), argsOf[i]);
+            }
+        }
+
+        // フレームごとの各ステージ時刻 (UI はディスパッチ番号の下位 32 ビットで照合)
+        Map<Long, long[]> byFrame = new HashMap<Long, long[]>();
+        Stage queue = new Stage("dispatch -> decode_start");
+        Stage decode = new Stage("decode_start -> decode_end");
+        Stage reorder = new Stage("decode_end -> deliver");
+        Stage ui = new Stage("deliver -> ui");
+        long lastArrival = -1;
+        int stalls = 0;
+        int janks = 0;
+        for (int i = 0; i < count; i++) {
+            int stage = stages[i];
+            if (stage == MyTraceRecorder.STAGE_DISPATCH || stage == MyTraceRecorder.STAGE_PEND
+                    || stage == MyTraceRecorder.STAGE_DROP) {
+                if (lastArrival >= 0 && times[i] - lastArrival > stallNanos) {
+                    stalls++;
+                    System.out.printf(Locale.US, "stall: no frame for %.1f ms before %.3f%n",
+                            (times[i] - lastArrival) / 1e6, (times[i] - origin) / 1e6);
+                }
+                lastArrival = times[i];
+            }
+            if (frames[i] < 0) {
+                continue;
+            }
+            Long key = (long) (int) frames[i];
+            long[] t = byFrame.get(key);
+            if (t == null) {
+                t = new long[] { -1, -1, -1, -1, -1 };
+                byFrame.put(key, t);
+            }
+            switch (stage) {
+            case MyTraceRecorder.STAGE_DISPATCH:
+                t[0] = times[i];
+                break;
+            case MyTraceRecorder.STAGE_DECODE_START:
+                t[1] = times[i];
+                queue.add(t[0], t[1]);
+                break;
+            case MyTraceRecorder.STAGE_DECODE_END:
+                t[2] = times[i];
+                decode.add(t[1], t[2]);
+                break;
+            case MyTraceRecorder.STAGE_DELIVER:
+                t[3] = times[i];
+                reorder.add(t[2], t[3]);
+                break;
+            case MyTraceRecorder.STAGE_UI:
+                t[4] = times[i];
+                ui.add(t[3], t[4]);
+                if (t[3] >= 0 && t[4] - t[3] > stallNanos) {
+                    janks++;
+                    System.out.printf(Locale.US,
+                            "jank: frame #%d waited %.1f ms for the UI at %.3f%n", frames[i], (t[4] - t[3]) / 1e6, (times[i] - origin) / 1e6);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        System.out.println(queue);
+        System.out.println(decode);
+        System.out.println(reorder);
+        System.out.println(ui);
+        System.out.printf(Locale.US, "stalls=%d janks=%d (threshold %d ms)%n", stalls, janks,
+                stallNanos / 1000000L);
+    }
+
+    /**
+     * The intervals between two stages of the frames which have both.
+     */
+    private static final class Stage {
+
+        private final String name;
+        private final MyLatencyHistogram histogram;
+
+        Stage(String name) {
+            this.name = name;
+            histogram = new MyLatencyHistogram(name);
+        }
+
+        void add(long from, long to) {
+            if (from >= 0 && to >= from) {
+                histogram.recordNanos(to - from);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return histogram.getCount() == 0 ? name + " n=0" : histogram.toString();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MyDecodeGovernorTest {
+
+    private static final long MS = 1000000L;
+    // nanoTime の起点 (0 は未設定の意味なので避ける)
+    private static final long T0 = 1000L * MS;
+
+    private static void assertContains(String expected, String actual) {
+        assertTrue(actual, actual.contains(expected));
+    }
+
+    // T0 の後 25ms ごとに 10 フレームを通し T0 + 250ms で調整させる準備
+    private static void admitTenFrames(MyDecodeGovernor governor) {
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(governor.admit(T0 + i * 25 * MS));
+        }
+    }
+
+    @Test
+    public void throttlesFramesArrivingFasterThanTheRate() {
+        MyDecodeGovernor governor = new MyDecodeGovernor(MyDecodeGovernor.PROFILE_POWER_SAVER,
+                100L);
+        // 省電力は 8 fps が上限なので 125ms に 1 フレームだけ通る
+        assertTrue(governor.admit(T0));
+        assertFalse(governor.admit(T0 + 10 * MS));
+        assertFalse(governor.admit(T0 + 60 * MS));
+        assertTrue(governor.admit(T0 + 200 * MS));
+        assertContains("rate=8.0/s", governor.toString());
+        assertContains("admitted=2 throttled=2", governor.toString());
+    }
+
+    @Test
+    public void decreasesToAFractionOfTheAdmittedRateOverTheTarget() {
+        MyDecodeGovernor governor = new MyDecodeGovernor(MyDecodeGovernor.PROFILE_BALANCED,
+                100L);
+        // 最初の報告は調整の起点になるだけ
+        governor.onFrameDone(200 * MS, T0);
+        assertContains("decreases=0", governor.toString());
+        admitTenFrames(governor);
+        // 調整間隔に満たなければ何もしない
+        governor.onFrameDone(200 * MS, T0 + 100 * MS);
+        assertContains("rate=60.0/s", governor.toString());
+        // 実際に通した 40 fps の 0.7 倍へ下げる
+        governor.onFrameDone(200 * MS, T0 + 250 * MS);
+        assertContains("rate=28.0/s", governor.toString());
+        assertContains("decreases=1", governor.toString());
+    }
+
+    @Test
+    public void decreasesOnUiLagAndIncreasesOnceItClears() {
+        MyDecodeGovernor governor = new MyDecodeGovernor(MyDecodeGovernor.PROFILE_BALANCED,
+                100L);
+        governor.onFrameDone(10 * MS, T0);
+        admitTenFrames(governor);
+        // 平滑化後の UI 遅延 60ms が上限 50ms を超える
+        governor.onUiLag(300 * MS, T0 + 250 * MS);
+        assertContains("rate=28.0/s", governor.toString());
+        // UI 遅延 48ms 認識遅延 10ms で余裕があるので 2 fps ずつ戻す
+        governor.onUiLag(0L, T0 + 500 * MS);
+        assertContains("rate=30.0/s", governor.toString());
+        assertContains("increases=1 decreases=1", governor.toString());
+    }
+
+    @Test
+    public void doesNotIncreaseBeyondThePowerSaverCap() {
+        MyDecodeGovernor governor = new MyDecodeGovernor(MyDecodeGovernor.PROFILE_POWER_SAVER,
+                100L);
+        governor.onFrameDone(10 * MS, T0);
+        governor.onFrameDone(10 * MS, T0 + 250 * MS);
+        governor.onFrameDone(10 * MS, T0 + 500 * MS);
+        assertContains("rate=8.0/s", governor.toString());
+        assertContains("increases=0 decreases=0", governor.toString());
+    }
+
+    @Test
+    public void maxThroughputAdmitsEveryFrameAndOnlyMeasures() {
+        MyDecodeGovernor governor = new MyDecodeGovernor(
+                MyDecodeGovernor.PROFILE_MAX_THROUGHPUT, 100L);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(governor.admit(T0));
+        }
+        governor.onFrameDone(500 * MS, T0);
+        governor.onFrameDone(500 * MS, T0 + 500 * MS);
+        String s = governor.toString();
+        assertContains("governor=throughput rate=all latency=500/100ms", s);
+        assertContains("admitted=5 throttled=0 increases=0 decreases=0", s);
+    }
+
+    @Test
+    public void parsesProfileNames() {
+        assertEquals(MyDecodeGovernor.PROFILE_BALANCED,
+                MyDecodeGovernor.parseProfile("balanced"));
+        assertEquals(MyDecodeGovernor.PROFILE_MAX_THROUGHPUT,
+                MyDecodeGovernor.parseProfile("throughput"));
+        assertEquals(MyDecodeGovernor.PROFILE_POWER_SAVER,
+                MyDecodeGovernor.parseProfile("saver"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownProfileName() {
+        MyDecodeGovernor.parseProfile("fast");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownProfile() {
+        new MyDecodeGovernor(3, 100L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTarget() {
+        new MyDecodeGovernor(MyDecodeGovernor.PROFILE_BALANCED, 0L);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+
+public class MyFrameDispatcherTest {
+
+    private MyFrameDispatcher dispatcher;
+    // ワーカーに渡されたまま finish されていないフレーム
+    private final List<MyFrame> processing = new ArrayList<MyFrame>();
+    private final List<Long> deliveredSeqs = new ArrayList<Long>();
+    private final List<Result[]> delivered = new ArrayList<Result[]>();
+    private final List<MyYPlane> released = new ArrayList<MyYPlane>();
+
+    private final MyFrameDispatcher.Worker worker = new MyFrameDispatcher.Worker() {
+        @Override
+        public void process(MyFrame frame) {
+            processing.add(frame);
+        }
+    };
+
+    private final MyFrameSource source = new MyFrameSource() {
+        @Override
+        public void start(Callback callback) {
+        }
+
+        @Override
+        public void releaseFrame(MyYPlane plane) {
+            released.add(plane);
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new MyFrameDispatcher(new MyFrameDispatcher.ResultSink() {
+            @Override
+            public void onResult(long seq, Result[] results) {
+                deliveredSeqs.add(seq);
+                delivered.add(results);
+            }
+        });
+        dispatcher.addWorker(worker);
+        dispatcher.addWorker(worker);
+        dispatcher.attachFrameSource(source);
+    }
+
+    private static Result[] code(String text) {
+        return new Result[] {
+            new Result(text, null, null, BarcodeFormat.QR_CODE)
+        };
+    }
+
+    private MyYPlane frame() {
+        MyYPlane plane = new MyYPlane(new byte[16], 4);
+        dispatcher.onFrame(plane, 4, 4);
+        return plane;
+    }
+
+    @Test
+    public void deliversInDispatchOrderWhenFramesFinishOutOfOrder() {
+        frame();
+        frame();
+        assertEquals(2, processing.size());
+        MyFrame first = processing.get(0);
+        MyFrame second = processing.get(1);
+        assertEquals(0, first.seq);
+        assertEquals(1, second.seq);
+        // 後のフレームが先に終わっても 前のフレームが終わるまで配送しない
+        assertFalse(dispatcher.finish(second, code("b")));
+        assertTrue(deliveredSeqs.isEmpty());
+        assertFalse(dispatcher.finish(first, null));
+        assertEquals(2, deliveredSeqs.size());
+        assertEquals(0L, (long) deliveredSeqs.get(0));
+        assertNull(delivered.get(0));
+        assertEquals(1L, (long) deliveredSeqs.get(1));
+        assertEquals("b", delivered.get(1)[0].getText());
+    }
+
+    @Test
+    public void replacesThePendingFrameWhileEveryWorkerIsBusy() {
+        frame();
+        frame();
+        MyYPlane stale = frame();
+        MyYPlane latest = frame();
+        // 保留枠は 1 つだけなので 古いフレームは捨ててソースに返す
+        assertEquals(2, processing.size());
+        assertEquals(1, released.size());
+        assertSame(stale, released.get(0));
+        assertEquals(1, dispatcher.getFrameCounters().getDropped());
+        MyFrame first = processing.get(0);
+        assertTrue(dispatcher.finish(first, null));
+        assertSame(latest, first.plane);
+        assertEquals(2, first.seq);
+    }
+
+    @Test
+    public void suppressesTheSameCodeFromFramesDecodedConcurrently() {
+        frame();
+        frame();
+        MyFrame first = processing.get(0);
+        MyFrame second = processing.get(1);
+        dispatcher.finish(first, code("a"));
+        dispatcher.finish(second, code("a"));
+        // 並行して同じコードを認識したので 2 つ目は通知しない
+        assertEquals(1, delivered.size());
+        assertEquals(1, dispatcher.getFrameCounters().getDuplicates());
+    }
+
+    @Test
+    public void deliversTheSameCodeAgainFromALaterFrame() {
+        frame();
+        MyFrame first = processing.get(0);
+        dispatcher.finish(first, code("a"));
+        // 通知の後にディスパッチしたフレームは同じコードでも通知する
+        frame();
+        dispatcher.finish(processing.get(1), code("a"));
+        assertEquals(2, delivered.size());
+        assertEquals(0, dispatcher.getFrameCounters().getDuplicates());
+    }
+
+    @Test
+    public void deliversADifferentCodeFromAConcurrentFrame() {
+        frame();
+        frame();
+        dispatcher.finish(processing.get(0), code("a"));
+        dispatcher.finish(processing.get(1), code("b"));
+        assertEquals(2, delivered.size());
+        assertEquals("b", delivered.get(1)[0].getText());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MyFrameHashCacheTest {
+
+    private static final long MS = 1000000L;
+    private static final long TTL = 1000L * MS;
+    // nanoTime の起点
+    private static final long T0 = 5000L * MS;
+    // 17 x 16 セルが 10 ピクセル角になる大きさ
+    private static final int WIDTH = 170;
+    private static final int HEIGHT = 160;
+
+    private MyFrameHashCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new MyFrameHashCache(2, TTL / MS);
+    }
+
+    private static long[] randomHash(long seed) {
+        Random random = new Random(seed);
+        long[] hash = new long[MyFrameHashCache.HASH_WORDS];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = random.nextLong();
+        }
+        return hash;
+    }
+
+    private static long[] flipBits(long[] hash, int count) {
+        long[] flipped = hash.clone();
+        for (int bit = 0; bit < count; bit++) {
+            flipped[bit % flipped.length] ^= 1L << (bit / flipped.length);
+        }
+        return flipped;
+    }
+
+    // セルごとに明るさの違うブロック模様 (offset は全体の明るさ)
+    private static MyYPlane blocks(long seed, int offset) {
+        Random random = new Random(seed);
+        byte[] luminance = new byte[WIDTH * HEIGHT];
+        for (int cy = 0; cy < HEIGHT / 10; cy++) {
+            for (int cx = 0; cx < WIDTH / 10; cx++) {
+                int level = 40 + random.nextInt(160) + offset;
+                for (int y = cy * 10; y < cy * 10 + 10; y++) {
+                    Arrays.fill(luminance, y * WIDTH + cx * 10, y * WIDTH + cx * 10 + 10,
+                            (byte) level);
+                }
+            }
+        }
+        return new MyYPlane(luminance, WIDTH);
+    }
+
+    @Test
+    public void matchesWithinTheHammingTolerance() {
+        long[] miss = randomHash(1);
+        cache.addMiss(miss, T0);
+        assertTrue(cache.isKnownMiss(flipBits(miss, 16), T0));
+        assertFalse(cache.isKnownMiss(flipBits(miss, 17), T0));
+        assertFalse(cache.isKnownMiss(randomHash(2), T0));
+        assertEquals("lookups=3 hits=1 stored=1 expired=0 evicted=0 remembered=1",
+                cache.toString());
+    }
+
+    @Test
+    public void expiresMissesAfterTheTimeToLive() {
+        long[] miss = randomHash(1);
+        cache.addMiss(miss, T0);
+        // 一致しても期限は延びない
+        assertTrue(cache.isKnownMiss(miss, T0 + TTL - 1));
+        assertFalse(cache.isKnownMiss(miss, T0 + TTL));
+        assertEquals("lookups=2 hits=1 stored=1 expired=1 evicted=0 remembered=0",
+                cache.toString());
+    }
+
+    @Test
+    public void evictsTheOldestMissWhenFull() {
+        long[] first = randomHash(1);
+        long[] second = randomHash(2);
+        long[] third = randomHash(3);
+        cache.addMiss(first, T0);
+        cache.addMiss(second, T0 + 1);
+        cache.addMiss(third, T0 + 2);
+        assertFalse(cache.isKnownMiss(first, T0 + 3));
+        assertTrue(cache.isKnownMiss(second, T0 + 3));
+        assertTrue(cache.isKnownMiss(third, T0 + 3));
+        // 最も古い second が先に期限切れになる
+        assertFalse(cache.isKnownMiss(second, T0 + 1 + TTL));
+        assertTrue(cache.isKnownMiss(third, T0 + 1 + TTL));
+        assertEquals("lookups=5 hits=3 stored=3 expired=1 evicted=1 remembered=1",
+                cache.toString());
+    }
+
+    @Test
+    public void doesNotStoreTheSameSceneTwice() {
+        long[] miss = randomHash(1);
+        cache.addMiss(miss, T0);
+        cache.addMiss(flipBits(miss, 4), T0 + 1);
+        assertEquals("lookups=0 hits=0 stored=1 expired=0 evicted=0 remembered=1",
+                cache.toString());
+    }
+
+    @Test
+    public void forgetsMissesMatchingAHit() {
+        long[] miss = randomHash(1);
+        long[] other = randomHash(2);
+        cache.addMiss(miss, T0);
+        cache.addMiss(other, T0 + 1);
+        cache.removeMatches(flipBits(miss, 8));
+        assertFalse(cache.isKnownMiss(miss, T0 + 2));
+        assertTrue(cache.isKnownMiss(other, T0 + 2));
+        assertEquals("lookups=2 hits=1 stored=2 expired=0 evicted=0 remembered=1",
+                cache.toString());
+    }
+
+    @Test
+    public void hashFollowsTheLayoutRatherThanTheExposure() {
+        long[] hash = new long[MyFrameHashCache.HASH_WORDS];
+        long[] brighter = new long[MyFrameHashCache.HASH_WORDS];
+        long[] other = new long[MyFrameHashCache.HASH_WORDS];
+        assertTrue(MyFrameHashCache.hash(blocks(1, 0), 0, 0, WIDTH, HEIGHT, hash));
+        assertTrue(MyFrameHashCache.hash(blocks(1, 30), 0, 0, WIDTH, HEIGHT, brighter));
+        assertTrue(MyFrameHashCache.hash(blocks(2, 0), 0, 0, WIDTH, HEIGHT, other));
+        assertArrayEquals(hash, brighter);
+        cache.addMiss(hash, T0);
+        assertFalse(cache.isKnownMiss(other, T0));
+    }
+
+    @Test
+    public void doesNotHashPlainOrTinyCrops() {
+        long[] hash = new long[MyFrameHashCache.HASH_WORDS];
+        byte[] plain = new byte[WIDTH * HEIGHT];
+        Arrays.fill(plain, (byte) 128);
+        // 特徴の少ない画面は互いに一致してしまうのでハッシュしない
+        assertFalse(MyFrameHashCache.hash(new MyYPlane(plain, WIDTH), 0, 0, WIDTH, HEIGHT,
+                hash));
+        assertFalse(MyFrameHashCache.hash(blocks(1, 0), 0, 0, 60, 60, hash));
+    }
+}
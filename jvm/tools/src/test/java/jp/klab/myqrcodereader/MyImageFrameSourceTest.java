@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+public class MyImageFrameSourceTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private MyImageFrameSource<MyStandInImageQueue.Image> source;
+    private MyStandInImageQueue queue;
+    private final List<MyYPlane> frames = new ArrayList<MyYPlane>();
+    private final MyFrameSource.Callback collect = new MyFrameSource.Callback() {
+        @Override
+        public void onFrame(MyYPlane plane, int width, int height) {
+            assertEquals(WIDTH, width);
+            assertEquals(HEIGHT, height);
+            frames.add(plane);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        source = new MyImageFrameSource<MyStandInImageQueue.Image>();
+        queue = new MyStandInImageQueue(2, 16, 2);
+        source.attach(queue);
+        source.start(collect);
+    }
+
+    private static byte[] gradient(int seed) {
+        byte[] luminance = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luminance.length; i++) {
+            luminance[i] = (byte) (i * 7 + seed);
+        }
+        return luminance;
+    }
+
+    private MyStandInImageQueue.Image deliver(MyStandInImageQueue q, int seed) {
+        MyStandInImageQueue.Image image = q.push(WIDTH, HEIGHT, gradient(seed));
+        source.onImageAvailable(q);
+        return image;
+    }
+
+    @Test
+    public void deliversYPlaneOfImageWithoutCopying() {
+        MyStandInImageQueue.Image image = deliver(queue, 3);
+        assertEquals(1, frames.size());
+        MyYPlane plane = frames.get(0);
+        assertSame(image.y, plane.buffer());
+        assertEquals(image.rowStride, plane.getRowStride());
+        assertEquals(2, plane.getPixelStride());
+        byte[] expected = gradient(3);
+        byte[] row = new byte[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            plane.getRow(0, y, row, 0, WIDTH);
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(expected[y * WIDTH + x], row[x]);
+            }
+        }
+    }
+
+    @Test
+    public void closesImageWhenFrameIsReleased() {
+        MyStandInImageQueue.Image image = deliver(queue, 0);
+        assertFalse(image.closed);
+        source.releaseFrame(frames.get(0));
+        assertTrue(image.closed);
+        assertEquals(0, source.getOutstanding());
+        // 2 度目の返却は無視される
+        source.releaseFrame(frames.get(0));
+    }
+
+    @Test
+    public void skipsFramesWhileEveryImageIsHeld() {
+        deliver(queue, 0);
+        deliver(queue, 1);
+        MyStandInImageQueue.Image waiting = deliver(queue, 2);
+        assertEquals(2, frames.size());
+        assertFalse(waiting.closed);
+        source.releaseFrame(frames.get(0));
+        // 空いた画像の分で 待っていた最新の画像が届く
+        source.onImageAvailable(queue);
+        assertEquals(3, frames.size());
+        assertSame(waiting.y, frames.get(2).buffer());
+    }
+
+    @Test
+    public void closesQueueOnlyAfterTheLastRelease() {
+        deliver(queue, 0);
+        deliver(queue, 1);
+        source.stop();
+        assertFalse(queue.closed);
+        source.releaseFrame(frames.get(0));
+        assertFalse(queue.closed);
+        source.releaseFrame(frames.get(1));
+        assertTrue(queue.closed);
+    }
+
+    @Test
+    public void closesImagesArrivingAfterStop() {
+        source.stop();
+        MyStandInImageQueue.Image image = deliver(queue, 0);
+        assertTrue(frames.isEmpty());
+        assertTrue(image.closed);
+        assertTrue(queue.closed);
+    }
+
+    @Test
+    public void closesImagesOfADetachedQueueThroughThatQueue() {
+        MyStandInImageQueue.Image old = deliver(queue, 0);
+        MyStandInImageQueue next = new MyStandInImageQueue(2, 16, 2);
+        source.attach(next);
+        // 外したキューの画像は届けない
+        MyStandInImageQueue.Image late = deliver(queue, 1);
+        assertTrue(late.closed);
+        deliver(next, 2);
+        assertEquals(2, frames.size());
+        source.releaseFrame(frames.get(0));
+        assertTrue(old.closed);
+        assertFalse(queue.closed);
+        source.releaseFrame(frames.get(1));
+        assertTrue(queue.closed);
+        assertFalse(next.closed);
+    }
+
+    @Test
+    public void decodesQrCodeThroughThePipeline() throws Exception {
+        // 紙面 200 インク 40 の 320x240 フレームの中央に QR コード
+        int width = 320;
+        int height = 240;
+        int size = 100;
+        BitMatrix matrix = new QRCodeWriter().encode("stand-in", BarcodeFormat.QR_CODE, size,
+                size);
+        byte[] luminance = new byte[width * height];
+        Arrays.fill(luminance, (byte) 200);
+        int left = (width - size) / 2;
+        int top = (height - size) / 2;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (matrix.get(x, y)) {
+                    luminance[(top + y) * width + left + x] = (byte) 40;
+                }
+            }
+        }
+        final CountDownLatch decoded = new CountDownLatch(1);
+        final String[] text = new String[1];
+        MyHeadlessScanner scanner = new MyHeadlessScanner(1, null, MyDecodeOptions.plain(),
+                new MyHeadlessScanner.Listener() {
+                    @Override
+                    public void onDecoded(Result result) {
+                        text[0] = result.getText();
+                        decoded.countDown();
+                    }
+                });
+        source = new MyImageFrameSource<MyStandInImageQueue.Image>();
+        queue = new MyStandInImageQueue(3, 32, 2);
+        source.attach(queue);
+        scanner.start(source);
+        queue.push(width, height, luminance);
+        source.onImageAvailable(queue);
+        assertTrue(decoded.await(10, TimeUnit.SECONDS));
+        scanner.shutdown();
+        assertEquals("stand-in", text[0]);
+        assertEquals(0, source.getOutstanding());
+        assertTrue(queue.held.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+public class MyRoiTrackerTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private MyRoiTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new MyRoiTracker();
+        assertFalse(tracker.startFrame(WIDTH, HEIGHT));
+    }
+
+    private static Result code(float... xy) {
+        ResultPoint[] points = new ResultPoint[xy.length / 2];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new ResultPoint(xy[i * 2], xy[i * 2 + 1]);
+        }
+        return new Result("roi", null, points, BarcodeFormat.QR_CODE);
+    }
+
+    private void assertWindow(int left, int top, int width, int height) {
+        assertEquals(left, tracker.getLeft());
+        assertEquals(top, tracker.getTop());
+        assertEquals(width, tracker.getWidth());
+        assertEquals(height, tracker.getHeight());
+    }
+
+    @Test
+    public void padsAndRoundsTheWindowAroundTheCode() {
+        // 40 ピクセル角のコードに 36 ずつ余白 112 を 128 に丸めて中心を保つ
+        tracker.endFrame(code(300, 200, 340, 240));
+        assertTrue(tracker.startFrame(WIDTH, HEIGHT));
+        assertWindow(256, 156, 128, 128);
+    }
+
+    @Test
+    public void keepsTheWindowInsideTheCrop() {
+        tracker.endFrame(code(0, 0, 20, 20));
+        assertTrue(tracker.startFrame(WIDTH, HEIGHT));
+        assertWindow(0, 0, 64, 64);
+        tracker.endFrame(code(620, 460, 639, 479));
+        assertTrue(tracker.startFrame(WIDTH, HEIGHT));
+        assertWindow(WIDTH - 64, HEIGHT - 64, 64, 64);
+    }
+
+    @Test
+    public void usesTheWholeCropForALargeCode() {
+        tracker.endFrame(code(100, 50, 500, 400));
+        assertFalse(tracker.startFrame(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void usesTheWholeCropForAResultWithoutPoints() {
+        tracker.endFrame(new Result("roi", null, null, BarcodeFormat.QR_CODE));
+        assertFalse(tracker.startFrame(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void returnsToTheWholeCropAfterConsecutiveMisses() {
+        tracker.endFrame(code(300, 200, 340, 240));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(tracker.startFrame(WIDTH, HEIGHT));
+            tracker.endFrame(null);
+        }
+        assertTrue(tracker.startFrame(WIDTH, HEIGHT));
+        tracker.endFrame(null);
+        assertFalse(tracker.startFrame(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void resetsWhenTheCropSizeChanges() {
+        tracker.endFrame(code(300, 200, 340, 240));
+        assertFalse(tracker.startFrame(WIDTH / 2, HEIGHT / 2));
+        assertFalse(tracker.startFrame(WIDTH, HEIGHT));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MyRotatedLuminanceSourceTest {
+
+    private static final int DATA_WIDTH = 40;
+    private static final int DATA_HEIGHT = 30;
+    // (LEFT, TOP) から CROP_WIDTH x CROP_HEIGHT のクロップ
+    private static final int LEFT = 5;
+    private static final int TOP = 3;
+    private static final int CROP_WIDTH = 24;
+    private static final int CROP_HEIGHT = 16;
+
+    private MyYPlane plane;
+    private MyRotatedLuminanceSource source;
+
+    @Before
+    public void setUp() {
+        byte[] luminance = new byte[DATA_WIDTH * DATA_HEIGHT];
+        for (int i = 0; i < luminance.length; i++) {
+            luminance[i] = (byte) (i * 13 + i / DATA_WIDTH);
+        }
+        plane = new MyYPlane(luminance, DATA_WIDTH);
+        source = new MyRotatedLuminanceSource(CROP_HEIGHT, CROP_WIDTH);
+    }
+
+    // 回転した各画素が cropX / cropY の示すクロップの画素と一致するか
+    private void assertRotated() {
+        byte[] row = null;
+        for (int y = 0; y < CROP_WIDTH; y++) {
+            row = source.getRow(y, row);
+            for (int x = 0; x < CROP_HEIGHT; x++) {
+                int cx = (int) source.cropX(x, y);
+                int cy = (int) source.cropY(x, y);
+                assertEquals(plane.get(LEFT + cx, TOP + cy), row[x] & 0xff);
+            }
+        }
+        byte[] matrix = source.getMatrix();
+        for (int y = 0; y < CROP_WIDTH; y++) {
+            row = source.getRow(y, row);
+            for (int x = 0; x < CROP_HEIGHT; x++) {
+                assertEquals(row[x], matrix[y * CROP_HEIGHT + x]);
+            }
+        }
+    }
+
+    @Test
+    public void readsRowsFromColumnsCounterClockwise() {
+        source.setFrame(plane, DATA_WIDTH, DATA_HEIGHT, LEFT, TOP, false);
+        assertRotated();
+        // 反時計回りでは左上がクロップの右上
+        assertEquals(CROP_WIDTH - 1, (int) source.cropX(0, 0));
+        assertEquals(0, (int) source.cropY(0, 0));
+    }
+
+    @Test
+    public void readsRowsFromColumnsClockwise() {
+        source.setFrame(plane, DATA_WIDTH, DATA_HEIGHT, LEFT, TOP, true);
+        assertRotated();
+        // 時計回りでは左上がクロップの左下
+        assertEquals(0, (int) source.cropX(0, 0));
+        assertEquals(CROP_HEIGHT - 1, (int) source.cropY(0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACropOutsideTheFrame() {
+        source.setFrame(plane, DATA_WIDTH, DATA_HEIGHT, DATA_WIDTH - CROP_WIDTH + 1, TOP, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARowOutsideTheView() {
+        source.setFrame(plane, DATA_WIDTH, DATA_HEIGHT, LEFT, TOP, false);
+        source.getRow(CROP_WIDTH, null);
+    }
+}
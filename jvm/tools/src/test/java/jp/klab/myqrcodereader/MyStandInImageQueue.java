@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for an ImageReader of YUV_420_888 images: the Y plane of each
+ * image is a direct ByteBuffer with padded rows and a pixel stride, like a
+ * Camera2 image, and at most maxImages images may be held at a time, beyond
+ * which acquireLatest() gives nothing, as acquireLatestImage() throws.
+ */
+final class MyStandInImageQueue implements MyImageFrameSource.ImageQueue<MyStandInImageQueue.Image> {
+
+    static final class Image {
+        final int width;
+        final int height;
+        final int rowStride;
+        final int pixelStride;
+        final ByteBuffer y;
+        boolean closed;
+
+        Image(int width, int height, int rowPadding, int pixelStride, byte[] luminance) {
+            this.width = width;
+            this.height = height;
+            this.pixelStride = pixelStride;
+            rowStride = width * pixelStride + rowPadding;
+            y = ByteBuffer.allocateDirect(rowStride * height);
+            for (int row = 0; row < height; row++) {
+                for (int x = 0; x < width; x++) {
+                    y.put(row * rowStride + x * pixelStride, luminance[row * width + x]);
+                }
+            }
+        }
+    }
+
+    private final int maxImages;
+    private final int rowPadding;
+    private final int pixelStride;
+    private final List<Image> queued = new ArrayList<Image>();
+    final List<Image> held = new ArrayList<Image>();
+    int dropped;
+    boolean closed;
+
+    MyStandInImageQueue(int maxImages, int rowPadding, int pixelStride) {
+        this.maxImages = maxImages;
+        this.rowPadding = rowPadding;
+        this.pixelStride = pixelStride;
+    }
+
+    /**
+     * Queues an image of the given luminance, as the camera would write it.
+     */
+    synchronized Image push(int width, int height, byte[] luminance) {
+        Image image = new Image(width, height, rowPadding, pixelStride, luminance);
+        queued.add(image);
+        return image;
+    }
+
+    @Override
+    public synchronized Image acquireLatest() {
+        if (queued.isEmpty() || held.size() >= maxImages) {
+            return null;
+        }
+        Image latest = queued.remove(queued.size() - 1);
+        dropped += queued.size();
+        queued.clear();
+        held.add(latest);
+        return latest;
+    }
+
+    @Override
+    public int getWidth(Image image) {
+        return image.width;
+    }
+
+    @Override
+    public int getHeight(Image image) {
+        return image.height;
+    }
+
+    @Override
+    public void setYPlane(Image image, MyYPlane plane) {
+        plane.set(image.y, image.rowStride, image.pixelStride);
+    }
+
+    @Override
+    public synchronized void close(Image image) {
+        if (image.closed) {
+            throw new IllegalStateException("Image closed twice");
+        }
+        image.closed = true;
+        held.remove(image);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!held.isEmpty()) {
+            throw new IllegalStateException("Queue closed with " + held.size() + " images held");
+        }
+        closed = true;
+    }
+}
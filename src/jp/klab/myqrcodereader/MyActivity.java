@@ -16,39 +16,108 @@
 
 package jp.klab.myqrcodereader;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.hardware.Camera;
+import android.graphics.Point;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Result;
 
 public class MyActivity extends Activity implements SurfaceHolder.Callback,
-        Handler.Callback, Camera.PreviewCallback {
+        Handler.Callback {
 
     private static final String TAG = "QR";
-    private MyDecodeThread mDecodeThread = null;
+    // 連続認識モード: 同一コードを再通知しない期間 記憶するコード数 UI への通知間隔
+    private static final long MULTI_SCAN_TTL_MS = 3000L;
+    private static final int MULTI_SCAN_CAPACITY = 64;
+    private static final long MULTI_SCAN_BATCH_INTERVAL_MS = 500L;
+    private static final int MULTI_SCAN_MAX_BATCH = 16;
+    // 計測値のオーバーレイ更新間隔 スナップショットファイルの書出し間隔 (更新回数)
+    private static final long METRICS_UPDATE_INTERVAL_MS = 1000L;
+    private static final int METRICS_SNAPSHOT_EVERY = 5;
+    private static final String METRICS_SNAPSHOT_FILE = "scan_metrics.txt";
+    // イベントトレースの保持件数と書出し先
+    private static final int TRACE_CAPACITY = 8192;
+    private static final String TRACE_FILE = "scan_trace.bin";
+    // 認識スレッド 1 本あたりのフレーム処理レート目標 (プレビューサイズ切替えの予算)
+    private static final int TARGET_DECODE_FPS = 15;
+    // Camera.open() が開く背面カメラの ID
+    private static final int BACK_CAMERA_ID = 0;
+    private static final long CAMERA_CLOSE_TIMEOUT_MS = 1000L;
+    // 認識スレッド数に加えて用意するプレビューバッファ (Camera2 では画像) の数
+    // 保留中のフレームとカメラが書き込み中のフレームの分
+    private static final int SPARE_PREVIEW_BUFFERS = 2;
+    // 空振りした画面を覚えておく数と期間
+    private static final int MISS_CACHE_CAPACITY = 8;
+    private static final long MISS_CACHE_TTL_MS = 1000L;
+    // フレーム到着から認識完了までの遅延目標と UI スレッドの遅れの計測間隔
+    private static final long GOVERNOR_TARGET_LATENCY_MS = 200L;
+    private static final long GOVERNOR_TICK_INTERVAL_MS = 100L;
+    private MyDecodeThread[] mDecodeThreads = null;
+    private MyFrameDispatcher mDispatcher = null;
     private MyCameraConfigurationManager mConfigManager;
     private MyFinderView mFinderView;
+    private MyResultPointCallback mResultPointCallback;
+    private volatile MyCropGeometry mCropGeometry = null;
+    private final MyFrameQualityGate mQualityGate = new MyFrameQualityGate();
+    private final MyFrameHashCache mMissCache = new MyFrameHashCache(MISS_CACHE_CAPACITY,
+            MISS_CACHE_TTL_MS);
     private SurfaceView mSurfaceView;
-    private Handler mHandler = null;
-    private Camera mCamera = null;
+    private volatile Handler mHandler = null;
+    // カメラの操作を受け持つスレッド
+    private volatile MyCameraThread mCameraThread = null;
+    // API 21 以降で対応機種なら Camera2 で撮影するか (選択制)
+    // Camera2 ではフォーカス制御 プレビューサイズ切替え 設定キャッシュが効かない
+    private boolean mUseCamera2 = false;
+    private volatile MyFocusScheduler mFocusScheduler = null;
+    // 認識時間に応じてプレビューサイズを切り替えるか
+    private boolean mDynamicPreviewSize = true;
+    private volatile MyPreviewSizeController mPreviewSizeController = null;
     private Boolean mHasSurface;
-    private Timer mTimerFocus;
     private boolean mMultiMode = false;
+    private final MyResultDeduplicator mDeduplicator = new MyResultDeduplicator(
+            MULTI_SCAN_CAPACITY, MULTI_SCAN_TTL_MS);
+    private final MyResultBatcher mResultBatcher = new MyResultBatcher(
+            MULTI_SCAN_BATCH_INTERVAL_MS, MULTI_SCAN_MAX_BATCH);
+    private final MyDecodeOptions mDecodeOptions = MyDecodeOptions.forApp();
+    // 1 フレーム中の複数コードを認識するか
+    private boolean mMultiSymbol = false;
+    // 縦持ちの 1D コードを 90 度回転した画像でも探すか
+    private boolean mRotatedOneD = false;
+    // 2D と 1D のリーダーを並行して走らせるか (コアに余裕のある機種向け)
+    private boolean mRaceReaders = false;
+    // 認識に回すフレームの流量制御 (MyDecodeGovernor.PROFILE_*)
+    private int mGovernorProfile = MyDecodeGovernor.PROFILE_BALANCED;
+    private MyDecodeGovernor mGovernor = null;
+    private final MyScanMetrics mScanMetrics = new MyScanMetrics();
+    // 計測値を画面に重ねて表示するか ファイルへ定期的に書き出すか
+    private boolean mShowMetrics = false;
+    private boolean mExportMetrics = false;
+    private TextView mMetricsView;
+    private ExecutorService mMetricsWriter = null;
+    private int mMetricsUpdates;
+    // 認識パイプラインのイベントを記録し 停止時と異常終了時にファイルへ書き出すか
+    private boolean mTrace = false;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -58,28 +127,60 @@ public class MyActivity extends Activity implements SurfaceHolder.Callback,
         this.requestWindowFeature(Window.FEATURE_NO_TITLE);
         mHasSurface = false;
         setContentView(R.layout.activity_main);
+        mFinderView = (MyFinderView) findViewById(R.id.finderView);
+        mResultPointCallback = new MyResultPointCallback(mFinderView);
+        mMetricsView = (TextView) findViewById(R.id.metrics_view);
+        if (mTrace && MyTraceRecorder.getActive() == null) {
+            MyTraceRecorder.setActive(new MyTraceRecorder(TRACE_CAPACITY));
+            MyTraceRecorder.writeOnCrash(new File(getFilesDir(), TRACE_FILE));
+        }
+        // ファインダのレイアウト確定・変更時に切り出し範囲を再計算
+        mFinderView.getViewTreeObserver().addOnGlobalLayoutListener(
+                new ViewTreeObserver.OnGlobalLayoutListener() {
+                    @Override
+                    public void onGlobalLayout() {
+                        updateCropGeometry();
+                    }
+                });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        mConfigManager = new MyCameraConfigurationManager(this);
-        mFinderView = (MyFinderView) findViewById(R.id.finderView);
+        mConfigManager = new MyCameraConfigurationManager(this, BACK_CAMERA_ID);
         mSurfaceView = (SurfaceView) findViewById(R.id.preview_view);
         if (mHandler == null) {
             mHandler = new Handler(this);
-            // コード認識用スレッドを開始
-            mDecodeThread = new MyDecodeThread(this, new MyResultPointCallback(mFinderView));
-            mDecodeThread.start();
+            mDecodeOptions.multiSymbol = mMultiSymbol;
+            mDecodeOptions.rotatedOneD = mRotatedOneD;
+            mDecodeOptions.raceReaders = mRaceReaders;
+            mScanMetrics.reset();
+            mMissCache.clear();
+            // 認識スレッドの開始やサーフェスの準備と並行してカメラを開く
+            int workers = MyFrameDispatcher.defaultWorkerCount();
+            mCameraThread = new MyCameraThread(createCameraSource(workers),
+                    mConfigManager, mHandler, mScanMetrics);
+            mCameraThread.start();
+            mCameraThread.openCamera();
+            // コード認識用スレッドをコア数に応じて開始
+            mDispatcher = new MyFrameDispatcher(mResultSink, mScanMetrics);
+            mGovernor = new MyDecodeGovernor(mGovernorProfile, GOVERNOR_TARGET_LATENCY_MS);
+            mDispatcher.setGovernor(mGovernor);
+            mDecodeThreads = new MyDecodeThread[workers];
+            for (int i = 0; i < mDecodeThreads.length; i++) {
+                mDecodeThreads[i] = new MyDecodeThread(this, mDispatcher, mDecodeOptions,
+                        mResultPointCallback);
+                mDecodeThreads[i].start();
+                mDispatcher.addWorker(mDecodeThreads[i]);
+            }
+            startMetrics();
+            mHandler.sendEmptyMessageDelayed(R.id.governor_tick, GOVERNOR_TICK_INTERVAL_MS);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_MARK, -1, MyTraceRecorder.OUTCOME_NONE, 1);
         }
         SurfaceHolder holder = mSurfaceView.getHolder();
         if (mHasSurface) {
             // surfaceCreated() ずみで surfaceDestroyed() が未了の状況
-            try {
-                openCamera(holder);
-            } catch (IOException e) {
-                Message.obtain(mHandler, R.id.error).sendToTarget();
-            }
+            startCamera();
         } else {
             holder.addCallback(this);
             holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
@@ -97,11 +198,7 @@ public class MyActivity extends Activity implements SurfaceHolder.Callback,
     public void surfaceCreated(SurfaceHolder holder) {
         if (!mHasSurface) {
             mHasSurface = true;
-            try {
-                openCamera(holder);
-            } catch (IOException e) {
-                Message.obtain(mHandler, R.id.error).sendToTarget();
-            }
+            startCamera();
         }
     }
 
@@ -124,63 +221,305 @@ public class MyActivity extends Activity implements SurfaceHolder.Callback,
             showDialogMessage("エラーが発生しました", true);
             break;
         case R.id.decode_succeeded: // 認識 OK
+            if (mHandler == null) {
+                // 停止後に届いた認識結果は捨てる
+                break;
+            }
+            recordDelivery(msg);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_UI, msg.arg1,
+                    MyTraceRecorder.OUTCOME_HIT, 0);
             String text = (String) msg.obj;
-            _Log.d(TAG, "decoded [" + text + "]");
+            if (_Log.DEVELOP) {
+                _Log.d(TAG, "decoded [" + text + "]");
+            }
             if (!mMultiMode) {
                 stopIt();
                 showDialogMessage(text, true);
-            } else {
-                mCamera.setOneShotPreviewCallback(this);
             }
             break;
+        case R.id.decode_batch: // 連続認識モードの新規認識結果
+            if (mHandler == null) {
+                break;
+            }
+            recordDelivery(msg);
+            List<Result> batch = mResultBatcher.drain(SystemClock.uptimeMillis());
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_UI, -1, MyTraceRecorder.OUTCOME_HIT,
+                    batch.size());
+            showResults(batch);
+            break;
         case R.id.decode_failed: // 認識 NG
-            if (mCamera != null) {
-                // PreviewCallback を発動させ フレームイメージ取得～認識 を繰り返す
-                mCamera.setOneShotPreviewCallback(this);
+            // 次フレームの取得はフレームソースへのバッファ返却で駆動される
+            recordDelivery(msg);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_UI, msg.arg1,
+                    MyTraceRecorder.OUTCOME_MISS, 0);
+            break;
+        case R.id.camera_ready: // プレビュー開始
+            if (mHandler == null) {
+                break;
+            }
+            onCameraReady();
+            break;
+        case R.id.preview_size: // プレビューサイズ切替え済み
+            if (mHandler == null) {
+                break;
+            }
+            updateCropGeometry();
+            _Log.i(TAG, "preview size: " + mPreviewSizeController);
+            break;
+        case R.id.metrics_update:
+            if (mHandler == null) {
+                break;
             }
+            updateMetrics();
+            mHandler.sendEmptyMessageDelayed(R.id.metrics_update, METRICS_UPDATE_INTERVAL_MS);
+            break;
+        case R.id.governor_tick:
+            if (mHandler == null) {
+                break;
+            }
+            // 予定時刻からの遅れを UI スレッドの混み具合として流量制御に渡す
+            long lag = (SystemClock.uptimeMillis() - msg.getWhen()) * 1000000L;
+            mScanMetrics.uiLag.recordNanos(lag);
+            mGovernor.onUiLag(lag, System.nanoTime());
+            mHandler.sendEmptyMessageDelayed(R.id.governor_tick, GOVERNOR_TICK_INTERVAL_MS);
             break;
         }
         return false;
     }
 
-    @Override
-    // Camera.PreviewCallback
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        if (mDecodeThread != null) {
-            // プレビューイメージを認識スレッドへ渡しコードの読取りを指示
-            Handler h = mDecodeThread.getHandler();
-            Message msg = h.obtainMessage(R.id.decode,
-                mConfigManager.getCameraResolution().x,
-                mConfigManager.getCameraResolution().y, data);
-            msg.sendToTarget();
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    // 認識スレッドからフレーム順に呼ばれ 認識結果を UI スレッドへ通知
+    private final MyFrameDispatcher.ResultSink mResultSink = new MyFrameDispatcher.ResultSink() {
+        @Override
+        public void onResult(long seq, Result[] results) {
+            Handler handler = mHandler;
+            if (handler == null) {
+                return;
+            }
+            MyFocusScheduler focus = mFocusScheduler;
+            MyCameraThread camera = mCameraThread;
+            if (focus != null && focus.onFrame(results != null, mQualityGate.getLastSharpness(),
+                    SystemClock.uptimeMillis())) {
+                // カメラの操作はカメラスレッドで行う
+                if (camera != null) {
+                    camera.autoFocus(focus);
+                } else {
+                    focus.onFocusDone(false);
+                }
+            }
+            if (results == null) {
+                // arg1 はトレース用のフレーム番号
+                Message.obtain(handler, R.id.decode_failed, (int) seq, 0).sendToTarget();
+            } else if (mMultiMode) {
+                long now = SystemClock.uptimeMillis();
+                for (Result result : results) {
+                    if (!mDeduplicator.accept(result, now)) {
+                        // 直前に認識済みのコードは UI スレッドへ送らない
+                        continue;
+                    }
+                    // 新規の認識結果はまとめて一定間隔以上あけて通知
+                    long delay = mResultBatcher.add(result, now);
+                    if (delay >= 0) {
+                        handler.sendEmptyMessageDelayed(R.id.decode_batch, delay);
+                    }
+                }
+            } else {
+                // 1 フレーム中の全コードをまとめて通知
+                StringBuilder text = new StringBuilder(results[0].getText());
+                for (int i = 1; i < results.length; i++) {
+                    text.append('\n').append(results[i].getText());
+                }
+                Message.obtain(handler, R.id.decode_succeeded, (int) seq, 0, text.toString())
+                        .sendToTarget();
+            }
+        }
+    };
+
+    private void showResults(List<Result> results) {
+        if (results.isEmpty()) {
+            return;
         }
+        StringBuilder text = new StringBuilder();
+        for (Result result : results) {
+            if (_Log.DEVELOP) {
+                _Log.d(TAG, "decoded [" + result.getText() + "]");
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(result.getText());
+        }
+        Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
     }
 
-    public Handler getHandler() {
-        return mHandler;
+    // 認識結果の送信予定時刻から UI スレッドで処理されるまでの遅れ
+    private void recordDelivery(Message msg) {
+        mScanMetrics.delivery.recordMicros((SystemClock.uptimeMillis() - msg.getWhen()) * 1000L);
+    }
+
+    private void startMetrics() {
+        if (!mShowMetrics && !mExportMetrics) {
+            return;
+        }
+        mMetricsUpdates = 0;
+        if (mShowMetrics) {
+            mMetricsView.setVisibility(View.VISIBLE);
+        }
+        if (mExportMetrics && mMetricsWriter == null) {
+            mMetricsWriter = Executors.newSingleThreadExecutor();
+        }
+        mHandler.sendEmptyMessageDelayed(R.id.metrics_update, METRICS_UPDATE_INTERVAL_MS);
+    }
+
+    private void updateMetrics() {
+        if (mShowMetrics) {
+            mMetricsView.setText(mScanMetrics.toString());
+        }
+        if (mExportMetrics && ++mMetricsUpdates % METRICS_SNAPSHOT_EVERY == 0) {
+            writeMetricsSnapshot();
+        }
+    }
+
+    // ファイル書込みは UI スレッドを避けて専用スレッドで行う
+    private void writeMetricsSnapshot() {
+        final File file = new File(getFilesDir(), METRICS_SNAPSHOT_FILE);
+        mMetricsWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mScanMetrics.writeSnapshot(file);
+                } catch (IOException e) {
+                    _Log.w(TAG, "metrics snapshot failed", e);
+                }
+            }
+        });
+    }
+
+    // トレースを UI スレッド外でファイルへ書き出す
+    private void writeTrace() {
+        final MyTraceRecorder recorder = MyTraceRecorder.getActive();
+        if (recorder == null) {
+            return;
+        }
+        final File file = new File(getFilesDir(), TRACE_FILE);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.writeTo(file);
+                } catch (IOException e) {
+                    _Log.w(TAG, "trace write failed", e);
+                }
+            }
+        }, "trace-writer").start();
+    }
+
+    // 計測値 (認識スレッドから呼ばれる)
+    MyScanMetrics getScanMetrics() {
+        return mScanMetrics;
+    }
+
+    // プレビューフレーム上の切り出し範囲 (認識スレッドから呼ばれる)
+    MyCropGeometry getCropGeometry() {
+        return mCropGeometry;
+    }
+
+    // プレビューサイズの切替え判定 (認識スレッドから呼ばれる)
+    MyPreviewSizeController getPreviewSizeController() {
+        return mPreviewSizeController;
+    }
+
+    // プレビューサイズの切替え要求 (認識スレッドから呼ばれる) カメラの操作はカメラスレッドで行う
+    void requestPreviewSize(int index) {
+        MyCameraThread camera = mCameraThread;
+        MyPreviewSizeController sizeController = mPreviewSizeController;
+        if (sizeController == null) {
+            return;
+        }
+        if (camera == null) {
+            sizeController.onSwitched(sizeController.getCurrent());
+            return;
+        }
+        camera.setPreviewSize(sizeController, index);
+    }
+
+    // 認識スレッド共通のフレーム品質判定 (認識スレッドから呼ばれる)
+    MyFrameQualityGate getQualityGate() {
+        return mQualityGate;
+    }
+
+    // 認識スレッド共通の空振りキャッシュ (認識スレッドから呼ばれる)
+    MyFrameHashCache getMissCache() {
+        return mMissCache;
     }
 
-    public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int w, int h) {
-        // プレビューフレームデータからファインダ矩形範囲の PlanarYUVLuminanceSource を生成
+    // ファインダ矩形を画面座標からプレビューフレーム座標へ変換
+    // レイアウト変更時とカメラ開始時のみ呼ばれ 入力が変わらなければ再計算しない
+    private void updateCropGeometry() {
+        Point screen = mConfigManager == null ? null : mConfigManager.getScreenResolution();
+        Point camera = mConfigManager == null ? null : mConfigManager.getCameraResolution();
         int left = mFinderView.getLeft();
         int top = mFinderView.getTop();
         int width = mFinderView.getWidth();
         int height = mFinderView.getHeight();
-        return new PlanarYUVLuminanceSource(data, w, h, left, top, width, height, false);
-    }    
-    
+        if (screen == null || camera == null || width <= 0 || height <= 0) {
+            return;
+        }
+        MyCropGeometry current = mCropGeometry;
+        if (current != null && current.isFor(left, top, width, height,
+                screen.x, screen.y, camera.x, camera.y)) {
+            return;
+        }
+        MyCropGeometry geometry = new MyCropGeometry(left, top, width, height,
+                screen.x, screen.y, camera.x, camera.y);
+        mResultPointCallback.setCropGeometry(geometry);
+        mCropGeometry = geometry;
+        _Log.i(TAG, "crop: " + geometry);
+    }
+
     private void stopIt() {
         closeCamera();
+        if (mHandler != null) {
+            mHandler.removeMessages(R.id.metrics_update);
+            mHandler.removeMessages(R.id.governor_tick);
+        }
         mHandler = null;
-        if (mDecodeThread != null) {
+        if (mDecodeThreads != null) {
             // 認識スレッドを終了させる
-            Message msg = Message.obtain(mDecodeThread.getHandler(), R.id.quit);
-            msg.sendToTarget();
-            try {
-                mDecodeThread.join(500L);
-            } catch (InterruptedException e) {
+            for (MyDecodeThread thread : mDecodeThreads) {
+                Message msg = Message.obtain(thread.getHandler(), R.id.quit);
+                msg.sendToTarget();
+            }
+            for (MyDecodeThread thread : mDecodeThreads) {
+                try {
+                    thread.join(500L);
+                } catch (InterruptedException e) {
+                }
+            }
+            if (_Log.DEVELOP) {
+                _Log.i(TAG, "metrics: " + mScanMetrics);
+                _Log.i(TAG, "quality gate: " + mQualityGate);
+                _Log.i(TAG, "miss cache: " + mMissCache);
+                _Log.i(TAG, "governor: " + mGovernor);
+                _Log.i(TAG, "focus: " + mFocusScheduler);
+                _Log.i(TAG, "preview size: " + mPreviewSizeController);
+                if (mMultiMode) {
+                    _Log.i(TAG, "multi scan: " + mDeduplicator + " " + mResultBatcher);
+                }
+            }
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_MARK, -1, MyTraceRecorder.OUTCOME_NONE, 0);
+            writeTrace();
+            mDecodeThreads = null;
+            mDispatcher = null;
+            if (mMetricsWriter != null) {
+                // 最終値を書き出してから書込みスレッドを終了
+                writeMetricsSnapshot();
+                mMetricsWriter.shutdown();
+                mMetricsWriter = null;
             }
-            mDecodeThread = null;
         }
         if (!mHasSurface) {
             SurfaceHolder holder = mSurfaceView.getHolder();
@@ -188,39 +527,52 @@ public class MyActivity extends Activity implements SurfaceHolder.Callback,
         }        
     }
 
-    private void openCamera(SurfaceHolder holder) throws IOException {
-        if (mCamera == null) {
-            mCamera = Camera.open();
-            if (mCamera == null) {
-                throw new IOException();
-            }
+    private MyCameraSource createCameraSource(int workers) {
+        SurfaceHolder holder = mSurfaceView.getHolder();
+        if (mUseCamera2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && MyCamera2FrameSource.isSupported(this)) {
+            // Y プレーンを複製せずに認識 (LEGACY 相当の機種では旧 API の方が素直)
+            _Log.i(TAG, "camera: Camera2");
+            return new MyCamera2FrameSource(this, mConfigManager, holder,
+                    workers + SPARE_PREVIEW_BUFFERS);
         }
-        mCamera.setPreviewDisplay(holder);
-        mConfigManager.initFromCameraParameters(mCamera);
-        mConfigManager.setDesiredCameraParameters(mCamera, false);
-        mCamera.startPreview();
-        if (mTimerFocus == null) {
-            mTimerFocus = new Timer(false);
-            mTimerFocus.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    mCamera.autoFocus(null);
-                }
-            }, 500, 2000); // 2秒間隔でオートフォーカス
+        return new MyCameraFrameSource(mConfigManager, holder, workers + SPARE_PREVIEW_BUFFERS);
+    }
+
+    private void startCamera() {
+        // カメラスレッドでプレビューを開始し プレビューフレームを認識スレッドへ供給
+        if (mCameraThread != null) {
+            mCameraThread.startPreview(mDispatcher);
+        }
+    }
+
+    // プレビュー開始後の初期化 (UI スレッド)
+    private void onCameraReady() {
+        // 認識結果とフレームの鮮鋭度に応じてオートフォーカスを起動
+        mFocusScheduler = new MyFocusScheduler(mConfigManager.needsFocusCycles());
+        if (mDynamicPreviewSize) {
+            // 認識時間がフレーム処理予算に収まるようプレビューサイズを切り替える
+            int[][] sizes = mConfigManager.getCandidateSizes();
+            int current = mConfigManager.indexOf(mConfigManager.getCameraResolution());
+            if (sizes.length > 1 && current >= 0) {
+                mPreviewSizeController = new MyPreviewSizeController(sizes, current,
+                        mDecodeThreads.length * 1000L / TARGET_DECODE_FPS);
+            }
         }
-        // PreviewCallback を発動させ初回の認識処理を駆動
-        mCamera.setOneShotPreviewCallback(this);
+        // プレビューサイズ確定後に切り出し範囲を算出
+        updateCropGeometry();
     }
 
     private void closeCamera() {
-        if (mTimerFocus != null) {
-            mTimerFocus.cancel();
-            mTimerFocus = null;
-        }
-        if (mCamera != null) {
-            mCamera.stopPreview();
-            mCamera.release();
-            mCamera = null;
+        MyCameraThread camera = mCameraThread;
+        mCameraThread = null;
+        if (camera != null) {
+            // 受付済みの要求の後でカメラを解放させ 次回のオープンに備えて終了を待つ
+            camera.quit();
+            try {
+                camera.join(CAMERA_CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+            }
         }
     }
 
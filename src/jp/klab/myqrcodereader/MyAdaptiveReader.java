@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.datamatrix.DataMatrixReader;
+import com.google.zxing.oned.MultiFormatOneDReader;
+import com.google.zxing.qrcode.QRCodeReader;
+
+/**
+ * A replacement for MultiFormatReader which learns which kinds of code a
+ * deployment actually scans.
+ * <p>
+ * The configured formats are split into reader groups: QR, Data Matrix and
+ * all 1D symbologies together. The 1D group is one MultiFormatOneDReader,
+ * which scans each row once for every 1D format, so that a frame without a
+ * code costs one set of row scans rather than one per symbology. Every group
+ * keeps a hit count and the time spent in it, both halved every
+ * {@link #DECAY_FRAMES} frames so the statistics follow a changing workload.
+ * Groups are tried in order of hits per unit of decode time. Once some group
+ * has hits, a group which has been tried {@link #PRUNE_MIN_ATTEMPTS} times
+ * without a single hit is skipped, except on every
+ * {@link #FULL_SWEEP_INTERVAL}th frame, when all groups are tried so that a
+ * rarely seen kind of code is still found and re-admitted.
+ * <p>
+ * Not thread safe; each decoder owns one instance.
+ */
+final class MyAdaptiveReader implements Reader {
+
+    private static final int FULL_SWEEP_INTERVAL = 8;
+    private static final int PRUNE_MIN_ATTEMPTS = 32;
+    private static final int DECAY_FRAMES = 256;
+
+    private static final class Group {
+        final String name;
+        final Reader reader;
+        final Map<DecodeHintType, Object> hints;
+        MyLatencyHistogram latency;
+        long hits;
+        long attempts;
+        long nanos;
+
+        Group(String name, Reader reader, Map<DecodeHintType, Object> hints) {
+            this.name = name;
+            this.reader = reader;
+            this.hints = hints;
+        }
+
+        // 単位時間あたりのヒット数 (未計測のグループは先に試す)
+        double score() {
+            double cost = attempts == 0 ? 1.0 : (double) nanos / attempts + 1.0;
+            return (hits + 1.0) / cost;
+        }
+    }
+
+    private final Group[] groups;
+    private long frames;
+
+    MyAdaptiveReader(Map<DecodeHintType, Object> hints) {
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> formats = (Collection<BarcodeFormat>) hints
+                .get(DecodeHintType.POSSIBLE_FORMATS);
+        if (formats == null) {
+            formats = MyDecodeHints.defaultFormats();
+        }
+        Group[] all = new Group[] {
+                group("QR", formats, hints, EnumSet.of(BarcodeFormat.QR_CODE)),
+                group("DATA_MATRIX", formats, hints, EnumSet.of(BarcodeFormat.DATA_MATRIX)),
+                group("ONE_D", formats, hints, EnumSet.of(BarcodeFormat.UPC_A,
+                        BarcodeFormat.UPC_E, BarcodeFormat.EAN_13, BarcodeFormat.EAN_8,
+                        BarcodeFormat.CODE_128, BarcodeFormat.CODE_39, BarcodeFormat.CODE_93,
+                        BarcodeFormat.ITF, BarcodeFormat.CODABAR, BarcodeFormat.RSS_14)),
+        };
+        int count = 0;
+        for (Group g : all) {
+            if (g != null) {
+                count++;
+            }
+        }
+        groups = new Group[count];
+        count = 0;
+        for (Group g : all) {
+            if (g != null) {
+                groups[count++] = g;
+            }
+        }
+    }
+
+    /**
+     * Records the time of every attempt of each group into the given
+     * metrics, or stops recording if null.
+     */
+    void setMetrics(MyScanMetrics metrics) {
+        for (Group g : groups) {
+            g.latency = metrics != null ? metrics.reader(g.name) : null;
+        }
+    }
+
+    private static Group group(String name, Collection<BarcodeFormat> configured,
+            Map<DecodeHintType, Object> hints, EnumSet<BarcodeFormat> members) {
+        members.retainAll(configured);
+        if (members.isEmpty()) {
+            return null;
+        }
+        Map<DecodeHintType, Object> groupHints = new EnumMap<DecodeHintType, Object>(hints);
+        groupHints.put(DecodeHintType.POSSIBLE_FORMATS, members);
+        Reader reader;
+        if (members.contains(BarcodeFormat.QR_CODE)) {
+            reader = new QRCodeReader();
+        } else if (members.contains(BarcodeFormat.DATA_MATRIX)) {
+            reader = new DataMatrixReader();
+        } else {
+            reader = new MultiFormatOneDReader(groupHints);
+        }
+        return new Group(name, reader, groupHints);
+    }
+
+    @Override
+    public Result decode(BinaryBitmap image) throws NotFoundException {
+        frames++;
+        if (frames % DECAY_FRAMES == 0) {
+            for (Group g : groups) {
+                g.hits >>= 1;
+                g.attempts >>= 1;
+                g.nanos >>= 1;
+            }
+        }
+        boolean fullSweep = frames % FULL_SWEEP_INTERVAL == 0;
+        boolean anyHits = false;
+        for (Group g : groups) {
+            anyHits |= g.hits > 0;
+        }
+        try {
+            for (Group g : groups) {
+                if (!fullSweep && anyHits && g.hits == 0 && g.attempts >= PRUNE_MIN_ATTEMPTS) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                Result result = null;
+                // MyReaderRace に打ち切られた試行は非検査例外 (Cancelled) で
+                // ここを抜けるので 以下の試行回数・時間には数えない
+                try {
+                    result = g.reader.decode(image, g.hints);
+                } catch (ReaderException re) {
+                    // continue
+                }
+                long nanos = System.nanoTime() - start;
+                g.attempts++;
+                g.nanos += nanos;
+                if (g.latency != null) {
+                    g.latency.recordNanos(nanos);
+                }
+                if (result != null) {
+                    g.hits++;
+                    return result;
+                }
+            }
+            throw NotFoundException.getNotFoundInstance();
+        } finally {
+            sortGroups();
+        }
+    }
+
+    @Override
+    public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints)
+            throws NotFoundException {
+        return decode(image);
+    }
+
+    @Override
+    public void reset() {
+        for (Group g : groups) {
+            g.reader.reset();
+        }
+    }
+
+    // グループ数は高々 3 なので挿入ソートで並べ替え (アロケーション無し)
+    private void sortGroups() {
+        for (int i = 1; i < groups.length; i++) {
+            Group g = groups[i];
+            double score = g.score();
+            int j = i - 1;
+            while (j >= 0 && groups[j].score() < score) {
+                groups[j + 1] = groups[j];
+                j--;
+            }
+            groups[j + 1] = g;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Group g : groups) {
+            sb.append(g.name).append(" hits=").append(g.hits)
+                    .append(" attempts=").append(g.attempts)
+                    .append(" us/attempt=").append(g.attempts == 0 ? 0 : g.nanos / g.attempts / 1000)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
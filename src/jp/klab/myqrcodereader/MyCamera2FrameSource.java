@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * The back camera as a frame source through Camera2 (API 21 and later). The
+ * preview runs into the SurfaceView and into an ImageReader of YUV_420_888
+ * images; each image is handed to the decoders as a {@link MyYPlane} over the
+ * ByteBuffer of its Y plane, with its row and pixel strides, so the
+ * luminance is never copied out of the image. The image is closed when the
+ * frame is released. At most maxImages images are held at a time; a frame
+ * arriving while all of them are being decoded is skipped. That part is
+ * {@link MyImageFrameSource}, which runs off-device as well.
+ * <p>
+ * The camera delivers its callbacks on a thread of its own, so that
+ * {@link #open} and {@link #start} can wait for the device and the capture
+ * session to be ready. The capture session is only created once the preview
+ * surface has been resized to the capture size, since a session configured
+ * on a surface of another size fails or scales the preview. The focus runs
+ * in continuous mode when the camera has it; there are no autofocus cycles,
+ * and the capture size is fixed.
+ * <p>
+ * This is the alternative backend, used only when the activity opts in: the
+ * focus scheduling, the runtime preview size switching, the preview buffer
+ * ring and the cached camera configuration of {@link MyCameraFrameSource}
+ * have no counterpart here. Devices whose Camera2 support is only a layer
+ * over the legacy API gain nothing from it; {@link #isSupported} is false for
+ * them, and {@link MyCameraFrameSource} is used instead.
+ */
+@TargetApi(21)
+final class MyCamera2FrameSource implements MyCameraSource {
+
+    private static final String TAG = "QR";
+
+    private static final long OPEN_TIMEOUT_MS = 2500L;
+
+    private final Context context;
+    private final MyCameraConfigurationManager configManager;
+    private final SurfaceHolder holder;
+    private final int maxImages;
+    private final MyImageFrameSource<Image> frames = new MyImageFrameSource<Image>();
+    private HandlerThread cameraThread = null;
+    private Handler cameraHandler = null;
+    private CameraDevice device = null;
+    private CameraCaptureSession session = null;
+    private ImageReader reader = null;
+
+    /**
+     * @param maxImages
+     *            number of images which may be held at a time, at least the
+     *            number of decode workers plus two
+     */
+    MyCamera2FrameSource(Context context, MyCameraConfigurationManager configManager,
+            SurfaceHolder holder, int maxImages) {
+        this.context = context;
+        this.configManager = configManager;
+        this.holder = holder;
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * @return true if the back camera has Camera2 support beyond the legacy
+     *         level; to be asked on API 21 and later only
+     */
+    static boolean isSupported(Context context) {
+        try {
+            CameraManager manager = (CameraManager) context
+                    .getSystemService(Context.CAMERA_SERVICE);
+            String id = findBackCamera(manager);
+            if (id == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(id).get(
+                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null
+                    && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static String findBackCamera(CameraManager manager) throws CameraAccessException {
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id).get(
+                    CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (device != null) {
+            return;
+        }
+        if (cameraThread == null) {
+            cameraThread = new HandlerThread("camera2");
+            cameraThread.start();
+            cameraHandler = new Handler(cameraThread.getLooper());
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = findBackCamera(manager);
+            if (id == null) {
+                throw new IOException("No back camera");
+            }
+            StreamConfigurationMap map = manager.getCameraCharacteristics(id).get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size[] outputSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+            int[][] sizes = new int[outputSizes.length][];
+            for (int i = 0; i < outputSizes.length; i++) {
+                sizes[i] = new int[] { outputSizes[i].getWidth(), outputSizes[i].getHeight() };
+            }
+            configManager.initFromOutputSizes(sizes);
+            device = openDevice(manager, id);
+        } catch (CameraAccessException e) {
+            throw new IOException(e.toString());
+        }
+        Point resolution = configManager.getCameraResolution();
+        reader = ImageReader.newInstance(resolution.x, resolution.y, ImageFormat.YUV_420_888,
+                maxImages);
+        ReaderQueue queue = new ReaderQueue(reader);
+        frames.attach(queue);
+        reader.setOnImageAvailableListener(queue, cameraHandler);
+    }
+
+    private CameraDevice openDevice(CameraManager manager, String id)
+            throws CameraAccessException, IOException {
+        // 結果の受渡し (タイムアウト後に開いたデバイスはその場で閉じる)
+        final CameraDevice[] opened = new CameraDevice[1];
+        final boolean[] abandoned = new boolean[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        manager.openCamera(id, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                synchronized (opened) {
+                    if (abandoned[0]) {
+                        camera.close();
+                    } else {
+                        opened[0] = camera;
+                    }
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                // 他のアプリに奪われた 以後フレームは届かない
+                camera.close();
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                _Log.w(TAG, "camera error " + error);
+                camera.close();
+                latch.countDown();
+            }
+        }, cameraHandler);
+        IOException failure = null;
+        try {
+            await(latch);
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (opened) {
+            abandoned[0] = true;
+            if (opened[0] != null) {
+                return opened[0];
+            }
+        }
+        throw failure != null ? failure : new IOException("Camera not opened");
+    }
+
+    @Override
+    public synchronized void start(Callback callback) throws IOException {
+        open();
+        frames.start(callback);
+        resizeSurface(configManager.getCameraResolution());
+        List<Surface> targets = Arrays.asList(holder.getSurface(), reader.getSurface());
+        final CameraCaptureSession[] configured = new CameraCaptureSession[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            device.createCaptureSession(targets, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession s) {
+                    configured[0] = s;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession s) {
+                    latch.countDown();
+                }
+            }, cameraHandler);
+            await(latch);
+            session = configured[0];
+            if (session == null) {
+                throw new IOException("Capture session not configured");
+            }
+            CaptureRequest.Builder builder = device.createCaptureRequest(
+                    CameraDevice.TEMPLATE_PREVIEW);
+            for (Surface surface : targets) {
+                builder.addTarget(surface);
+            }
+            if (hasContinuousFocus()) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE,
+                        CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            }
+            session.setRepeatingRequest(builder.build(), null, cameraHandler);
+        } catch (CameraAccessException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    // SurfaceView のバッファをキャプチャサイズに合わせ surfaceChanged() で確定するまで待つ
+    private void resizeSurface(final Point size) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SurfaceHolder.Callback resized = new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(SurfaceHolder h) {
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder h, int format, int width, int height) {
+                if (width == size.x && height == size.y) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder h) {
+            }
+        };
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Rect frame = holder.getSurfaceFrame();
+                if (frame.width() == size.x && frame.height() == size.y) {
+                    // 既に同じサイズなら surfaceChanged() は呼ばれない
+                    latch.countDown();
+                    return;
+                }
+                holder.addCallback(resized);
+                holder.setFixedSize(size.x, size.y);
+            }
+        });
+        try {
+            await(latch);
+        } finally {
+            holder.removeCallback(resized);
+        }
+    }
+
+    private boolean hasContinuousFocus() throws CameraAccessException {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        String id = findBackCamera(manager);
+        int[] modes = id == null ? null : manager.getCameraCharacteristics(id).get(
+                CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (modes != null) {
+            for (int mode : modes) {
+                if (mode == CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Camera timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    @Override
+    public void releaseFrame(MyYPlane plane) {
+        frames.releaseFrame(plane);
+    }
+
+    @Override
+    public void autoFocus(MyFocusScheduler scheduler) {
+        // 連続フォーカスに任せる
+        scheduler.onFocusDone(false);
+    }
+
+    @Override
+    public boolean setPreviewSize(Point size) {
+        // キャプチャサイズはセッション中固定
+        return false;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (session != null) {
+            try {
+                session.stopRepeating();
+            } catch (CameraAccessException e) {
+            } catch (IllegalStateException e) {
+                // セッションが既に閉じている
+            }
+            session.close();
+            session = null;
+        }
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+        // セッションを閉じてから外す 認識中の画像が残っていれば
+        // ImageReader は全部返却された時点で閉じる
+        frames.stop();
+        reader = null;
+        if (cameraThread != null) {
+            cameraThread.quit();
+            cameraThread = null;
+            cameraHandler = null;
+        }
+    }
+
+    /**
+     * An ImageReader as the image queue of {@link MyImageFrameSource}.
+     */
+    private final class ReaderQueue implements MyImageFrameSource.ImageQueue<Image>,
+            ImageReader.OnImageAvailableListener {
+
+        private final ImageReader reader;
+
+        ReaderQueue(ImageReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        // ImageReader.OnImageAvailableListener
+        public void onImageAvailable(ImageReader r) {
+            frames.onImageAvailable(this);
+        }
+
+        @Override
+        public Image acquireLatest() {
+            try {
+                return reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                // maxImages 枚すべてが認識中
+                return null;
+            }
+        }
+
+        @Override
+        public int getWidth(Image image) {
+            return image.getWidth();
+        }
+
+        @Override
+        public int getHeight(Image image) {
+            return image.getHeight();
+        }
+
+        @Override
+        public void setYPlane(Image image, MyYPlane plane) {
+            Image.Plane y = image.getPlanes()[0];
+            plane.set(y.getBuffer(), y.getRowStride(), y.getPixelStride());
+        }
+
+        @Override
+        public void close(Image image) {
+            image.close();
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
@@ -21,12 +21,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.hardware.Camera;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -35,6 +37,13 @@ import java.util.List;
 /**
  * A class which deals with reading, parsing, and setting the camera parameters
  * which are used to configure the camera hardware.
+ * <p>
+ * The preview sizes and the focus mode negotiated for a camera are cached in
+ * the default shared preferences under its id, along with the build
+ * fingerprint and the screen size they were negotiated for. As long as those
+ * match, later launches take them from the cache instead of going through the
+ * supported values again. The camera may be configured on a background
+ * thread; the resolutions are then read by the UI thread.
  */
 final class MyCameraConfigurationManager {
 
@@ -47,20 +56,80 @@ final class MyCameraConfigurationManager {
     // accidental selection of very low resolution on some devices.
     private static final int MIN_PREVIEW_PIXELS = 470 * 320; // normal screen
     private static final int MAX_PREVIEW_PIXELS = 1280 * 720;
+    // 認識時間に応じて切り替えるプレビューサイズの上限とアスペクト比の許容差
+    private static final int MAX_DYNAMIC_PREVIEW_PIXELS = 1920 * 1080;
+    private static final float MAX_ASPECT_RATIO_DIFF = 0.05f;
+    // カメラ ID ごとの設定キャッシュのキー
+    private static final String KEY_CONFIG = "config";
+    private static final String KEY_PREVIEW_SIZE = "preview_size";
+    private static final String KEY_PREVIEW_SIZES = "preview_sizes";
+    private static final String KEY_FOCUS_MODE = "focus_mode";
 
     private final Context context;
-    private Point screenResolution;
-    private Point cameraResolution;
+    private final int cameraId;
+    private volatile Point screenResolution;
+    private volatile Point cameraResolution;
+    private int[][] candidateSizes;
+    private String focusMode;
+    private boolean cached;
 
-    MyCameraConfigurationManager(Context context) {
+    /**
+     * @param cameraId
+     *            id of the camera to configure, under which its configuration
+     *            is cached
+     */
+    MyCameraConfigurationManager(Context context, int cameraId) {
         this.context = context;
+        this.cameraId = cameraId;
     }
 
     /**
-     * Reads, one time, values from the camera that are needed by the app.
+     * Reads, one time, values from the camera that are needed by the app,
+     * unless they are cached.
      */
     void initFromCameraParameters(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
+        initScreenResolution();
+        cached = loadConfiguration();
+        if (!cached) {
+            findPreviewSizes(camera.getParameters(), true);
+        }
+        _Log.i(TAG, "Camera resolution: " + cameraResolution + (cached ? " (cached)" : ""));
+    }
+
+    /**
+     * Chooses the capture size among the output sizes of a Camera2 device,
+     * by the same rule as the preview size of a legacy camera. The size is
+     * fixed for the session: it is the only candidate.
+     */
+    void initFromOutputSizes(int[][] sizes) {
+        initScreenResolution();
+        int[][] sorted = sizes.clone();
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                int aPixels = a[0] * a[1];
+                int bPixels = b[0] * b[1];
+                return aPixels > bPixels ? -1 : (aPixels < bPixels ? 1 : 0);
+            }
+        });
+        Point bestSize = findBestSize(sorted, screenResolution);
+        if (bestSize == null) {
+            // 範囲内のサイズが無ければ上限以下で最大のもの
+            int[] fallback = sorted[sorted.length - 1];
+            for (int[] size : sorted) {
+                if (size[0] * size[1] <= MAX_PREVIEW_PIXELS) {
+                    fallback = size;
+                    break;
+                }
+            }
+            bestSize = new Point(fallback[0], fallback[1]);
+        }
+        cameraResolution = bestSize;
+        candidateSizes = new int[][] { { bestSize.x, bestSize.y } };
+        _Log.i(TAG, "Capture resolution: " + cameraResolution);
+    }
+
+    private void initScreenResolution() {
         WindowManager manager = (WindowManager) context
                 .getSystemService(Context.WINDOW_SERVICE);
         Display display = manager.getDefaultDisplay();
@@ -78,12 +147,35 @@ final class MyCameraConfigurationManager {
         }
         screenResolution = new Point(width, height);
         _Log.i(TAG, "Screen resolution: " + screenResolution);
-        cameraResolution = findBestPreviewSizeValue(parameters,
-                screenResolution);
-        _Log.i(TAG, "Camera resolution: " + cameraResolution);
+    }
+
+    private void findPreviewSizes(Camera.Parameters parameters, boolean useStored) {
+        Point bestSize = findBestPreviewSizeValue(parameters, screenResolution);
+        candidateSizes = findCandidatePreviewSizes(parameters, bestSize);
+        // 前回の起動で落ち着いたサイズから始める
+        Point stored = useStored ? parsePreviewSize(PreferenceManager
+                .getDefaultSharedPreferences(context).getString(key(KEY_PREVIEW_SIZE), null))
+                : null;
+        cameraResolution = stored != null && indexOf(stored) >= 0 ? stored : bestSize;
     }
 
     void setDesiredCameraParameters(Camera camera, boolean safeMode) {
+        if (cached) {
+            try {
+                Camera.Parameters parameters = camera.getParameters();
+                if (focusMode != null) {
+                    parameters.setFocusMode(focusMode);
+                }
+                parameters.setPreviewSize(cameraResolution.x, cameraResolution.y);
+                camera.setParameters(parameters);
+                return;
+            } catch (RuntimeException e) {
+                // キャッシュした設定を受け付けないので 通常の手順でやり直す
+                _Log.w(TAG, "Cached camera configuration rejected", e);
+                cached = false;
+                findPreviewSizes(camera.getParameters(), false);
+            }
+        }
         Camera.Parameters parameters = camera.getParameters();
         if (parameters == null) {
             _Log.w(TAG, "Device error: no camera parameters are available. Proceeding without configuration.");
@@ -94,25 +186,139 @@ final class MyCameraConfigurationManager {
             _Log.w(TAG, "In camera config safe mode -- most settings will not be honored");
         }
         String focusMode = null;
-        focusMode = findSettableValue(parameters.getSupportedFocusModes(),
-                Camera.Parameters.FOCUS_MODE_AUTO);
+        if (!safeMode) {
+            // 連続フォーカスが使えればカメラ側に任せる
+            focusMode = findSettableValue(parameters.getSupportedFocusModes(),
+                    Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
+                    Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+        }
+        if (focusMode == null) {
+            focusMode = findSettableValue(parameters.getSupportedFocusModes(),
+                    Camera.Parameters.FOCUS_MODE_AUTO);
+        }
         // Maybe selected auto-focus but not available, so fall through here:
         if (!safeMode && focusMode == null) {
             focusMode = findSettableValue(parameters.getSupportedFocusModes(),
-                    Camera.Parameters.FOCUS_MODE_MACRO, "edof"); // Camera.Parameters.FOCUS_MODE_EDOF
-                                                                    // in 2.2+
+                    Camera.Parameters.FOCUS_MODE_MACRO, Camera.Parameters.FOCUS_MODE_EDOF);
         }
         if (focusMode != null) {
             parameters.setFocusMode(focusMode);
         }
+        this.focusMode = focusMode;
         parameters.setPreviewSize(cameraResolution.x, cameraResolution.y);
         camera.setParameters(parameters);
+        if (!safeMode) {
+            storeConfiguration();
+        }
+    }
+
+    /**
+     * @return true if the cached configuration was loaded
+     */
+    private boolean loadConfiguration() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!configurationId().equals(prefs.getString(key(KEY_CONFIG), null))) {
+            return false;
+        }
+        String sizes = prefs.getString(key(KEY_PREVIEW_SIZES), "");
+        String[] values = sizes.length() == 0 ? new String[0] : sizes.split(",");
+        int[][] parsed = new int[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            Point size = parsePreviewSize(values[i]);
+            if (size == null) {
+                return false;
+            }
+            parsed[i] = new int[] { size.x, size.y };
+        }
+        candidateSizes = parsed;
+        Point size = parsePreviewSize(prefs.getString(key(KEY_PREVIEW_SIZE), null));
+        if (size == null || indexOf(size) < 0) {
+            return false;
+        }
+        String mode = prefs.getString(key(KEY_FOCUS_MODE), "");
+        cameraResolution = size;
+        focusMode = mode.length() == 0 ? null : mode;
+        return true;
+    }
+
+    private void storeConfiguration() {
+        StringBuilder sizes = new StringBuilder();
+        for (int[] size : candidateSizes) {
+            if (sizes.length() > 0) {
+                sizes.append(',');
+            }
+            sizes.append(size[0]).append('x').append(size[1]);
+        }
+        SharedPreferences.Editor editor = PreferenceManager
+                .getDefaultSharedPreferences(context).edit();
+        editor.putString(key(KEY_CONFIG), configurationId());
+        editor.putString(key(KEY_PREVIEW_SIZES), sizes.toString());
+        editor.putString(key(KEY_PREVIEW_SIZE), cameraResolution.x + "x" + cameraResolution.y);
+        editor.putString(key(KEY_FOCUS_MODE), focusMode != null ? focusMode : "");
+        editor.commit();
+    }
+
+    // OS の更新や別の画面サイズでは設定をやり直す
+    private String configurationId() {
+        return Build.FINGERPRINT + "/" + screenResolution.x + "x" + screenResolution.y;
+    }
+
+    private String key(String name) {
+        return "camera." + cameraId + "." + name;
     }
 
     Point getCameraResolution() {
         return cameraResolution;
     }
 
+    /**
+     * Sets the preview size the camera has been switched to.
+     */
+    void setCameraResolution(Point cameraResolution) {
+        this.cameraResolution = cameraResolution;
+    }
+
+    /**
+     * @return the preview sizes the resolution may be switched among, as
+     *         {width, height} by increasing pixel count; they include the
+     *         current resolution and share its aspect ratio
+     */
+    int[][] getCandidateSizes() {
+        return candidateSizes;
+    }
+
+    /**
+     * @return the index of the given size in {@link #getCandidateSizes()}, or
+     *         -1
+     */
+    int indexOf(Point size) {
+        for (int i = 0; i < candidateSizes.length; i++) {
+            if (candidateSizes[i][0] == size.x && candidateSizes[i][1] == size.y) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remembers the current resolution as the one to start with next time.
+     */
+    void storeCameraResolution() {
+        SharedPreferences.Editor editor = PreferenceManager
+                .getDefaultSharedPreferences(context).edit();
+        editor.putString(key(KEY_PREVIEW_SIZE), cameraResolution.x + "x" + cameraResolution.y);
+        editor.commit();
+    }
+
+    /**
+     * @return true if the focus mode set needs autofocus cycles to be started
+     *         by the app (auto and macro)
+     */
+    boolean needsFocusCycles() {
+        return Camera.Parameters.FOCUS_MODE_AUTO.equals(focusMode)
+                || Camera.Parameters.FOCUS_MODE_MACRO.equals(focusMode);
+    }
+
     Point getScreenResolution() {
         return screenResolution;
     }
@@ -154,14 +360,39 @@ final class MyCameraConfigurationManager {
         }
         //_Log.i(TAG, "Supported preview sizes: " + previewSizesString);
 
+        int[][] sizes = new int[supportedPreviewSizes.size()][];
+        for (int i = 0; i < sizes.length; i++) {
+            Camera.Size size = supportedPreviewSizes.get(i);
+            sizes[i] = new int[] { size.width, size.height };
+        }
+        Point bestSize = findBestSize(sizes, screenResolution);
+
+        if (bestSize == null) {
+            Camera.Size defaultSize = parameters.getPreviewSize();
+            bestSize = new Point(defaultSize.width, defaultSize.height);
+            Log.i(TAG, "No suitable preview sizes, using default: " + bestSize);
+        }
+
+        //_Log.i(TAG, "Found best approximate preview size: " + bestSize);
+        return bestSize;
+    }
+
+    /**
+     * @param sizes
+     *            the supported sizes as {width, height}, by decreasing pixel
+     *            count
+     * @return the size which matches the screen, or else the one closest to
+     *         its aspect ratio, or null if none is in the allowed range
+     */
+    private static Point findBestSize(int[][] sizes, Point screenResolution) {
         Point bestSize = null;
         float screenAspectRatio = (float) screenResolution.x
                 / (float) screenResolution.y;
 
         float diff = Float.POSITIVE_INFINITY;
-        for (Camera.Size supportedPreviewSize : supportedPreviewSizes) {
-            int realWidth = supportedPreviewSize.width;
-            int realHeight = supportedPreviewSize.height;
+        for (int[] supportedPreviewSize : sizes) {
+            int realWidth = supportedPreviewSize[0];
+            int realHeight = supportedPreviewSize[1];
             int pixels = realWidth * realHeight;
             if (pixels < MIN_PREVIEW_PIXELS || pixels > MAX_PREVIEW_PIXELS) {
                 continue;
@@ -185,15 +416,50 @@ final class MyCameraConfigurationManager {
                 diff = newDiff;
             }
         }
+        return bestSize;
+    }
 
-        if (bestSize == null) {
-            Camera.Size defaultSize = parameters.getPreviewSize();
-            bestSize = new Point(defaultSize.width, defaultSize.height);
-            Log.i(TAG, "No suitable preview sizes, using default: " + bestSize);
+    private static int[][] findCandidatePreviewSizes(Camera.Parameters parameters,
+            Point bestSize) {
+        List<Camera.Size> rawSupportedSizes = parameters.getSupportedPreviewSizes();
+        List<int[]> sizes = new ArrayList<int[]>();
+        sizes.add(new int[] { bestSize.x, bestSize.y });
+        if (rawSupportedSizes != null) {
+            float bestAspectRatio = (float) bestSize.x / (float) bestSize.y;
+            for (Camera.Size size : rawSupportedSizes) {
+                int pixels = size.width * size.height;
+                if (pixels < MIN_PREVIEW_PIXELS || pixels > MAX_DYNAMIC_PREVIEW_PIXELS
+                        || (size.width == bestSize.x && size.height == bestSize.y)) {
+                    continue;
+                }
+                float aspectRatio = (float) size.width / (float) size.height;
+                if (Math.abs(aspectRatio - bestAspectRatio) <= MAX_ASPECT_RATIO_DIFF) {
+                    sizes.add(new int[] { size.width, size.height });
+                }
+            }
         }
+        Collections.sort(sizes, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                int aPixels = a[0] * a[1];
+                int bPixels = b[0] * b[1];
+                return aPixels < bPixels ? -1 : (aPixels > bPixels ? 1 : 0);
+            }
+        });
+        return sizes.toArray(new int[sizes.size()][]);
+    }
 
-        //_Log.i(TAG, "Found best approximate preview size: " + bestSize);
-        return bestSize;
+    private static Point parsePreviewSize(String value) {
+        if (value == null) {
+            return null;
+        }
+        int x = value.indexOf('x');
+        try {
+            return new Point(Integer.parseInt(value.substring(0, x)),
+                    Integer.parseInt(value.substring(x + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
     }
 
     private static String findSettableValue(Collection<String> supportedValues,
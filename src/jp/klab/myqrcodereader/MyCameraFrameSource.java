@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+
+import android.graphics.Point;
+import android.hardware.Camera;
+import android.os.Build;
+import android.view.SurfaceHolder;
+
+/**
+ * The device camera as a frame source. On API 8 and later the preview runs
+ * continuously into the buffers of a {@link MyPreviewBufferPool}; on older
+ * devices a one-shot preview callback is re-armed each time a frame is
+ * released.
+ * <p>
+ * The camera is opened and configured by {@link #open}, which may run ahead
+ * of {@link #start} while the preview surface is not ready yet. The camera
+ * delivers its callbacks on the Looper of the thread which opened it.
+ * <p>
+ * Autofocus cycles are started by {@link #autoFocus} when a
+ * {@link MyFocusScheduler} asks for one, under the same lock as
+ * {@link #stop}, so a cycle is never started on a released camera.
+ * {@link #setPreviewSize} switches the preview size of the running camera
+ * under the same lock.
+ */
+final class MyCameraFrameSource implements MyCameraSource, Camera.PreviewCallback {
+
+    private static final String TAG = "QR";
+
+    // setPreviewCallbackWithBuffer() が使える環境ではバッファ再利用の連続キャプチャで動作
+    private final boolean continuousMode =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO;
+    private final MyCameraConfigurationManager configManager;
+    private final SurfaceHolder holder;
+    private final MyPreviewBufferPool bufferPool;
+    private Camera camera = null;
+    private volatile Callback callback;
+
+    /**
+     * @param bufferCount
+     *            preview buffers in the ring of the continuous mode
+     */
+    MyCameraFrameSource(MyCameraConfigurationManager configManager, SurfaceHolder holder,
+            int bufferCount) {
+        this.configManager = configManager;
+        this.holder = holder;
+        bufferPool = new MyPreviewBufferPool(bufferCount);
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (camera != null) {
+            return;
+        }
+        camera = Camera.open();
+        if (camera == null) {
+            throw new IOException();
+        }
+        try {
+            configManager.initFromCameraParameters(camera);
+            configManager.setDesiredCameraParameters(camera, false);
+        } catch (RuntimeException e) {
+            camera.release();
+            camera = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void start(Callback callback) throws IOException {
+        this.callback = callback;
+        open();
+        camera.setPreviewDisplay(holder);
+        camera.startPreview();
+        if (continuousMode) {
+            // 事前確保したバッファをカメラに渡し 以後は各フレームで PreviewCallback が発動
+            bufferPool.attach(camera, configManager.getCameraResolution());
+            camera.setPreviewCallbackWithBuffer(this);
+        } else {
+            // PreviewCallback を発動させ初回の認識処理を駆動
+            camera.setOneShotPreviewCallback(this);
+        }
+    }
+
+    @Override
+    // Camera.PreviewCallback
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        Callback cb = callback;
+        if (cb == null) {
+            bufferPool.release(data);
+            return;
+        }
+        Point resolution = configManager.getCameraResolution();
+        if (continuousMode && data.length != resolution.x * resolution.y * 3 / 2) {
+            // サイズ切替え前に撮られたフレーム
+            bufferPool.release(data);
+            return;
+        }
+        MyYPlane plane = continuousMode ? bufferPool.planeOf(data) : null;
+        if (plane == null) {
+            plane = new MyYPlane(data, resolution.x);
+        }
+        cb.onFrame(plane, resolution.x, resolution.y);
+    }
+
+    @Override
+    public synchronized void releaseFrame(MyYPlane plane) {
+        if (continuousMode) {
+            bufferPool.release(plane.array());
+        } else if (camera != null) {
+            // PreviewCallback を発動させ フレームイメージ取得～認識 を繰り返す
+            camera.setOneShotPreviewCallback(this);
+        }
+    }
+
+    @Override
+    public synchronized void autoFocus(final MyFocusScheduler scheduler) {
+        if (camera == null || callback == null) {
+            scheduler.onFocusDone(false);
+            return;
+        }
+        try {
+            camera.autoFocus(new Camera.AutoFocusCallback() {
+                @Override
+                public void onAutoFocus(boolean success, Camera camera) {
+                    scheduler.onFocusDone(success);
+                }
+            });
+        } catch (RuntimeException e) {
+            // プレビュー停止中などで開始できない
+            _Log.w(TAG, "autoFocus failed", e);
+            scheduler.onFocusDone(false);
+        }
+    }
+
+    /**
+     * Restarts the preview at the given size. Frames of the previous size
+     * still being decoded are dropped when released; if the camera rejects
+     * the size, the previous one is restored and those frames go back to the
+     * camera when released, not before.
+     */
+    @Override
+    public synchronized boolean setPreviewSize(Point size) {
+        if (camera == null || callback == null) {
+            return false;
+        }
+        Point previous = configManager.getCameraResolution();
+        if (previous.equals(size)) {
+            return true;
+        }
+        if (continuousMode) {
+            camera.setPreviewCallbackWithBuffer(null);
+        }
+        camera.stopPreview();
+        bufferPool.detach();
+        boolean done = apply(size);
+        if (!done) {
+            apply(previous);
+        }
+        configManager.setCameraResolution(done ? size : previous);
+        camera.startPreview();
+        if (continuousMode) {
+            bufferPool.attach(camera, configManager.getCameraResolution());
+            camera.setPreviewCallbackWithBuffer(this);
+        } else {
+            camera.setOneShotPreviewCallback(this);
+        }
+        return done;
+    }
+
+    private boolean apply(Point size) {
+        try {
+            Camera.Parameters parameters = camera.getParameters();
+            parameters.setPreviewSize(size.x, size.y);
+            camera.setParameters(parameters);
+            return true;
+        } catch (RuntimeException e) {
+            _Log.w(TAG, "setPreviewSize failed: " + size, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        callback = null;
+        bufferPool.detach();
+        if (camera != null) {
+            if (continuousMode) {
+                camera.setPreviewCallbackWithBuffer(null);
+            } else {
+                camera.setOneShotPreviewCallback(null);
+            }
+            camera.stopPreview();
+            camera.release();
+            camera = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+
+import android.graphics.Point;
+
+/**
+ * A device camera as a frame source, as driven by {@link MyCameraThread}:
+ * {@link MyCameraFrameSource} through the legacy Camera API and
+ * {@link MyCamera2FrameSource} through Camera2.
+ */
+interface MyCameraSource extends MyFrameSource {
+
+    /**
+     * Opens and configures the camera, if not done yet; may run ahead of
+     * {@link #start} while the preview surface is not ready yet.
+     */
+    void open() throws IOException;
+
+    /**
+     * Starts an autofocus cycle and reports its end to the scheduler, or
+     * reports a failure at once if it cannot be started.
+     */
+    void autoFocus(MyFocusScheduler scheduler);
+
+    /**
+     * Restarts the preview at the given size.
+     *
+     * @return false if the size could not be switched to, in which case the
+     *         previous size stays in use
+     */
+    boolean setPreviewSize(Point size);
+}
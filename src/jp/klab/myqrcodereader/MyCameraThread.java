@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * A Looper thread which owns the camera: every call to the
+ * {@link MyCameraSource} goes through it, so opening, configuring and
+ * restarting the camera never block the UI thread, and the camera delivers
+ * its preview frames and focus callbacks on this thread. The requests are
+ * handled in the order they are made, so the camera can be opened while the
+ * preview surface and the decode threads are still being set up.
+ * <p>
+ * Failures and the changes the UI has to follow are reported to the handler
+ * of the activity: R.id.error, R.id.camera_ready once the preview runs, and
+ * R.id.preview_size after a switch of the preview size. When the camera
+ * fails to open, the start request which follows is ignored, so the failure
+ * is reported once.
+ */
+final class MyCameraThread extends Thread implements Handler.Callback {
+
+    private static final String TAG = "QR";
+
+    private final MyCameraSource source;
+    private final MyCameraConfigurationManager configManager;
+    private final Handler uiHandler;
+    private final MyScanMetrics metrics;
+    private Handler handler;
+    // カメラのオープンに失敗した (このスレッドでのみ参照)
+    private boolean openFailed;
+    private final CountDownLatch handlerInitLatch = new CountDownLatch(1);
+
+    MyCameraThread(MyCameraSource source, MyCameraConfigurationManager configManager,
+            Handler uiHandler, MyScanMetrics metrics) {
+        super("camera");
+        this.source = source;
+        this.configManager = configManager;
+        this.uiHandler = uiHandler;
+        this.metrics = metrics;
+    }
+
+    private Handler getHandler() {
+        try {
+            handlerInitLatch.await(); // countDown() 待ち
+        } catch (InterruptedException ie) {
+        }
+        return handler;
+    }
+
+    /**
+     * Opens and configures the camera.
+     */
+    void openCamera() {
+        getHandler().obtainMessage(R.id.camera_open).sendToTarget();
+    }
+
+    /**
+     * Starts the preview and its frames into the given dispatcher.
+     */
+    void startPreview(MyFrameDispatcher dispatcher) {
+        getHandler().obtainMessage(R.id.camera_start, dispatcher).sendToTarget();
+    }
+
+    void autoFocus(MyFocusScheduler scheduler) {
+        getHandler().obtainMessage(R.id.auto_focus, scheduler).sendToTarget();
+    }
+
+    /**
+     * Switches the preview to the given size of the controller, and confirms
+     * the switch to it.
+     */
+    void setPreviewSize(MyPreviewSizeController controller, int index) {
+        getHandler().obtainMessage(R.id.preview_size, index, 0, controller).sendToTarget();
+    }
+
+    /**
+     * Stops the camera, after the requests already made, and ends the thread.
+     */
+    void quit() {
+        getHandler().obtainMessage(R.id.quit).sendToTarget();
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        handler = new Handler(this);
+        handlerInitLatch.countDown();
+        Looper.loop();
+    }
+
+    @Override
+    // Handler.Callback
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+        case R.id.camera_open:
+            long start = System.nanoTime();
+            try {
+                source.open();
+                metrics.cameraOpen.recordNanos(System.nanoTime() - start);
+            } catch (IOException e) {
+                openFailed = true;
+                fail(e);
+            } catch (RuntimeException e) {
+                // 他のアプリが使用中など
+                openFailed = true;
+                fail(e);
+            }
+            break;
+        case R.id.camera_start:
+            if (openFailed) {
+                // 失敗は通知済みなので開き直さない
+                break;
+            }
+            try {
+                ((MyFrameDispatcher) msg.obj).attachFrameSource(source);
+                Message.obtain(uiHandler, R.id.camera_ready).sendToTarget();
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            break;
+        case R.id.auto_focus:
+            source.autoFocus((MyFocusScheduler) msg.obj);
+            break;
+        case R.id.preview_size:
+            MyPreviewSizeController controller = (MyPreviewSizeController) msg.obj;
+            Point size = new Point(controller.getWidth(msg.arg1), controller.getHeight(msg.arg1));
+            if (source.setPreviewSize(size)) {
+                controller.onSwitched(msg.arg1);
+                // 次回の起動はこのサイズから
+                configManager.storeCameraResolution();
+                Message.obtain(uiHandler, R.id.preview_size).sendToTarget();
+            } else {
+                controller.onSwitched(controller.getCurrent());
+            }
+            break;
+        case R.id.quit:
+            source.stop();
+            Looper.myLooper().quit();
+            break;
+        }
+        return true;
+    }
+
+    private void fail(Exception e) {
+        _Log.w(TAG, "camera failed", e);
+        Message.obtain(uiHandler, R.id.error).sendToTarget();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * The viewfinder rectangle mapped from screen coordinates into preview frame
+ * coordinates. The preview is stretched over the whole screen, so each axis
+ * is scaled on its own. Instances are immutable: a new one is built only when
+ * the layout or the preview resolution changes, and decode threads read the
+ * precomputed crop without touching the view hierarchy.
+ */
+final class MyCropGeometry {
+
+    final int previewWidth;
+    final int previewHeight;
+    final int left;
+    final int top;
+    final int width;
+    final int height;
+
+    private final int viewLeft;
+    private final int viewTop;
+    private final int viewWidth;
+    private final int viewHeight;
+    private final int screenWidth;
+    private final int screenHeight;
+
+    MyCropGeometry(int viewLeft, int viewTop, int viewWidth, int viewHeight,
+            int screenWidth, int screenHeight, int previewWidth, int previewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0 || screenWidth <= 0 || screenHeight <= 0
+                || previewWidth <= 0 || previewHeight <= 0) {
+            throw new IllegalArgumentException("Empty viewfinder, screen or preview size");
+        }
+        this.viewLeft = viewLeft;
+        this.viewTop = viewTop;
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        // ファインダ矩形を包含するプレビュー座標の矩形 (フレーム内にクリップ)
+        int l = clamp(scaleDown(viewLeft, previewWidth, screenWidth), previewWidth);
+        int t = clamp(scaleDown(viewTop, previewHeight, screenHeight), previewHeight);
+        int r = clamp(scaleUp(viewLeft + viewWidth, previewWidth, screenWidth), previewWidth);
+        int b = clamp(scaleUp(viewTop + viewHeight, previewHeight, screenHeight), previewHeight);
+        if (r <= l || b <= t) {
+            // ファインダが画面外にある場合はフレーム全体
+            l = 0;
+            t = 0;
+            r = previewWidth;
+            b = previewHeight;
+        }
+        left = l;
+        top = t;
+        width = r - l;
+        height = b - t;
+    }
+
+    /**
+     * @return true if this geometry was built from exactly these inputs, so
+     *         that it need not be rebuilt
+     */
+    boolean isFor(int viewLeft, int viewTop, int viewWidth, int viewHeight,
+            int screenWidth, int screenHeight, int previewWidth, int previewHeight) {
+        return this.viewLeft == viewLeft && this.viewTop == viewTop
+                && this.viewWidth == viewWidth && this.viewHeight == viewHeight
+                && this.screenWidth == screenWidth && this.screenHeight == screenHeight
+                && isForPreview(previewWidth, previewHeight);
+    }
+
+    /**
+     * @return true if the crop applies to preview frames of this size
+     */
+    boolean isForPreview(int previewWidth, int previewHeight) {
+        return this.previewWidth == previewWidth && this.previewHeight == previewHeight;
+    }
+
+    /**
+     * Maps an x coordinate within the crop back to the viewfinder view.
+     */
+    float toViewX(float x) {
+        return (left + x) * screenWidth / previewWidth - viewLeft;
+    }
+
+    /**
+     * Maps a y coordinate within the crop back to the viewfinder view.
+     */
+    float toViewY(float y) {
+        return (top + y) * screenHeight / previewHeight - viewTop;
+    }
+
+    @Override
+    public String toString() {
+        return "view " + viewWidth + 'x' + viewHeight + '@' + viewLeft + ',' + viewTop
+                + " on " + screenWidth + 'x' + screenHeight + " -> crop " + width + 'x'
+                + height + '@' + left + ',' + top + " of " + previewWidth + 'x'
+                + previewHeight;
+    }
+
+    private static int scaleDown(int v, int to, int from) {
+        return (int) Math.floor((double) v * to / from);
+    }
+
+    private static int scaleUp(int v, int to, int from) {
+        return (int) Math.ceil((double) v * to / from);
+    }
+
+    private static int clamp(int v, int max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * A crop of the luminance plane of a preview frame, decimated by an integer
+ * factor with a box filter: each output pixel is the mean of a factor x factor
+ * block. The whole crop is filtered once in setFrame() into a buffer owned by
+ * the instance, so that the source can be re-targeted at each new frame
+ * without allocating. The crop size is fixed at construction.
+ */
+final class MyDecimatedLuminanceSource extends LuminanceSource {
+
+    private final int factor;
+    private final byte[] luminances;
+    // バッファ上のフレームから読み込んだ factor 行分の画素
+    private byte[] rows;
+
+    /**
+     * @param cropWidth
+     *            width of the full resolution crop
+     * @param cropHeight
+     *            height of the full resolution crop
+     * @param factor
+     *            decimation factor, 2 or more
+     */
+    MyDecimatedLuminanceSource(int cropWidth, int cropHeight, int factor) {
+        super(cropWidth / factor, cropHeight / factor);
+        if (factor < 2 || getWidth() == 0 || getHeight() == 0) {
+            throw new IllegalArgumentException("Bad decimation factor " + factor);
+        }
+        this.factor = factor;
+        luminances = new byte[getWidth() * getHeight()];
+    }
+
+    int getFactor() {
+        return factor;
+    }
+
+    void setFrame(MyYPlane plane, int dataWidth, int dataHeight, int left, int top) {
+        int width = getWidth();
+        int height = getHeight();
+        if (left < 0 || top < 0 || left + width * factor > dataWidth
+                || top + height * factor > dataHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        int area = factor * factor;
+        // 2x2, 4x4 ブロックの平均はシフトで求める
+        int shift = Integer.bitCount(area) == 1 ? Integer.numberOfTrailingZeros(area) : -1;
+        byte[] yuvData = plane.array();
+        int stride = plane.getRowStride();
+        boolean buffered = yuvData == null;
+        if (buffered) {
+            // 各ブロック行を配列へ読み込んでから同じ手順で平均する
+            int span = width * factor;
+            if (rows == null || rows.length != span * factor) {
+                rows = new byte[span * factor];
+            }
+            yuvData = rows;
+            stride = span;
+        }
+        for (int y = 0; y < height; y++) {
+            int rowOffset;
+            if (buffered) {
+                for (int yy = 0; yy < factor; yy++) {
+                    plane.getRow(left, top + y * factor + yy, rows, yy * stride, stride);
+                }
+                rowOffset = 0;
+            } else {
+                rowOffset = (top + y * factor) * stride + left;
+            }
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                int offset = rowOffset + x * factor;
+                int sum = 0;
+                for (int yy = 0; yy < factor; yy++, offset += stride) {
+                    for (int xx = 0; xx < factor; xx++) {
+                        sum += yuvData[offset + xx] & 0xff;
+                    }
+                }
+                luminances[out + x] = (byte) (shift >= 0 ? sum >> shift : sum / area);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        System.arraycopy(luminances, y * width, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        return luminances;
+    }
+}
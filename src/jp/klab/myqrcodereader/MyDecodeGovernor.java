@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Locale;
+
+/**
+ * Decides which preview frames are let into the decode pipeline, so that the
+ * scan keeps to an end-to-end latency target instead of decoding as fast as
+ * the camera delivers: on a slow phone a full pipeline delays every result
+ * and starves the UI thread, and on a fast one it burns power on frames
+ * nobody needs.
+ * <p>
+ * Frames are admitted through a token bucket filled at the admission rate,
+ * holding at most one token, so frames arriving faster than the rate are
+ * given back to the camera at once. Every ADJUST_INTERVAL_MS the rate is
+ * adjusted from two measures, both smoothed by SMOOTHING: the latency of a
+ * frame from its arrival to the end of its decode, and the lag of the UI
+ * thread, reported by the activity as the lateness of a periodic message.
+ * When either exceeds its limit the rate is cut to DECREASE of the rate
+ * actually admitted; otherwise, while the latency is below HEADROOM of the
+ * target, it grows by INCREASE_FPS up to the profile's maximum.
+ * <p>
+ * The profile sets the limits: {@link #PROFILE_MAX_THROUGHPUT} admits every
+ * frame and only measures, {@link #PROFILE_BALANCED} holds the given target,
+ * and {@link #PROFILE_POWER_SAVER} also caps the rate at POWER_SAVER_MAX_FPS.
+ * <p>
+ * Thread safe; frames are admitted by the camera thread and reported by the
+ * decode threads. The counters and the current rate are the governor's
+ * metrics.
+ */
+final class MyDecodeGovernor {
+
+    static final int PROFILE_BALANCED = 0;
+    static final int PROFILE_MAX_THROUGHPUT = 1;
+    static final int PROFILE_POWER_SAVER = 2;
+
+    private static final long ADJUST_INTERVAL_MS = 250L;
+    private static final float SMOOTHING = 0.2f;
+    private static final float DECREASE = 0.7f;
+    private static final float INCREASE_FPS = 2f;
+    private static final float HEADROOM = 0.8f;
+    private static final float MIN_FPS = 2f;
+    private static final float BALANCED_MAX_FPS = 60f;
+    private static final float POWER_SAVER_MAX_FPS = 8f;
+    private static final long UI_LAG_LIMIT_MS = 50L;
+
+    private final int profile;
+    private final long targetNanos;
+    private final float maxFps;
+    private float rate;
+    private float tokens = 1f;
+    private long lastAdmitNanos;
+    private long lastAdjustNanos;
+    private long admittedAtAdjust;
+    private float latencyNanos;
+    private float uiLagNanos;
+
+    private long admitted;
+    private long throttled;
+    private long increases;
+    private long decreases;
+
+    /**
+     * @param profile
+     *            one of the PROFILE_ constants
+     * @param targetMillis
+     *            latency allowed from the arrival of a frame to the end of its
+     *            decode
+     */
+    MyDecodeGovernor(int profile, long targetMillis) {
+        if (profile < PROFILE_BALANCED || profile > PROFILE_POWER_SAVER || targetMillis <= 0) {
+            throw new IllegalArgumentException("Bad governor profile " + profile + "/"
+                    + targetMillis);
+        }
+        this.profile = profile;
+        targetNanos = targetMillis * 1000000L;
+        maxFps = profile == PROFILE_POWER_SAVER ? POWER_SAVER_MAX_FPS : BALANCED_MAX_FPS;
+        rate = maxFps;
+    }
+
+    /**
+     * @param name
+     *            "balanced", "throughput" or "saver", as the replay tool takes
+     *            it
+     * @return the PROFILE_ constant of the name
+     */
+    static int parseProfile(String name) {
+        if ("balanced".equals(name)) {
+            return PROFILE_BALANCED;
+        } else if ("throughput".equals(name)) {
+            return PROFILE_MAX_THROUGHPUT;
+        } else if ("saver".equals(name)) {
+            return PROFILE_POWER_SAVER;
+        }
+        throw new IllegalArgumentException("Unknown governor profile " + name);
+    }
+
+    /**
+     * Called for each frame delivered by the camera.
+     *
+     * @return false if the frame should be given back without being decoded
+     */
+    synchronized boolean admit(long nowNanos) {
+        if (profile == PROFILE_MAX_THROUGHPUT) {
+            admitted++;
+            return true;
+        }
+        if (lastAdmitNanos != 0) {
+            tokens = Math.min(1f, tokens + rate * (nowNanos - lastAdmitNanos) / 1e9f);
+        }
+        lastAdmitNanos = nowNanos;
+        if (tokens >= 1f) {
+            tokens -= 1f;
+            admitted++;
+            return true;
+        }
+        throttled++;
+        return false;
+    }
+
+    /**
+     * Reports the latency of a frame from its arrival to the end of its
+     * decode.
+     */
+    synchronized void onFrameDone(long latency, long nowNanos) {
+        latencyNanos = latencyNanos == 0f ? latency
+                : latencyNanos + (latency - latencyNanos) * SMOOTHING;
+        adjust(nowNanos);
+    }
+
+    /**
+     * Reports how late a periodic message was handled on the UI thread.
+     */
+    synchronized void onUiLag(long lag, long nowNanos) {
+        uiLagNanos += (lag - uiLagNanos) * SMOOTHING;
+        adjust(nowNanos);
+    }
+
+    private void adjust(long nowNanos) {
+        if (profile == PROFILE_MAX_THROUGHPUT) {
+            return;
+        }
+        if (lastAdjustNanos == 0) {
+            lastAdjustNanos = nowNanos;
+            admittedAtAdjust = admitted;
+            return;
+        }
+        long elapsed = nowNanos - lastAdjustNanos;
+        if (elapsed < ADJUST_INTERVAL_MS * 1000000L) {
+            return;
+        }
+        // 実際に通したレート (カメラのフレームレートが上限より低い場合に備える)
+        float admittedFps = (admitted - admittedAtAdjust) * 1e9f / elapsed;
+        lastAdjustNanos = nowNanos;
+        admittedAtAdjust = admitted;
+        if (latencyNanos > targetNanos || uiLagNanos > UI_LAG_LIMIT_MS * 1000000L) {
+            rate = Math.max(MIN_FPS, Math.min(rate, admittedFps) * DECREASE);
+            decreases++;
+        } else if (latencyNanos < targetNanos * HEADROOM && rate < maxFps) {
+            rate = Math.min(maxFps, rate + INCREASE_FPS);
+            increases++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        String name = profile == PROFILE_BALANCED ? "balanced"
+                : profile == PROFILE_MAX_THROUGHPUT ? "throughput" : "saver";
+        String limit = profile == PROFILE_MAX_THROUGHPUT ? "all"
+                : String.format(Locale.US, "%.1f/s", rate);
+        return String.format(Locale.US, "governor=%s rate=%s latency=%d/%dms ui_lag=%dms"
+                + " admitted=%d throttled=%d increases=%d decreases=%d", name, limit,
+                Math.round(latencyNanos / 1e6f), targetNanos / 1000000L,
+                Math.round(uiLagNanos / 1e6f), admitted, throttled, increases, decreases);
+    }
+}
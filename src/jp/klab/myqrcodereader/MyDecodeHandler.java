@@ -23,27 +23,28 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
-import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.PlanarYUVLuminanceSource;
-import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
 
 final class MyDecodeHandler extends Handler {
 
     private static final String TAG = "QR";
 
     private final MyActivity activity;
-    private final MultiFormatReader multiFormatReader;
+    private final MyFrameDispatcher dispatcher;
+    private final MyDecoder decoder;
+    private final MyScanMetrics metrics;
     private boolean running = true;
+    // 直前のフレームを実際に認識処理したか (切り出し範囲の不一致や品質ゲートで見送っていない)
+    private boolean measured;
 
-    MyDecodeHandler(MyActivity activity,
-            Map<DecodeHintType, Object> hints) {
-        multiFormatReader = new MultiFormatReader();
-        multiFormatReader.setHints(hints);
+    MyDecodeHandler(MyActivity activity, MyFrameDispatcher dispatcher,
+            Map<DecodeHintType, Object> hints, MyDecodeOptions options) {
+        metrics = activity.getScanMetrics();
+        decoder = new MyDecoder(hints, options, activity.getQualityGate(),
+                activity.getMissCache(), metrics);
         this.activity = activity;
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -53,11 +54,34 @@ final class MyDecodeHandler extends Handler {
         }
         switch (message.what) {
         case R.id.decode:
-            decode((byte[]) message.obj, message.arg1, message.arg2);
+            MyFrame frame = (MyFrame) message.obj;
+            long start = System.nanoTime();
+            metrics.queueWait.recordNanos(start - frame.arrivalNanos);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DECODE_START, frame.seq,
+                    MyTraceRecorder.OUTCOME_NONE, 0);
+            Result[] rawResults = decode(frame.plane, frame.width, frame.height);
+            long elapsed = System.nanoTime() - start;
+            metrics.decode.recordNanos(elapsed);
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DECODE_END, frame.seq,
+                    rawResults != null ? MyTraceRecorder.OUTCOME_HIT : MyTraceRecorder.OUTCOME_MISS,
+                    (int) (elapsed / 1000));
+            MyPreviewSizeController sizeController = activity.getPreviewSizeController();
+            if (sizeController != null && measured) {
+                int next = sizeController.onFrame(frame.width, frame.height, elapsed,
+                        rawResults != null);
+                if (next >= 0) {
+                    activity.requestPreviewSize(next);
+                }
+            }
+            if (dispatcher.finish(frame, rawResults)) {
+                // 処理中に保留されたフレームを引き継いだので 終了指示を挟めるようメッセージ経由で続行
+                obtainMessage(R.id.decode, frame).sendToTarget();
+            }
             break;
         case R.id.quit:
             //_Log.d(TAG, "MyThreadHandler quit..");
             running = false;
+            decoder.close();
             Looper.myLooper().quit();
             break;
         }
@@ -68,40 +92,25 @@ final class MyDecodeHandler extends Handler {
      * took. For efficiency, reuse the same reader objects from one decode to
      * the next.
      * 
-     * @param data
-     *            The YUV preview frame.
+     * @param plane
+     *            The luminance plane of the preview frame.
      * @param width
      *            The width of the preview frame.
      * @param height
      *            The height of the preview frame.
+     * @return The decoded results, or null if nothing was found.
      */
-    private void decode(byte[] data, int width, int height) {
-        Result rawResult = null;
-        PlanarYUVLuminanceSource source = activity.buildLuminanceSource(data,
-                width, height);
-        if (source != null) {
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-            try {
-                rawResult = multiFormatReader.decodeWithState(bitmap);
-            } catch (ReaderException re) {
-                // continue
-            } finally {
-                multiFormatReader.reset();
-            }
-        }
-
-        Handler handler = activity.getHandler();
-        if (rawResult != null) {
-            if (handler != null) {
-                Message message = Message.obtain(handler,
-                        R.id.decode_succeeded, rawResult.getText());
-                message.sendToTarget();
-            }
-        } else {
-            if (handler != null) {
-                Message message = Message.obtain(handler, R.id.decode_failed);
-                message.sendToTarget();
-            }
+    private Result[] decode(MyYPlane plane, int width, int height) {
+        // プレビューフレームデータのファインダ矩形範囲を認識
+        MyCropGeometry crop = activity.getCropGeometry();
+        measured = false;
+        if (crop == null || !crop.isForPreview(width, height)) {
+            // 切り出し範囲が未確定 あるいはプレビューサイズ変更前のフレームは見送る
+            return null;
         }
+        Result[] results = decoder.decodeMultiple(plane, width, height, crop.left, crop.top,
+                crop.width, crop.height);
+        measured = !decoder.wasSkipped();
+        return results;
     }
 }
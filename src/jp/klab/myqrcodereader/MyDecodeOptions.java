@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Switches for the optional stages of the decode path. One instance is shared,
+ * read-only, by every decoder of a scan session.
+ */
+final class MyDecodeOptions {
+
+    /**
+     * Try the readers in order of observed productivity and skip formats
+     * which have not hit recently (see {@link MyAdaptiveReader}).
+     */
+    boolean adaptiveFormats = true;
+
+    /**
+     * Decode preview frames through a luminance source and binarizer owned by
+     * the decoder instead of building new ones for every frame.
+     */
+    boolean reuseBuffers = true;
+
+    /**
+     * Binarize reused buffers with {@link MyPreviewBinarizer} rather than
+     * {@link MyReusableBinarizer}; only with {@link #reuseBuffers}.
+     */
+    boolean previewBinarizer = true;
+
+    /**
+     * Try a box-filtered, decimated copy of the crop first and fall back to
+     * full resolution only when needed (see {@link MyDecoder}).
+     */
+    boolean pyramid = true;
+
+    /**
+     * Time a frame may have spent, when a decimated pass sees nothing, for the
+     * full resolution pass to still be tried on it; only with
+     * {@link #pyramid}.
+     */
+    long pyramidBudgetMillis = 50L;
+
+    /**
+     * Skip blurred and moving frames before decoding them (see
+     * {@link MyFrameQualityGate}).
+     */
+    boolean qualityGate = true;
+
+    /**
+     * Do not decode frames which look the same as a recent frame in which
+     * nothing was found (see {@link MyFrameHashCache}).
+     */
+    boolean missCache = true;
+
+    /**
+     * Decode only the neighbourhood of the last decoded code on the following
+     * frames (see {@link MyRoiTracker}).
+     */
+    boolean roiTracking = true;
+
+    /**
+     * Decode every code in the crop rather than stopping at the first one
+     * (see {@link MyDecoder#decodeMultiple}). Off by default.
+     */
+    boolean multiSymbol = false;
+
+    /**
+     * Also look for 1D codes in the crop turned by 90 degrees, for codes held
+     * across the landscape frame (see {@link MyRotatedLuminanceSource}). Off
+     * by default.
+     */
+    boolean rotatedOneD = false;
+
+    /**
+     * Run the 2D and 1D readers of a full resolution pass at the same time
+     * on two more threads per decoder (see {@link MyReaderRace}). Off by
+     * default: it pays off on devices with cores to spare beyond the decode
+     * threads.
+     */
+    boolean raceReaders = false;
+
+    /**
+     * The most codes searched for in one frame in multi-symbol mode.
+     */
+    int maxSymbols = 8;
+
+    /**
+     * @return the options used by the app on the device
+     */
+    static MyDecodeOptions forApp() {
+        return new MyDecodeOptions();
+    }
+
+    /**
+     * @return options with every optional stage turned off, which decodes
+     *         frames the same way as the plain MultiFormatReader
+     */
+    static MyDecodeOptions plain() {
+        MyDecodeOptions options = new MyDecodeOptions();
+        options.adaptiveFormats = false;
+        options.reuseBuffers = false;
+        options.previewBinarizer = false;
+        options.pyramid = false;
+        options.qualityGate = false;
+        options.missCache = false;
+        options.roiTracking = false;
+        return options;
+    }
+}
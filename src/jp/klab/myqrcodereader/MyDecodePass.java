@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Result;
+
+/**
+ * A way of decoding a window of the crop of a preview frame. The optional
+ * stages of {@link MyDecoder} are passes which wrap the pass they fall back
+ * to.
+ */
+interface MyDecodePass {
+
+    /**
+     * Decodes the width x height window at (x, y) of the crop at (left, top)
+     * of the luminance plane.
+     *
+     * @return the decoded result, with its points relative to the crop, or
+     *         null if nothing was found
+     */
+    Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top, int x,
+            int y, int width, int height);
+}
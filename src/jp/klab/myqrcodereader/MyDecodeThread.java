@@ -17,50 +17,36 @@
 
 package jp.klab.myqrcodereader;
 
-import java.util.Collection;
-import java.util.EnumMap;
-import java.util.EnumSet;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import android.os.Handler;
 import android.os.Looper;
 
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.DecodeHintType;
 import com.google.zxing.ResultPointCallback;
 
-final class MyDecodeThread extends Thread {
+/**
+ * One decode worker of the {@link MyFrameDispatcher} pool: a Looper thread
+ * whose MyDecodeHandler owns a separate set of readers.
+ */
+final class MyDecodeThread extends Thread implements MyFrameDispatcher.Worker {
 
     private final MyActivity activity;
+    private final MyFrameDispatcher dispatcher;
     private final Map<DecodeHintType, Object> hints;
+    private final MyDecodeOptions options;
     private Handler handler;
     private final CountDownLatch handlerInitLatch;
-    private Collection<BarcodeFormat> decodeFormats;
 
-    MyDecodeThread(MyActivity activity, ResultPointCallback resultPointCallback) {
+    MyDecodeThread(MyActivity activity, MyFrameDispatcher dispatcher,
+            MyDecodeOptions options, ResultPointCallback resultPointCallback) {
 
         this.activity = activity;
+        this.dispatcher = dispatcher;
+        this.options = options;
         handlerInitLatch = new CountDownLatch(1);
-        hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
-        decodeFormats = EnumSet.noneOf(BarcodeFormat.class);
-        decodeFormats.addAll(EnumSet.of(BarcodeFormat.QR_CODE));
-        decodeFormats.addAll(EnumSet.of(
-                BarcodeFormat.UPC_A,
-                BarcodeFormat.UPC_E, 
-                BarcodeFormat.EAN_13, 
-                BarcodeFormat.EAN_8,
-                BarcodeFormat.RSS_14));
-        decodeFormats.addAll(EnumSet.of(
-                BarcodeFormat.CODE_39,
-                BarcodeFormat.CODE_93,
-                BarcodeFormat.CODE_128,
-                BarcodeFormat.ITF,
-                BarcodeFormat.CODABAR));
-        decodeFormats.addAll(EnumSet.of(BarcodeFormat.DATA_MATRIX));
-        // DecodeHint に検出対象とするフォーマットとパターン検出点通知用コールバックを設定
-        hints.put(DecodeHintType.POSSIBLE_FORMATS, decodeFormats);
-        hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, resultPointCallback);
+        hints = MyDecodeHints.build(MyDecodeHints.defaultFormats(), resultPointCallback);
     }
 
     public Handler getHandler() {
@@ -71,11 +57,18 @@ final class MyDecodeThread extends Thread {
         return handler;
     }
 
+    @Override
+    // MyFrameDispatcher.Worker
+    public void process(MyFrame frame) {
+        // プレビューイメージを認識スレッドへ渡しコードの読取りを指示
+        getHandler().obtainMessage(R.id.decode, frame).sendToTarget();
+    }
+
     @Override
     public void run() {
         Looper.prepare();
         // スレッドのハンドラを MyDecodeHandler に
-        handler = new MyDecodeHandler(activity, hints);
+        handler = new MyDecodeHandler(activity, dispatcher, hints, options);
         handlerInitLatch.countDown();
         Looper.loop();
     }
@@ -0,0 +1,595 @@
+/*
+ * Copyright (C) 2010 ZXing authors
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
+
+/**
+ * The platform independent part of the decode path: binarizes a luminance
+ * source and runs the configured readers over it. An instance is not thread
+ * safe and belongs to a single decode thread.
+ * <p>
+ * A frame is first offered to a {@link MyFrameFilter}, then decoded through
+ * {@link MyDecodePass}es, each optional stage wrapping the one it falls back
+ * to: a {@link MyRotatedPass}, a {@link MyRoiPass}, a {@link MyPyramidPass},
+ * and last the full resolution readers, run one after the other or raced by
+ * a {@link MyReaderRace}. A {@link MyResultPointMapper} maps result points
+ * back to crop coordinates. In multi-symbol mode the crop is decoded whole,
+ * by {@link #decodeMultiple}.
+ * <p>
+ * With {@link MyDecodeOptions#reuseBuffers}, luminance sources and
+ * binarizers are kept in one of BUFFER_SLOTS slots per decode size, so that
+ * per frame only the small BinaryBitmap wrapper is allocated on this side of
+ * the readers. With a {@link MyScanMetrics} given, the black matrix is
+ * computed before the readers run, so that binarizing is timed apart.
+ */
+final class MyDecoder {
+
+    // 認識サイズごとに保持するバッファの組の数
+    private static final int BUFFER_SLOTS = 4;
+    // 複数コード認識で 1 コードあたりに許す部分領域の認識回数
+    private static final int MULTI_ATTEMPTS_PER_SYMBOL = 3;
+
+    private final MultiFormatReader multiFormatReader;
+    private final MyAdaptiveReader adaptiveReader;
+    private final MyDecodeOptions options;
+    private final MyResultPointMapper pointCallback;
+    private final MyFrameFilter filter;
+    // 配列で渡されたフレームを包む
+    private final MyYPlane arrayPlane = new MyYPlane();
+    private final MyScanMetrics metrics;
+    private final boolean binarizeEagerly;
+    private final MyLatencyHistogram multiFormatLatency;
+    private final MyLatencyHistogram qrMultiLatency;
+    private final MyLatencyHistogram genericMultiLatency;
+    private final Map<DecodeHintType, Object> hints;
+    private final QRCodeMultiReader qrMultiReader;
+    private final CappedReader cappedReader;
+    private final GenericMultipleBarcodeReader multipleReader;
+    private final MyReaderRace race;
+    private final Buffers[] buffers = new Buffers[BUFFER_SLOTS];
+    private int nextSlot;
+    private final MyPyramidPass pyramid;
+    // クロップ全体を認識するパス
+    private final MyDecodePass cropPass;
+
+    MyDecoder(Map<DecodeHintType, Object> hints, MyDecodeOptions options) {
+        this(hints, options, null, null, null);
+    }
+
+    /**
+     * @param qualityGate
+     *            the gate shared by the decoders of the session, or null
+     * @param missCache
+     *            the miss cache shared by the decoders of the session, or null
+     * @param metrics
+     *            the metrics of the session, or null not to record any
+     */
+    MyDecoder(Map<DecodeHintType, Object> hints, MyDecodeOptions options,
+            MyFrameQualityGate qualityGate, MyFrameHashCache missCache, MyScanMetrics metrics) {
+        this.options = options;
+        this.metrics = metrics;
+        multiFormatLatency = metrics != null ? metrics.reader("MULTI_FORMAT") : null;
+        qrMultiLatency = metrics != null ? metrics.reader("QR_MULTI") : null;
+        genericMultiLatency = metrics != null ? metrics.reader("GENERIC_MULTI") : null;
+        boolean hashFrames = options.missCache && missCache != null;
+        filter = new MyFrameFilter(options.qualityGate ? qualityGate : null,
+                hashFrames ? missCache : null);
+        if (options.pyramid || options.roiTracking || hashFrames) {
+            // 間引き・部分領域上の検出点をクロップ座標へ戻してから通知するため コールバックを差し替える
+            pointCallback = new MyResultPointMapper(
+                    (ResultPointCallback) hints.get(DecodeHintType.NEED_RESULT_POINT_CALLBACK));
+            hints = new EnumMap<DecodeHintType, Object>(hints);
+            hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, pointCallback);
+        } else {
+            pointCallback = null;
+        }
+        if (options.adaptiveFormats) {
+            multiFormatReader = null;
+            adaptiveReader = new MyAdaptiveReader(hints);
+            adaptiveReader.setMetrics(metrics);
+        } else {
+            multiFormatReader = new MultiFormatReader();
+            multiFormatReader.setHints(hints);
+            adaptiveReader = null;
+        }
+        this.hints = hints;
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> formats = (Collection<BarcodeFormat>) hints
+                .get(DecodeHintType.POSSIBLE_FORMATS);
+        binarizeEagerly = metrics != null && (formats == null || formats.isEmpty()
+                || formats.contains(BarcodeFormat.QR_CODE)
+                || formats.contains(BarcodeFormat.DATA_MATRIX));
+        if (options.multiSymbol) {
+            EnumSet<BarcodeFormat> others = formats == null || formats.isEmpty()
+                    ? EnumSet.allOf(BarcodeFormat.class) : EnumSet.copyOf(formats);
+            qrMultiReader = others.remove(BarcodeFormat.QR_CODE) ? new QRCodeMultiReader() : null;
+            if (others.isEmpty()) {
+                cappedReader = null;
+                multipleReader = null;
+            } else {
+                // QR コード以外を認識する専用のリーダー
+                Map<DecodeHintType, Object> otherHints = new EnumMap<DecodeHintType, Object>(hints);
+                otherHints.put(DecodeHintType.POSSIBLE_FORMATS, others);
+                cappedReader = new CappedReader(otherHints, options.adaptiveFormats);
+                multipleReader = new GenericMultipleBarcodeReader(cappedReader);
+            }
+        } else {
+            qrMultiReader = null;
+            cappedReader = null;
+            multipleReader = null;
+        }
+        race = options.raceReaders && !options.multiSymbol ? MyReaderRace.create(hints,
+                options.adaptiveFormats, options.reuseBuffers && options.previewBinarizer,
+                metrics) : null;
+        // 2D と 1D のリーダーを並行して走らせるなら 先に認識した方を採る
+        MyDecodePass full = new FullResolutionPass(race != null ? race : new SequentialPass());
+        pyramid = options.pyramid ? new MyPyramidPass(new DecimatedPass(), full, pointCallback,
+                options.pyramidBudgetMillis) : null;
+        MyDecodePass window = pyramid != null ? pyramid : full;
+        MyDecodePass upright = options.roiTracking ? new MyRoiPass(window, pointCallback)
+                : window;
+        MyRotatedPass rotated = options.rotatedOneD && !options.multiSymbol
+                ? MyRotatedPass.create(upright, hints, options.adaptiveFormats, metrics) : null;
+        cropPass = rotated != null ? rotated : upright;
+    }
+
+    /**
+     * @return true if the last frame was rejected by the quality gate or the
+     *         miss cache without being decoded
+     */
+    boolean wasSkipped() {
+        return filter.wasSkipped();
+    }
+
+    /**
+     * Decodes the given rectangle of the luminance plane of a preview frame.
+     * In multi-symbol mode every code found in the rectangle is returned, up
+     * to {@link MyDecodeOptions#maxSymbols}; otherwise this is
+     * {@link #decode(MyYPlane, int, int, int, int, int, int)}.
+     * <p>
+     * QRCodeMultiReader finds the QR codes, and GenericMultipleBarcodeReader
+     * runs readers for the other formats over the parts of the crop around
+     * each code found. QR codes are left out of the latter because it stops
+     * exploring a part of the crop in which it finds a code it already has,
+     * which would hide the other codes next to a QR code. Only the frame
+     * filter applies to this mode.
+     *
+     * @return the decoded results, with their points relative to the
+     *         rectangle, or null if nothing was found
+     */
+    Result[] decodeMultiple(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int width, int height) {
+        if (!options.multiSymbol) {
+            Result result = decode(plane, dataWidth, dataHeight, left, top, width, height);
+            return result != null ? new Result[] { result } : null;
+        }
+        if (startFrame(plane, left, top, width, height)) {
+            return null;
+        }
+        if (pointCallback != null) {
+            pointCallback.startPass(0, 0, width, height, 1);
+        }
+        long start = System.nanoTime();
+        BinaryBitmap bitmap;
+        if (options.reuseBuffers) {
+            Buffers b = buffers(width, height, 1);
+            b.yuvSource.setFrame(plane, dataWidth, dataHeight, left, top);
+            bitmap = new BinaryBitmap(b.nextBinarizer());
+        } else {
+            bitmap = new BinaryBitmap(new HybridBinarizer(
+                    luminanceSource(plane, dataWidth, dataHeight, left, top, width, height)));
+        }
+        binarize(bitmap, start);
+        List<Result> results = new ArrayList<Result>(options.maxSymbols);
+        if (qrMultiReader != null) {
+            start = System.nanoTime();
+            try {
+                addSymbols(results, qrMultiReader.decodeMultiple(bitmap, hints));
+            } catch (ReaderException re) {
+                // continue
+            } finally {
+                qrMultiReader.reset();
+                record(qrMultiLatency, start);
+            }
+        }
+        if (multipleReader != null && results.size() < options.maxSymbols) {
+            cappedReader.start(options.maxSymbols - results.size(),
+                    options.maxSymbols * MULTI_ATTEMPTS_PER_SYMBOL);
+            start = System.nanoTime();
+            try {
+                addSymbols(results, multipleReader.decodeMultiple(bitmap, hints));
+            } catch (ReaderException re) {
+                // continue
+            } finally {
+                record(genericMultiLatency, start);
+            }
+        }
+        endFrame(!results.isEmpty());
+        return results.isEmpty() ? null : results.toArray(new Result[results.size()]);
+    }
+
+    // フレームを始め 品質ゲートで除外されるか 最近の空振りと同じ画面なら true
+    private boolean startFrame(MyYPlane plane, int left, int top, int width, int height) {
+        if (pointCallback != null) {
+            pointCallback.startFrame(width, height);
+        }
+        if (pyramid != null) {
+            pyramid.startFrame(width, height);
+        }
+        return filter.skip(plane, left, top, width, height);
+    }
+
+    // 認識結果を空振りキャッシュに反映
+    private void endFrame(boolean hit) {
+        filter.endFrame(hit, pointCallback != null && pointCallback.isCropEmpty());
+    }
+
+    // 同じフォーマット・内容のコードを除いて上限まで追加
+    private void addSymbols(List<Result> results, Result[] found) {
+        for (Result result : found) {
+            if (results.size() >= options.maxSymbols) {
+                return;
+            }
+            boolean known = false;
+            for (Result r : results) {
+                if (r.getBarcodeFormat() == result.getBarcodeFormat()
+                        && r.getText().equals(result.getText())) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                results.add(result);
+            }
+        }
+    }
+
+    /**
+     * Decodes the given rectangle of an NV21 preview frame.
+     *
+     * @return the decoded result, with its points relative to the rectangle,
+     *         or null if nothing was found
+     */
+    Result decode(byte[] data, int dataWidth, int dataHeight, int left, int top,
+            int width, int height) {
+        arrayPlane.set(data, dataWidth);
+        return decode(arrayPlane, dataWidth, dataHeight, left, top, width, height);
+    }
+
+    /**
+     * Decodes the given rectangle of the luminance plane of a preview frame.
+     *
+     * @return the decoded result, with its points relative to the rectangle,
+     *         or null if nothing was found
+     */
+    Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int width, int height) {
+        if (startFrame(plane, left, top, width, height)) {
+            return null;
+        }
+        Result result = cropPass.decode(plane, dataWidth, dataHeight, left, top, 0, 0, width,
+                height);
+        endFrame(result != null);
+        return result;
+    }
+
+    // バッファを再利用しない場合の輝度ソース (配列のフレームは ZXing 標準のもの)
+    private static LuminanceSource luminanceSource(MyYPlane plane, int dataWidth,
+            int dataHeight, int left, int top, int width, int height) {
+        byte[] array = plane.array();
+        if (array != null) {
+            return new PlanarYUVLuminanceSource(array, plane.getRowStride(), dataHeight,
+                    left, top, width, height, false);
+        }
+        MyYUVLuminanceSource source = new MyYUVLuminanceSource(width, height);
+        source.setFrame(plane, dataWidth, dataHeight, left, top);
+        return source;
+    }
+
+    private Buffers buffers(int width, int height, int factor) {
+        for (Buffers b : buffers) {
+            if (b != null && b.width == width && b.height == height && b.factor == factor) {
+                return b;
+            }
+        }
+        Buffers b = new Buffers(width, height, factor, options.previewBinarizer);
+        buffers[nextSlot] = b;
+        nextSlot = (nextSlot + 1) % BUFFER_SLOTS;
+        return b;
+    }
+
+    /**
+     * @return the decoded result, or null if nothing was found
+     */
+    Result decode(LuminanceSource source) {
+        long start = System.nanoTime();
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        binarize(bitmap, start);
+        return decode(bitmap);
+    }
+
+    private Result decode(BinaryBitmap bitmap) {
+        Reader reader = adaptiveReader != null ? adaptiveReader : multiFormatReader;
+        long start = System.nanoTime();
+        try {
+            if (reader == multiFormatReader) {
+                return multiFormatReader.decodeWithState(bitmap);
+            }
+            return reader.decode(bitmap);
+        } catch (ReaderException re) {
+            return null;
+        } finally {
+            reader.reset();
+            if (reader == multiFormatReader) {
+                // 適応モードではグループごとに MyAdaptiveReader が記録する
+                record(multiFormatLatency, start);
+            }
+        }
+    }
+
+    // 計測時は二値化を読取り前に済ませ start からの時間を記録
+    private void binarize(BinaryBitmap bitmap, long start) {
+        if (metrics == null) {
+            return;
+        }
+        if (binarizeEagerly) {
+            try {
+                bitmap.getBlackMatrix();
+            } catch (NotFoundException nfe) {
+                // 読取り側でも同じ例外となる
+            }
+        }
+        metrics.binarize.recordNanos(System.nanoTime() - start);
+    }
+
+    private static void record(MyLatencyHistogram latency, long start) {
+        if (latency != null) {
+            latency.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A full resolution pass through the given readers: the race, or the
+     * readers of the decoder.
+     */
+    private final class FullResolutionPass implements MyDecodePass {
+
+        private final MyDecodePass readers;
+
+        FullResolutionPass(MyDecodePass readers) {
+            this.readers = readers;
+        }
+
+        @Override
+        public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+                int x, int y, int width, int height) {
+            if (pointCallback != null) {
+                pointCallback.startPass(x, y, width, height, 1);
+            }
+            return readers.decode(plane, dataWidth, dataHeight, left, top, x, y, width, height);
+        }
+    }
+
+    /**
+     * The readers of the decoder, one after the other, over its buffers.
+     */
+    private final class SequentialPass implements MyDecodePass {
+
+        @Override
+        public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+                int x, int y, int width, int height) {
+            long start = System.nanoTime();
+            BinaryBitmap bitmap;
+            if (options.reuseBuffers) {
+                Buffers b = buffers(width, height, 1);
+                b.yuvSource.setFrame(plane, dataWidth, dataHeight, left + x, top + y);
+                bitmap = new BinaryBitmap(b.nextBinarizer());
+            } else {
+                bitmap = new BinaryBitmap(new HybridBinarizer(luminanceSource(plane, dataWidth,
+                        dataHeight, left + x, top + y, width, height)));
+            }
+            binarize(bitmap, start);
+            return MyResultPointMapper.map(MyDecoder.this.decode(bitmap), x, y, 1);
+        }
+    }
+
+    /**
+     * The readers of the decoder over a decimated copy of the window.
+     */
+    private final class DecimatedPass implements MyPyramidPass.Decimator {
+
+        @Override
+        public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+                int x, int y, int width, int height, int factor) {
+            long start = System.nanoTime();
+            Buffers b = buffers(width, height, factor);
+            b.decimatedSource.setFrame(plane, dataWidth, dataHeight, left + x, top + y);
+            pointCallback.startPass(x, y, width, height, factor);
+            BinaryBitmap bitmap;
+            if (options.reuseBuffers) {
+                bitmap = new BinaryBitmap(b.nextBinarizer());
+            } else {
+                bitmap = new BinaryBitmap(new HybridBinarizer(b.decimatedSource));
+            }
+            binarize(bitmap, start);
+            return MyResultPointMapper.map(MyDecoder.this.decode(bitmap), x, y, factor);
+        }
+    }
+
+    /**
+     * The luminance source and binarizer for one decode size. A factor above
+     * 1 is a decimated pass.
+     */
+    private static final class Buffers {
+
+        final int width;
+        final int height;
+        final int factor;
+        final MyYUVLuminanceSource yuvSource;
+        final MyDecimatedLuminanceSource decimatedSource;
+        final MyReusableBinarizer binarizer;
+        final MyPreviewBinarizer previewBinarizer;
+
+        Buffers(int width, int height, int factor, boolean preview) {
+            this.width = width;
+            this.height = height;
+            this.factor = factor;
+            LuminanceSource source;
+            if (factor > 1) {
+                yuvSource = null;
+                decimatedSource = new MyDecimatedLuminanceSource(width, height, factor);
+                source = decimatedSource;
+            } else {
+                yuvSource = new MyYUVLuminanceSource(width, height);
+                decimatedSource = null;
+                source = yuvSource;
+            }
+            binarizer = preview ? null : new MyReusableBinarizer(source);
+            previewBinarizer = preview ? new MyPreviewBinarizer(source) : null;
+        }
+
+        /**
+         * @return the binarizer, invalidated after the source has been
+         *         pointed at a new frame
+         */
+        Binarizer nextBinarizer() {
+            if (previewBinarizer != null) {
+                previewBinarizer.invalidate();
+                return previewBinarizer;
+            }
+            binarizer.invalidate();
+            return binarizer;
+        }
+    }
+
+    /**
+     * The delegate of GenericMultipleBarcodeReader: readers for the given
+     * formats, which give up once the frame's budget of attempts or symbols
+     * is spent, which bounds the latency of a frame; ZXing's recursion has no
+     * depth limit of its own. A UPC/EAN result keeps only its start and end
+     * points: the bars of a neighbouring code are easily read as an add-on,
+     * whose points would otherwise hide that code from the search.
+     */
+    private static final class CappedReader implements Reader {
+
+        private final MultiFormatReader multiFormatReader;
+        private final MyAdaptiveReader adaptiveReader;
+        private int symbolsLeft;
+        private int attemptsLeft;
+
+        CappedReader(Map<DecodeHintType, Object> hints, boolean adaptive) {
+            if (adaptive) {
+                multiFormatReader = null;
+                adaptiveReader = new MyAdaptiveReader(hints);
+            } else {
+                multiFormatReader = new MultiFormatReader();
+                multiFormatReader.setHints(hints);
+                adaptiveReader = null;
+            }
+        }
+
+        void start(int maxSymbols, int maxAttempts) {
+            symbolsLeft = maxSymbols;
+            attemptsLeft = maxAttempts;
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image) throws NotFoundException {
+            if (symbolsLeft <= 0 || attemptsLeft <= 0) {
+                throw NotFoundException.getNotFoundInstance();
+            }
+            attemptsLeft--;
+            try {
+                Result result = adaptiveReader != null ? adaptiveReader.decode(image)
+                        : multiFormatReader.decodeWithState(image);
+                symbolsLeft--;
+                Map<ResultMetadataType, Object> metadata = result.getResultMetadata();
+                ResultPoint[] points = result.getResultPoints();
+                if (metadata != null && metadata.containsKey(ResultMetadataType.UPC_EAN_EXTENSION)
+                        && points != null && points.length > 2) {
+                    // アドオンとして読まれた隣接コードの範囲を探索対象に残す
+                    Result main = new Result(result.getText(), result.getRawBytes(),
+                            new ResultPoint[] { points[0], points[1] },
+                            result.getBarcodeFormat(), result.getTimestamp());
+                    main.putAllMetadata(metadata);
+                    return main;
+                }
+                return result;
+            } finally {
+                reset();
+            }
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints)
+                throws NotFoundException {
+            return decode(image);
+        }
+
+        @Override
+        public void reset() {
+            if (adaptiveReader != null) {
+                adaptiveReader.reset();
+            } else {
+                multiFormatReader.reset();
+            }
+        }
+    }
+
+    /**
+     * Ends the threads of the reader race, if any. The decoder is not used
+     * afterwards.
+     */
+    void close() {
+        if (race != null) {
+            race.close();
+        }
+    }
+
+    /**
+     * @return the per-format statistics of the adaptive mode, or null when it
+     *         is off
+     */
+    String getFormatStatistics() {
+        return adaptiveReader != null ? adaptiveReader.toString() : null;
+    }
+}
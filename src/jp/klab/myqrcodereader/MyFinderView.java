@@ -17,8 +17,9 @@
 
 package jp.klab.myqrcodereader;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -26,6 +27,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -36,6 +38,14 @@ import com.google.zxing.ResultPointCallback;
  * This view is overlaid on top of the camera preview. It adds the viewfinder
  * rectangle and partial transparency outside it, as well as the laser scanner
  * animation and result points.
+ * <p>
+ * The view is only redrawn when result points arrive, at most once per
+ * MIN_REDRAW_INTERVAL, and once more ANIMATION_DELAY after points were drawn
+ * to clear them; otherwise it stays as drawn. Result points come from the
+ * decode threads into a ring of POINT_CAPACITY slots, each holding the two
+ * float coordinates of a point packed into a long, so adding a point neither
+ * locks nor allocates, and a point is never seen half written. A draw shows
+ * the points added since the previous draw which are still in the ring.
  * 
  * @author dswitkin@google.com (Daniel Switkin)
  */
@@ -43,14 +53,20 @@ public final class MyFinderView extends View {
 
     private static final String TAG = "QR";
     private static final long ANIMATION_DELAY = 80L;
+    private static final long MIN_REDRAW_INTERVAL = 33L;
     private static final int CURRENT_POINT_OPACITY = 0xA0;
-    private static final int MAX_RESULT_POINTS = 20;
+    // 2 のべき乗
+    private static final int POINT_CAPACITY = 32;
     private static final int POINT_SIZE = 8;
 
     private final Paint paint;
     private final int laserColor;
     private final int resultPointColor;
-    private List<ResultPoint> possibleResultPoints;
+    private final AtomicLongArray points = new AtomicLongArray(POINT_CAPACITY);
+    private final AtomicInteger pointCursor = new AtomicInteger();
+    private final AtomicBoolean redrawScheduled = new AtomicBoolean();
+    private int drawnCursor;
+    private volatile long lastDrawTime;
     private int colorPrev;
 
     // This constructor is used when the class is built from an XML resource.
@@ -63,12 +79,14 @@ public final class MyFinderView extends View {
         Resources resources = getResources();
         laserColor = resources.getColor(R.color.viewfinder_laser);
         resultPointColor = resources.getColor(R.color.possible_result_points);
-        possibleResultPoints = new ArrayList<ResultPoint>(5);
         colorPrev = Color.WHITE;
     }
 
     @Override
     public void onDraw(Canvas canvas) {
+        // 描画中に届いた検出点で再描画を予約できるよう先に解除
+        redrawScheduled.set(false);
+        lastDrawTime = SystemClock.uptimeMillis();
         int width = this.getWidth(); // int width = canvas.getWidth();
         int height = this.getHeight(); //int height =canvas.getHeight();
 
@@ -79,20 +97,21 @@ public final class MyFinderView extends View {
         canvas.drawRect(0, height, width, height - 2, paint);
         canvas.drawRect(this.getWidth() - 2, 0, width, height, paint);
 
-        List<ResultPoint> currentPossible = possibleResultPoints;
-        if (!currentPossible.isEmpty()) {
+        // 前回の描画以降に追加され まだ上書きされていない検出点
+        int end = pointCursor.get();
+        int count = Math.min(end - drawnCursor, POINT_CAPACITY);
+        drawnCursor = end;
+        if (count > 0) {
             // ライブラリから通知されたパターン検出点を描画
-            possibleResultPoints = new ArrayList<ResultPoint>(5);
             paint.setAlpha(CURRENT_POINT_OPACITY);
             paint.setColor(resultPointColor);
-            synchronized (currentPossible) {
-                for (ResultPoint point : currentPossible) {
-                    canvas.drawCircle((int) point.getX(), (int) point.getY(),
-                            POINT_SIZE, paint);
-                }
+            for (int i = end - count; i != end; i++) {
+                long packed = points.get(i & (POINT_CAPACITY - 1));
+                canvas.drawCircle((int) Float.intBitsToFloat((int) (packed >>> 32)),
+                        (int) Float.intBitsToFloat((int) packed), POINT_SIZE, paint);
             }
             // 検出点が 4 以上なら所定の文字列を表示
-            if (currentPossible.size() >= 4) {
+            if (count >= 4) {
                 colorPrev = (colorPrev == Color.RED) ? Color.WHITE : Color.RED;
                 paint.setColor(colorPrev);
                 int size = width / 8;
@@ -103,22 +122,28 @@ public final class MyFinderView extends View {
                 canvas.drawText("Warning!", width / 2 - size * 2, height / 2
                         + size / 4, paint);
             }
+            // 描画した検出点を一定時間後に消す
+            scheduleRedraw(ANIMATION_DELAY);
         }
-        // onDraw() 再誘導
-        postInvalidateDelayed(ANIMATION_DELAY, 0 - POINT_SIZE, 0 - POINT_SIZE,
-                width + POINT_SIZE, height + POINT_SIZE);
-        // invalidate();
     }
 
-    public void addPossibleResultPoint(ResultPoint point) {
-        List<ResultPoint> points = possibleResultPoints; // 参照渡しであることに注意
-        synchronized (points) {
-            points.add(point);
-            int size = points.size();
-            if (size > MAX_RESULT_POINTS) {
-                // trim it
-                points.subList(0, size - MAX_RESULT_POINTS / 2).clear();
-            }
+    /**
+     * Adds a result point, in view coordinates; may be called from any thread
+     * and never blocks.
+     */
+    public void addPossibleResultPoint(float x, float y) {
+        int i = pointCursor.getAndIncrement();
+        long packed = (long) Float.floatToRawIntBits(x) << 32
+                | (Float.floatToRawIntBits(y) & 0xffffffffL);
+        points.lazySet(i & (POINT_CAPACITY - 1), packed);
+        scheduleRedraw(MIN_REDRAW_INTERVAL);
+    }
+
+    // 再描画が未予約なら 前回の描画から interval 以上あけて予約
+    private void scheduleRedraw(long interval) {
+        if (redrawScheduled.compareAndSet(false, true)) {
+            long delay = lastDrawTime + interval - SystemClock.uptimeMillis();
+            postInvalidateDelayed(Math.max(0L, delay));
         }
     }
 }
@@ -127,15 +152,27 @@ public final class MyFinderView extends View {
 // MyActivity 内で生成した本クラスのインスタンスが
 // MyDecodeThread ～ MyDecodeHandler 経由でライブラリ側へ渡され
 // QR コード識別メソッドから ResultPoint （パターン識別点）情報を添えてコールバックされる
+// 識別点はプレビューフレームの切り出し範囲内の座標なのでファインダビューの座標へ変換して渡す
 final class MyResultPointCallback implements ResultPointCallback {
     private MyFinderView mFinderView = null;
+    private volatile MyCropGeometry mCropGeometry = null;
 
     MyResultPointCallback(MyFinderView v) {
         mFinderView = v;
     }
 
+    void setCropGeometry(MyCropGeometry geometry) {
+        mCropGeometry = geometry;
+    }
+
     @Override
     public void foundPossibleResultPoint(ResultPoint point) {
-        mFinderView.addPossibleResultPoint(point);
+        MyCropGeometry geometry = mCropGeometry;
+        if (geometry != null) {
+            mFinderView.addPossibleResultPoint(geometry.toViewX(point.getX()),
+                    geometry.toViewY(point.getY()));
+        } else {
+            mFinderView.addPossibleResultPoint(point.getX(), point.getY());
+        }
     }
 }
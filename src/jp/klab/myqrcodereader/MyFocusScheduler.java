@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Decides when to run an autofocus cycle, from the outcome and sharpness of
+ * the decoded frames rather than on a fixed period.
+ * <p>
+ * A cycle starts on the first frame, so the first decodable frame comes as
+ * early as the lens allows. After that, a cycle starts after
+ * LOW_CONTRAST_MISSES misses in a row whose sharpness is below
+ * LOW_CONTRAST_RATIO of the recent peak (the code is there but blurred), or
+ * after MISSES_BEFORE_FOCUS misses in a row whatever their sharpness (the
+ * whole scene may be out of focus, which the relative measure cannot tell).
+ * Two cycles are at least the current interval apart, which starts at
+ * BASE_INTERVAL_MS and doubles with each cycle not followed by a decode, up to
+ * MAX_INTERVAL_MS. A decode resets the interval and holds off any cycle for
+ * SUCCESS_HOLD_MS, so that a good focus is not thrown away while codes are
+ * being read.
+ * <p>
+ * With a continuous focus mode the camera focuses by itself and the scheduler
+ * never starts a cycle; it still counts the time to the first decode.
+ * <p>
+ * Thread safe; frames are reported by the decode threads, cycle completion
+ * by the camera's callback thread.
+ */
+final class MyFocusScheduler {
+
+    private static final int LOW_CONTRAST_MISSES = 3;
+    private static final float LOW_CONTRAST_RATIO = 0.5f;
+    private static final int MISSES_BEFORE_FOCUS = 30;
+    private static final float PEAK_DECAY = 0.99f;
+    private static final long BASE_INTERVAL_MS = 500L;
+    private static final long MAX_INTERVAL_MS = 4000L;
+    private static final long SUCCESS_HOLD_MS = 1500L;
+    // コールバックが来ない場合に合焦中とみなすのをやめるまでの時間
+    private static final long FOCUS_TIMEOUT_MS = 3000L;
+
+    private final boolean enabled;
+    private float peak;
+    private int misses;
+    private int lowContrastMisses;
+    private boolean focusing;
+    private long focusStart;
+    private long lastFocus = Long.MIN_VALUE / 2;
+    private long interval = BASE_INTERVAL_MS;
+    private long holdUntil;
+    private long firstFrame = -1;
+    private long firstDecode = -1;
+
+    private long requested;
+    private long succeeded;
+    private long failed;
+
+    /**
+     * @param enabled
+     *            false when the camera focuses by itself or cannot focus, in
+     *            which case no cycle is ever started
+     */
+    MyFocusScheduler(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Reports a decoded frame.
+     *
+     * @param decoded
+     *            whether the frame gave a result
+     * @param sharpness
+     *            sharpness score of the frame, see {@link MyFrameQualityGate}
+     * @return true if an autofocus cycle should be started now
+     */
+    synchronized boolean onFrame(boolean decoded, float sharpness, long now) {
+        if (firstFrame < 0) {
+            firstFrame = now;
+            if (enabled && !decoded) {
+                // 起動直後のピント合わせ
+                return startFocus(now);
+            }
+        }
+        peak = Math.max(sharpness, peak * PEAK_DECAY);
+        if (decoded) {
+            if (firstDecode < 0) {
+                firstDecode = now;
+            }
+            misses = 0;
+            lowContrastMisses = 0;
+            interval = BASE_INTERVAL_MS;
+            holdUntil = now + SUCCESS_HOLD_MS;
+            return false;
+        }
+        misses++;
+        if (sharpness < peak * LOW_CONTRAST_RATIO) {
+            lowContrastMisses++;
+        } else {
+            lowContrastMisses = 0;
+        }
+        if (!enabled) {
+            return false;
+        }
+        if (focusing) {
+            if (now - focusStart < FOCUS_TIMEOUT_MS) {
+                return false;
+            }
+            focusing = false;
+        }
+        if (now < holdUntil || now - lastFocus < interval) {
+            return false;
+        }
+        if (lowContrastMisses >= LOW_CONTRAST_MISSES || misses >= MISSES_BEFORE_FOCUS) {
+            // 合焦後も認識できなければ次回までの間隔を延ばす
+            interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+            return startFocus(now);
+        }
+        return false;
+    }
+
+    private boolean startFocus(long now) {
+        focusing = true;
+        focusStart = now;
+        lastFocus = now;
+        misses = 0;
+        lowContrastMisses = 0;
+        requested++;
+        return true;
+    }
+
+    /**
+     * Reports the end of an autofocus cycle, or that it could not be started.
+     */
+    synchronized void onFocusDone(boolean success) {
+        focusing = false;
+        if (success) {
+            succeeded++;
+        } else {
+            failed++;
+        }
+    }
+
+    /**
+     * @return the time from the first frame to the first decode, or -1 if
+     *         nothing has been decoded
+     */
+    synchronized long getTimeToFirstDecode() {
+        return firstDecode < 0 ? -1 : firstDecode - firstFrame;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "enabled=" + enabled + " requested=" + requested + " succeeded=" + succeeded
+                + " failed=" + failed + " interval=" + interval
+                + "ms first_decode=" + getTimeToFirstDecode() + "ms";
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * A preview frame handed to a decode worker. Each worker owns one instance
+ * which is refilled for every frame it decodes, so dispatching does not
+ * allocate.
+ */
+final class MyFrame {
+
+    final MyFrameDispatcher.Worker worker;
+    MyYPlane plane;
+    int width;
+    int height;
+    // ディスパッチ順の通し番号 (認識結果の配送順に使用)
+    long seq;
+    // フレーム到着時刻 (System.nanoTime)
+    long arrivalNanos;
+
+    MyFrame(MyFrameDispatcher.Worker worker) {
+        this.worker = worker;
+    }
+
+    void set(MyYPlane plane, int width, int height, long seq, long arrivalNanos) {
+        this.plane = plane;
+        this.width = width;
+        this.height = height;
+        this.seq = seq;
+        this.arrivalNanos = arrivalNanos;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts preview frames through the scan pipeline: frames delivered by the
+ * camera, frames handed to the decoder and finished, split into hits and
+ * misses, frames given back without being decoded because the decoder was
+ * still busy, frames given back by the {@link MyDecodeGovernor} to hold its
+ * latency target, and successful decodes suppressed as duplicates of one already
+ * reported.
+ */
+final class MyFrameCounters {
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    void frameCaptured() {
+        captured.incrementAndGet();
+    }
+
+    void frameDecoded(boolean hit) {
+        decoded.incrementAndGet();
+        (hit ? hits : misses).incrementAndGet();
+    }
+
+    void frameDropped() {
+        dropped.incrementAndGet();
+    }
+
+    void frameThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    void duplicateSuppressed() {
+        duplicates.incrementAndGet();
+    }
+
+    long getCaptured() {
+        return captured.get();
+    }
+
+    long getDecoded() {
+        return decoded.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    void reset() {
+        captured.set(0);
+        decoded.set(0);
+        hits.set(0);
+        misses.set(0);
+        dropped.set(0);
+        throttled.set(0);
+        duplicates.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "captured=" + captured.get() + " decoded=" + decoded.get()
+                + " hits=" + hits.get() + " misses=" + misses.get() +  " dropped=" + dropped.get()
+                + " throttled=" + throttled.get() + " duplicates=" + duplicates.get();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+
+import com.google.zxing.Result;
+
+/**
+ * Spreads the frames of a {@link MyFrameSource} over a pool of decode workers,
+ * each of which has its own readers.
+ * <p>
+ * A frame goes to an idle worker at once. When every worker is busy it is
+ * parked in a single pending slot, and a newer frame replaces it, so a stale
+ * frame is dropped rather than queued. A worker picks up the pending frame as
+ * soon as it finishes its current one.
+ * <p>
+ * Results are delivered to the {@link ResultSink} in dispatch order, holding
+ * back a result until every earlier frame has finished. At most
+ * {@link #REORDER_WINDOW_PER_WORKER} frames per worker may be outstanding
+ * between the oldest undelivered frame and the newest dispatched one. A
+ * success with the same texts as the previous success is suppressed if its
+ * frame was already being decoded when that success was delivered, so several
+ * workers hitting one code at once give a single notification.
+ * <p>
+ * When a {@link MyDecodeGovernor} is set, a frame it does not admit is given
+ * back to the source at once, before it can take a worker or the pending
+ * slot, and the governor is told the latency of every frame decoded.
+ * <p>
+ * The frame counters, the frame interval and the end-to-end latency of the
+ * session's {@link MyScanMetrics} are kept here, and each frame carries its
+ * arrival time so that the worker can record how long it waited.
+ */
+final class MyFrameDispatcher implements MyFrameSource.Callback {
+
+    interface Worker {
+        /**
+         * Hands the frame to the worker's thread; must not block. The worker
+         * decodes it and then calls {@link MyFrameDispatcher#finish}.
+         */
+        void process(MyFrame frame);
+    }
+
+    interface ResultSink {
+        /**
+         * Called in dispatch order, from the worker thread which completed the
+         * sequence, while the dispatcher lock is held.
+         *
+         * @param results the codes decoded from the frame, or null if it had
+         *            none
+         */
+        void onResult(long seq, Result[] results);
+    }
+
+    private static final int MAX_WORKERS = 6;
+    private static final int REORDER_WINDOW_PER_WORKER = 2;
+
+    private final ResultSink sink;
+    private final MyScanMetrics metrics;
+    private final MyFrameCounters counters;
+    private MyFrame[] idle = new MyFrame[0];
+    private int idleCount;
+    private int workerCount;
+
+    private MyYPlane pendingPlane;
+    private int pendingWidth;
+    private int pendingHeight;
+    private long pendingNanos;
+    private long lastArrivalNanos;
+
+    private long nextSeq;
+    private long nextDeliverSeq;
+    private Result[][] results;
+    private boolean[] completed;
+
+    private Result[] lastResults;
+    private long suppressBelowSeq;
+
+    private volatile MyFrameSource frameSource;
+    private volatile MyDecodeGovernor governor;
+
+    MyFrameDispatcher(ResultSink sink) {
+        this(sink, new MyScanMetrics());
+    }
+
+    MyFrameDispatcher(ResultSink sink, MyScanMetrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+        counters = metrics.getCounters();
+    }
+
+    /**
+     * @return one worker per core, leaving one core for the UI and camera
+     *         threads
+     */
+    static int defaultWorkerCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, MAX_WORKERS));
+    }
+
+    synchronized void addWorker(Worker worker) {
+        MyFrame[] grown = new MyFrame[workerCount + 1];
+        System.arraycopy(idle, 0, grown, 0, idleCount);
+        idle = grown;
+        idle[idleCount++] = new MyFrame(worker);
+        workerCount++;
+        int window = workerCount * REORDER_WINDOW_PER_WORKER;
+        results = new Result[window][];
+        completed = new boolean[window];
+    }
+
+    /**
+     * Sets the governor which admits the frames, or null to admit them all.
+     */
+    void setGovernor(MyDecodeGovernor governor) {
+        this.governor = governor;
+        metrics.setGovernor(governor);
+    }
+
+    /**
+     * Starts the given source and dispatches the frames it delivers from now
+     * on. Workers must have been added before.
+     */
+    void attachFrameSource(MyFrameSource source) throws IOException {
+        frameSource = source;
+        source.start(this);
+    }
+
+    @Override
+    // MyFrameSource.Callback
+    public void onFrame(MyYPlane plane, int width, int height) {
+        counters.frameCaptured();
+        long now = System.nanoTime();
+        MyFrame frame = null;
+        MyYPlane stale;
+        synchronized (this) {
+            if (lastArrivalNanos != 0) {
+                metrics.frameInterval.recordNanos(now - lastArrivalNanos);
+            } else {
+                metrics.firstFrame.recordNanos(now - metrics.getStartNanos());
+            }
+            lastArrivalNanos = now;
+        }
+        MyDecodeGovernor g = governor;
+        if (g != null && !g.admit(now)) {
+            // 遅延目標を守るため 保留中のフレームにも触れずに返す
+            counters.frameThrottled();
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DROP, -1, MyTraceRecorder.OUTCOME_NONE, 0);
+            frameSource.releaseFrame(plane);
+            return;
+        }
+        synchronized (this) {
+            if (idleCount > 0 && hasWindow()) {
+                frame = idle[--idleCount];
+                idle[idleCount] = null;
+                frame.set(plane, width, height, nextSeq++, now);
+                stale = null;
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_DISPATCH, frame.seq,
+                        MyTraceRecorder.OUTCOME_NONE, 0);
+            } else {
+                // 全ワーカーが処理中なら保留中の古いフレームと差し替える
+                stale = pendingPlane;
+                pendingPlane = plane;
+                pendingWidth = width;
+                pendingHeight = height;
+                pendingNanos = now;
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_PEND, -1,
+                        MyTraceRecorder.OUTCOME_NONE, 0);
+            }
+        }
+        if (frame != null) {
+            frame.worker.process(frame);
+        } else if (stale != null) {
+            counters.frameDropped();
+            MyTraceRecorder.trace(MyTraceRecorder.STAGE_DROP, -1, MyTraceRecorder.OUTCOME_NONE, 0);
+            frameSource.releaseFrame(stale);
+        }
+    }
+
+    /**
+     * Called by a worker when it has decoded its frame. The frame buffer goes
+     * back to the source, the result is queued for in-order delivery, and the
+     * pending frame, if any, is loaded into the same MyFrame.
+     *
+     * @return true if the frame now holds a new frame to decode, false if the
+     *         worker is idle again
+     */
+    boolean finish(MyFrame frame, Result[] decoded) {
+        counters.frameDecoded(decoded != null);
+        long now = System.nanoTime();
+        metrics.endToEnd.recordNanos(now - frame.arrivalNanos);
+        MyDecodeGovernor g = governor;
+        if (g != null) {
+            g.onFrameDone(now - frame.arrivalNanos, now);
+        }
+        MyFrameSource source = frameSource;
+        if (source != null) {
+            source.releaseFrame(frame.plane);
+        }
+        synchronized (this) {
+            frame.plane = null;
+            int slot = slot(frame.seq);
+            results[slot] = decoded;
+            completed[slot] = true;
+            deliverCompleted();
+            if (pendingPlane != null && hasWindow()) {
+                frame.set(pendingPlane, pendingWidth, pendingHeight, nextSeq++, pendingNanos);
+                pendingPlane = null;
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_DISPATCH, frame.seq,
+                        MyTraceRecorder.OUTCOME_NONE, 0);
+                return true;
+            }
+            idle[idleCount++] = frame;
+            return false;
+        }
+    }
+
+    private void deliverCompleted() {
+        while (nextDeliverSeq < nextSeq) {
+            int slot = slot(nextDeliverSeq);
+            if (!completed[slot]) {
+                break;
+            }
+            Result[] decoded = results[slot];
+            results[slot] = null;
+            completed[slot] = false;
+            if (decoded == null) {
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_DELIVER, nextDeliverSeq,
+                        MyTraceRecorder.OUTCOME_MISS, 0);
+                sink.onResult(nextDeliverSeq, null);
+            } else if (nextDeliverSeq < suppressBelowSeq && sameTexts(decoded, lastResults)) {
+                // 同じコードを並行して認識したワーカーの結果は通知しない
+                counters.duplicateSuppressed();
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_DELIVER, nextDeliverSeq,
+                        MyTraceRecorder.OUTCOME_DUPLICATE, decoded.length);
+            } else {
+                lastResults = decoded;
+                suppressBelowSeq = nextSeq;
+                MyTraceRecorder.trace(MyTraceRecorder.STAGE_DELIVER, nextDeliverSeq,
+                        MyTraceRecorder.OUTCOME_HIT, decoded.length);
+                sink.onResult(nextDeliverSeq, decoded);
+            }
+            nextDeliverSeq++;
+        }
+    }
+
+    // a の各コードの内容がすべて b に含まれているか
+    private static boolean sameTexts(Result[] a, Result[] b) {
+        if (b == null || a.length != b.length) {
+            return false;
+        }
+        for (Result r : a) {
+            boolean found = false;
+            for (Result s : b) {
+                if (r.getText().equals(s.getText())) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasWindow() {
+        return nextSeq - nextDeliverSeq < results.length;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % results.length);
+    }
+
+    MyFrameCounters getFrameCounters() {
+        return counters;
+    }
+
+    MyScanMetrics getMetrics() {
+        return metrics;
+    }
+}
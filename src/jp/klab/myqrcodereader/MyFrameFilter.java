@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Decides which preview frames a decoder does not decode at all: those which
+ * the session's {@link MyFrameQualityGate} rejects, and those whose hash
+ * matches a recent miss in the session's {@link MyFrameHashCache}.
+ * <p>
+ * A miss is only stored when a full resolution pass went over the whole crop
+ * and no result point was seen: a decimated or window pass may have missed
+ * what the next frame's full pass would find, and a code whose finder
+ * patterns were seen may decode once the focus settles. A hit removes the
+ * misses which look like its frame.
+ * <p>
+ * An instance belongs to a single decoder; the gate and the cache are shared.
+ */
+final class MyFrameFilter {
+
+    private final MyFrameQualityGate qualityGate;
+    private final MyFrameHashCache missCache;
+    private final long[] frameHash = new long[MyFrameHashCache.HASH_WORDS];
+    private boolean frameHashed;
+    private boolean skipped;
+
+    /**
+     * @param qualityGate
+     *            the gate shared by the decoders of the session, or null
+     * @param missCache
+     *            the miss cache shared by the decoders of the session, or null
+     */
+    MyFrameFilter(MyFrameQualityGate qualityGate, MyFrameHashCache missCache) {
+        this.qualityGate = qualityGate;
+        this.missCache = missCache;
+    }
+
+    /**
+     * Starts a frame.
+     *
+     * @return true if the given crop of the frame should not be decoded
+     */
+    boolean skip(MyYPlane plane, int left, int top, int width, int height) {
+        skipped = qualityGate != null && !qualityGate.accept(plane, left, top, width, height);
+        frameHashed = !skipped && missCache != null
+                && MyFrameHashCache.hash(plane, left, top, width, height, frameHash);
+        if (frameHashed && missCache.isKnownMiss(frameHash, System.nanoTime())) {
+            skipped = true;
+        }
+        return skipped;
+    }
+
+    /**
+     * Ends a frame which was decoded.
+     *
+     * @param cropEmpty
+     *            true if a full resolution pass over the whole crop saw no
+     *            result point
+     */
+    void endFrame(boolean hit, boolean cropEmpty) {
+        if (!frameHashed) {
+            return;
+        }
+        if (hit) {
+            missCache.removeMatches(frameHash);
+        } else if (cropEmpty) {
+            missCache.addMiss(frameHash, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return true if the last frame was skipped
+     */
+    boolean wasSkipped() {
+        return skipped;
+    }
+}
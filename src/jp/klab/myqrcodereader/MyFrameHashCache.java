@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Remembers the scenes in which the readers recently found nothing, so that a
+ * camera held still over a scene without a code does not run the full reader
+ * sweep again on every frame of it.
+ * <p>
+ * A scene is known by a perceptual hash of the crop: the crop is divided into
+ * GRID_SIDE rows of GRID_SIDE + 1 cells, the mean of CELL_SAMPLES x
+ * CELL_SAMPLES pixels is taken in each cell, and two bits of the hash per
+ * cell tell whether it is brighter, or darker, than its right neighbour by
+ * more than DEAD_BAND. The dead band keeps the sensor noise of flat areas
+ * from flipping bits, and comparing neighbours rather than absolute levels
+ * makes the hash follow the layout of the scene rather than its exposure.
+ * Two hashes match when they differ in at most MAX_DISTANCE of their
+ * HASH_BITS bits. The cost is a few thousand byte reads per frame, as for
+ * {@link MyFrameQualityGate}.
+ * <p>
+ * A crop with fewer than MIN_FEATURES edges is not hashed: plain scenes and
+ * faint codes all hash to nearly nothing and would match each other, while
+ * the binarizers give up on a plain scene at little cost anyway.
+ * <p>
+ * At most a given number of misses are kept, the oldest being dropped first,
+ * and each expires a time to live after it was stored. A match does not renew
+ * the entry, so a static scene is still decoded once per time to live, which
+ * bounds how long a code missed by mistake can stay unread. Times are those
+ * of System.nanoTime(), which a change of the wall clock does not move.
+ * <p>
+ * One instance is shared by the decoders of a scan session; it is thread
+ * safe, and its counters are the cache's metrics.
+ */
+final class MyFrameHashCache {
+
+    private static final int GRID_SIDE = 16;
+    private static final int CELL_SAMPLES = 4;
+    private static final int DEAD_BAND = 6;
+    static final int HASH_BITS = GRID_SIDE * GRID_SIDE * 2;
+    static final int HASH_WORDS = HASH_BITS / 64;
+    private static final int MAX_DISTANCE = 16;
+    private static final int MIN_FEATURES = 32;
+
+    private final long ttlNanos;
+    private final long[][] hashes;
+    // 格納時刻 (System.nanoTime)
+    private final long[] storedNanos;
+    private int size;
+    private int next;
+
+    private long lookups;
+    private long hits;
+    private long stored;
+    private long expired;
+    private long evicted;
+
+    /**
+     * @param ttlMillis
+     *            how long a miss is remembered after it was stored
+     */
+    MyFrameHashCache(int capacity, long ttlMillis) {
+        ttlNanos = ttlMillis * 1000000L;
+        hashes = new long[capacity][HASH_WORDS];
+        storedNanos = new long[capacity];
+    }
+
+    /**
+     * Computes the hash of the crop of the luminance plane of a frame into
+     * hash, HASH_WORDS long.
+     *
+     * @return false if the crop is too small or too plain to be hashed
+     */
+    static boolean hash(MyYPlane plane, int left, int top, int width, int height, long[] hash) {
+        int cellWidth = width / (GRID_SIDE + 1);
+        int cellHeight = height / GRID_SIDE;
+        if (cellWidth < CELL_SAMPLES || cellHeight < CELL_SAMPLES) {
+            return false;
+        }
+        int dx = cellWidth / CELL_SAMPLES;
+        int dy = cellHeight / CELL_SAMPLES;
+        int bit = 0;
+        for (int gy = 0; gy < GRID_SIDE; gy++) {
+            int y0 = top + gy * cellHeight + dy / 2;
+            int previous = 0;
+            for (int gx = 0; gx <= GRID_SIDE; gx++) {
+                int x0 = left + gx * cellWidth + dx / 2;
+                int sum = 0;
+                for (int sy = 0, y = y0; sy < CELL_SAMPLES; sy++, y += dy) {
+                    for (int sx = 0, x = x0; sx < CELL_SAMPLES; sx++, x += dx) {
+                        sum += plane.get(x, y);
+                    }
+                }
+                // 標本の合計のまま比較 (不感帯も標本数倍)
+                if (gx > 0) {
+                    int diff = previous - sum;
+                    set(hash, bit++, diff > DEAD_BAND * CELL_SAMPLES * CELL_SAMPLES);
+                    set(hash, bit++, -diff > DEAD_BAND * CELL_SAMPLES * CELL_SAMPLES);
+                }
+                previous = sum;
+            }
+        }
+        return features(hash) >= MIN_FEATURES;
+    }
+
+    private static void set(long[] hash, int bit, boolean value) {
+        long mask = 1L << (bit & 63);
+        if (value) {
+            hash[bit >> 6] |= mask;
+        } else {
+            hash[bit >> 6] &= ~mask;
+        }
+    }
+
+    // 閾値を超えた隣接セルの明暗差の数 (立っているビット数)
+    private static int features(long[] hash) {
+        int count = 0;
+        for (long word : hash) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @param nowNanos
+     *            the current System.nanoTime()
+     * @return true if the hash matches a miss stored within the time to live
+     */
+    synchronized boolean isKnownMiss(long[] hash, long nowNanos) {
+        lookups++;
+        expire(nowNanos);
+        if (find(hash) < 0) {
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Stores the hash of a frame in which nothing was found, replacing the
+     * oldest miss when the cache is full.
+     *
+     * @param nowNanos
+     *            the current System.nanoTime()
+     */
+    synchronized void addMiss(long[] hash, long nowNanos) {
+        expire(nowNanos);
+        if (find(hash) >= 0) {
+            // 並行して認識された同じ画面
+            return;
+        }
+        if (size == hashes.length) {
+            evicted++;
+        } else {
+            size++;
+        }
+        System.arraycopy(hash, 0, hashes[next], 0, HASH_WORDS);
+        storedNanos[next] = nowNanos;
+        next = (next + 1) % hashes.length;
+        stored++;
+    }
+
+    /**
+     * Forgets the misses which match the hash of a frame in which a code
+     * was found.
+     */
+    synchronized void removeMatches(long[] hash) {
+        int index;
+        while ((index = find(hash)) >= 0) {
+            remove(index);
+        }
+    }
+
+    synchronized void clear() {
+        size = 0;
+        next = 0;
+    }
+
+    // 古い順に並ぶので 先頭から期限切れを捨てる
+    private void expire(long nowNanos) {
+        while (size > 0 && nowNanos - storedNanos[oldest()] >= ttlNanos) {
+            size--;
+            expired++;
+        }
+    }
+
+    private int oldest() {
+        return (next - size + hashes.length) % hashes.length;
+    }
+
+    private int find(long[] hash) {
+        for (int i = 0, index = oldest(); i < size; i++, index = (index + 1) % hashes.length) {
+            int distance = 0;
+            long[] h = hashes[index];
+            for (int w = 0; w < HASH_WORDS; w++) {
+                distance += Long.bitCount(h[w] ^ hash[w]);
+            }
+            if (distance <= MAX_DISTANCE) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    // 後ろの要素を詰めて古い順を保つ
+    private void remove(int index) {
+        int last = (next - 1 + hashes.length) % hashes.length;
+        for (int i = index; i != last; i = (i + 1) % hashes.length) {
+            int j = (i + 1) % hashes.length;
+            System.arraycopy(hashes[j], 0, hashes[i], 0, HASH_WORDS);
+            storedNanos[i] = storedNanos[j];
+        }
+        next = last;
+        size--;
+    }
+
+    synchronized long getLookups() {
+        return lookups;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "lookups=" + lookups + " hits=" + hits + " stored=" + stored + " expired="
+                + expired + " evicted=" + evicted + " remembered=" + size;
+    }
+}
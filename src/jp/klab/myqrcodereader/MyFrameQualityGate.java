@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Decides, before any reader runs, whether a preview frame is worth decoding.
+ * While the device is moving or autofocus is hunting most frames are blurred,
+ * and decoding them only keeps the decode threads busy when a sharp frame
+ * arrives.
+ * <p>
+ * Two scores are computed on a grid of about GRID_SIDE samples along the short
+ * side of the crop. Sharpness is the mean gradient energy between each sample
+ * and its right and lower neighbour pixels. Motion is the mean absolute
+ * difference between the samples and those of the previous frame. A frame is
+ * skipped when its sharpness is below SHARPNESS_RATIO of the recent peak, or
+ * below MOVING_SHARPNESS_RATIO of it while the motion exceeds MOTION_LIMIT.
+ * The peak decays by PEAK_DECAY per frame, so the threshold follows the
+ * scene, and after MAX_SKIPS skipped frames in a row one frame is let through
+ * regardless. The cost is a few thousand byte reads per frame.
+ * <p>
+ * One instance is shared by the decoders of a scan session; it is thread
+ * safe, and its scores and counters are the gate's metrics.
+ */
+final class MyFrameQualityGate {
+
+    private static final int GRID_SIDE = 48;
+    private static final float SHARPNESS_RATIO = 0.4f;
+    private static final float MOVING_SHARPNESS_RATIO = 0.8f;
+    private static final float MOTION_LIMIT = 16f;
+    private static final float PEAK_DECAY = 0.98f;
+    private static final int MAX_SKIPS = 6;
+
+    private byte[] previous = new byte[0];
+    private int previousCount;
+    private float peak;
+    private int consecutiveSkips;
+
+    private long evaluated;
+    private long skipped;
+    private long forced;
+    private float lastSharpness;
+    private float lastMotion;
+    private float lastThreshold;
+
+    /**
+     * Scores the crop of the luminance plane of a frame.
+     *
+     * @return false if the frame should not be decoded
+     */
+    boolean accept(MyYPlane plane, int left, int top, int width, int height) {
+        int step = Math.max(2, Math.min(width, height) / GRID_SIDE);
+        int columns = (width - 1) / step;
+        int rows = (height - 1) / step;
+        if (columns <= 0 || rows <= 0) {
+            return true;
+        }
+        // 勾配エネルギーはフレームごとに独立なのでロック外で計算
+        long energy = 0;
+        for (int gy = 0; gy < rows; gy++) {
+            int y = top + gy * step;
+            for (int gx = 0, x = left; gx < columns; gx++, x += step) {
+                int c = plane.get(x, y);
+                int dx = plane.get(x + 1, y) - c;
+                int dy = plane.get(x, y + 1) - c;
+                energy += dx * dx + dy * dy;
+            }
+        }
+        float sharpness = (float) energy / (columns * rows);
+        synchronized (this) {
+            float motion = compareWithPrevious(plane, left, top, step, columns, rows);
+            evaluated++;
+            peak = Math.max(sharpness, peak * PEAK_DECAY);
+            float threshold = peak * (motion > MOTION_LIMIT
+                    ? MOVING_SHARPNESS_RATIO : SHARPNESS_RATIO);
+            lastSharpness = sharpness;
+            lastMotion = motion;
+            lastThreshold = threshold;
+            if (sharpness >= threshold) {
+                consecutiveSkips = 0;
+                return true;
+            }
+            if (++consecutiveSkips > MAX_SKIPS) {
+                // 判定が外れ続けている可能性があるので一定数ごとに通す
+                consecutiveSkips = 0;
+                forced++;
+                return true;
+            }
+            skipped++;
+            return false;
+        }
+    }
+
+    // 前フレームの標本との平均絶対差 (標本数が変わった場合は 0) を返し 今回の標本を保存
+    private float compareWithPrevious(MyYPlane plane, int left, int top, int step,
+            int columns, int rows) {
+        int count = columns * rows;
+        boolean comparable = count == previousCount;
+        if (previous.length < count) {
+            previous = new byte[count];
+        }
+        long diff = 0;
+        int i = 0;
+        for (int gy = 0; gy < rows; gy++) {
+            int y = top + gy * step;
+            for (int gx = 0, x = left; gx < columns; gx++, x += step, i++) {
+                int v = plane.get(x, y);
+                if (comparable) {
+                    diff += Math.abs(v - (previous[i] & 0xff));
+                }
+                previous[i] = (byte) v;
+            }
+        }
+        previousCount = count;
+        return comparable ? (float) diff / count : 0f;
+    }
+
+    synchronized long getEvaluated() {
+        return evaluated;
+    }
+
+    synchronized long getSkipped() {
+        return skipped;
+    }
+
+    synchronized long getForced() {
+        return forced;
+    }
+
+    synchronized float getLastSharpness() {
+        return lastSharpness;
+    }
+
+    synchronized float getLastMotion() {
+        return lastMotion;
+    }
+
+    synchronized float getLastThreshold() {
+        return lastThreshold;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "evaluated=" + evaluated + " skipped=" + skipped + " forced=" + forced
+                + " sharpness=" + Math.round(lastSharpness) + "/"
+                + Math.round(lastThreshold) + " motion=" + Math.round(lastMotion);
+    }
+}
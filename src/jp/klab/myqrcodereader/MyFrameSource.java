@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.IOException;
+
+/**
+ * A producer of preview frames for the decode thread, each delivered as its
+ * luminance plane. The camera is one implementation, through the legacy
+ * Camera API or through Camera2 where available; a recorded file replayed at a
+ * fixed rate is another, so the decode pipeline can also run without camera
+ * hardware.
+ */
+interface MyFrameSource {
+
+    interface Callback {
+        /**
+         * Called from the source's own thread for every frame. The plane
+         * belongs to the receiver until it is handed back with
+         * {@link MyFrameSource#releaseFrame(MyYPlane)}.
+         */
+        void onFrame(MyYPlane plane, int width, int height);
+    }
+
+    void start(Callback callback) throws IOException;
+
+    /**
+     * Hands a frame back to the source once the receiver is done with it,
+     * which also lets the source deliver the next frame.
+     */
+    void releaseFrame(MyYPlane plane);
+
+    void stop();
+}
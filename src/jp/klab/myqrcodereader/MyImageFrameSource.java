@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivers the images of an {@link ImageQueue} as frames: each image is
+ * handed to the callback as a {@link MyYPlane} over its Y plane, without
+ * copying, and closed when the frame is released. This is the frame side of
+ * {@link MyCamera2FrameSource}, where the queue is an ImageReader; it is kept
+ * apart from the Camera2 API so that it also runs off-device, against a
+ * stand-in queue.
+ * <p>
+ * A queue which is detached, because the session is stopped or restarted,
+ * is only closed once every image taken out has been released, since closing
+ * an ImageReader frees the buffers of its images. Images arriving while no
+ * callback is set are closed at once.
+ * <p>
+ * Thread safe; images are taken on the camera thread and released by the
+ * decode threads.
+ *
+ * @param <I>
+ *            the image type of the queue
+ */
+final class MyImageFrameSource<I> implements MyFrameSource {
+
+    /**
+     * A bounded queue of images, such as an ImageReader, seen through
+     * stateless accessors so that no wrapper is allocated per image.
+     */
+    interface ImageQueue<I> {
+        /**
+         * @return the newest image, the older ones being dropped, or null if
+         *         there is none or the queue's maximum of images is held
+         */
+        I acquireLatest();
+
+        int getWidth(I image);
+
+        int getHeight(I image);
+
+        /**
+         * Points the plane at the Y plane of the image.
+         */
+        void setYPlane(I image, MyYPlane plane);
+
+        void close(I image);
+
+        /**
+         * Closes the queue; called once no image of it is held any more.
+         */
+        void close();
+    }
+
+    private final List<Slot<I>> freeSlots = new ArrayList<Slot<I>>();
+    private ImageQueue<I> queue;
+    // デコード中の画像の数 (すべて返却されるまで外したキューを閉じない)
+    private int outstanding;
+    private final List<ImageQueue<I>> closingQueues = new ArrayList<ImageQueue<I>>();
+    private volatile Callback callback;
+
+    /**
+     * Takes its images from the given queue from now on; a previous queue is
+     * detached.
+     */
+    synchronized void attach(ImageQueue<I> queue) {
+        detach();
+        this.queue = queue;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Called on the camera thread when the given queue has a new image.
+     */
+    void onImageAvailable(ImageQueue<I> from) {
+        I image = from.acquireLatest();
+        if (image == null) {
+            // 全画像が認識中 このフレームは見送る
+            return;
+        }
+        Callback cb = callback;
+        Slot<I> slot = null;
+        synchronized (this) {
+            if (cb != null && from == queue) {
+                int last = freeSlots.size() - 1;
+                slot = last >= 0 ? freeSlots.remove(last) : new Slot<I>();
+                outstanding++;
+            }
+        }
+        if (slot == null) {
+            from.close(image);
+            return;
+        }
+        slot.image = image;
+        slot.queue = from;
+        from.setYPlane(image, slot.plane);
+        slot.plane.owner = slot;
+        cb.onFrame(slot.plane, from.getWidth(image), from.getHeight(image));
+    }
+
+    @Override
+    public synchronized void releaseFrame(MyYPlane plane) {
+        @SuppressWarnings("unchecked")
+        Slot<I> slot = (Slot<I>) plane.owner;
+        if (slot == null) {
+            return;
+        }
+        plane.owner = null;
+        // 画像は取り出したキューで閉じる (既に外したキューの場合もある)
+        slot.queue.close(slot.image);
+        slot.image = null;
+        slot.queue = null;
+        freeSlots.add(slot);
+        outstanding--;
+        if (outstanding == 0) {
+            for (ImageQueue<I> q : closingQueues) {
+                q.close();
+            }
+            closingQueues.clear();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        callback = null;
+        detach();
+    }
+
+    private void detach() {
+        if (queue == null) {
+            return;
+        }
+        if (outstanding == 0) {
+            queue.close();
+        } else {
+            closingQueues.add(queue);
+        }
+        queue = null;
+    }
+
+    synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * A plane with the image it wraps and the queue the image came from;
+     * kept for reuse so that no object is allocated per frame.
+     */
+    private static final class Slot<I> {
+        final MyYPlane plane = new MyYPlane();
+        I image;
+        ImageQueue<I> queue;
+    }
+}
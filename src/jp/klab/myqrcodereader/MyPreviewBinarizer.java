@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * A binarizer for preview frames, with the local thresholds of
+ * HybridBinarizer applied at a lower cost:
+ * <ul>
+ * <li>The sum, minimum and maximum of every 8x8 block are gathered in one
+ * pass over the rows of the luminance matrix, rather than block by block,
+ * and the minimum and maximum only until the block has enough contrast.
+ * The black point of a block follows the rules of HybridBinarizer, including
+ * its handling of flat blocks.</li>
+ * <li>The 5x5 block average around each block is read from an integral image
+ * of the black points, in constant time rather than 25 additions.</li>
+ * <li>The black matrix is written a row at a time, 32 pixels to a word,
+ * rather than one BitMatrix.set() call per black pixel.</li>
+ * </ul>
+ * Fewer than one block in LOW_CONTRAST_BLOCKS with any contrast make a low
+ * contrast scene, which the GlobalHistogramBinarizer algorithm binarizes
+ * with one threshold instead. Its histogram is taken over the means of the
+ * blocks already gathered rather than over four rows of pixels, so that the
+ * sensor noise of a flat or out of focus scene does not make up a second
+ * peak; when the block means span no more than MIN_DYNAMIC_RANGE, the
+ * binarizer gives up at once, before any reader runs, and the failure is
+ * kept until {@link #invalidate()}, so the readers do not repeat it. A code
+ * of low contrast still gives the block means two peaks. Crops too small for 5x5
+ * blocks take the GlobalHistogramBinarizer algorithm as it is. Black rows
+ * for the 1D readers are those of GlobalHistogramBinarizer, as with
+ * HybridBinarizer.
+ * <p>
+ * Like {@link MyReusableBinarizer}, the instance keeps its working arrays and
+ * its BitMatrix from one frame to the next, is bound to a reused luminance
+ * source once and is invalidated whenever the source has been pointed at a
+ * new frame. The matrix is fully overwritten by each frame, so it is never
+ * cleared, and it must not be kept beyond the decode of the current frame.
+ */
+final class MyPreviewBinarizer extends Binarizer {
+
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+    private static final int MIN_DYNAMIC_RANGE = 24;
+    // コントラストのあるブロックがこの割合を下回れば大域ヒストグラムで二値化
+    private static final int LOW_CONTRAST_BLOCKS = 64;
+    private static final int LUMINANCE_SHIFT = MyReusableBinarizer.LUMINANCE_SHIFT;
+    private static final int LUMINANCE_BUCKETS = MyReusableBinarizer.LUMINANCE_BUCKETS;
+
+    // 1D リーダー向けの行単位の二値化
+    private final MyReusableBinarizer rowBinarizer;
+    private final int[] buckets = new int[LUMINANCE_BUCKETS];
+    private int[] blockSums = new int[0];
+    private int[] blockMins = new int[0];
+    private int[] blockMaxs = new int[0];
+    private int[] blackPoints = new int[0];
+    private int[] blockAverages = new int[0];
+    private int[] integral = new int[0];
+    private int[] thresholds = new int[0];
+    private BitArray rowBits;
+    private BitMatrix matrix;
+    private boolean matrixValid;
+    private boolean notFound;
+
+    MyPreviewBinarizer(LuminanceSource source) {
+        super(source);
+        rowBinarizer = new MyReusableBinarizer(source);
+    }
+
+    /**
+     * Forgets the black matrix of the previous frame.
+     */
+    void invalidate() {
+        matrixValid = false;
+        notFound = false;
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new MyPreviewBinarizer(source);
+    }
+
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        return rowBinarizer.getBlackRow(y, row);
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        if (notFound) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+        if (matrixValid) {
+            return matrix;
+        }
+        LuminanceSource source = getLuminanceSource();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (matrix == null || matrix.getWidth() != width || matrix.getHeight() != height) {
+            matrix = new BitMatrix(width, height);
+            rowBits = new BitArray(width);
+        }
+        byte[] luminances = source.getMatrix();
+        try {
+            if (width < MINIMUM_DIMENSION || height < MINIMUM_DIMENSION) {
+                globalThreshold(luminances, width, height,
+                        rowBlackPoint(luminances, width, height));
+            } else if (!localThresholds(luminances, width, height)) {
+                globalThreshold(luminances, width, height, blockBlackPoint());
+            }
+        } catch (NotFoundException nfe) {
+            notFound = true;
+            throw nfe;
+        }
+        matrixValid = true;
+        return matrix;
+    }
+
+    /**
+     * Binarizes the frame with the threshold of each block.
+     *
+     * @return false, leaving the matrix untouched, if the scene has too little
+     *         contrast
+     */
+    private boolean localThresholds(byte[] luminances, int width, int height) {
+        int subWidth = (width + BLOCK_SIZE - 1) >> BLOCK_SIZE_POWER;
+        int subHeight = (height + BLOCK_SIZE - 1) >> BLOCK_SIZE_POWER;
+        int blocks = subWidth * subHeight;
+        if (blackPoints.length != blocks || thresholds.length != width) {
+            blockSums = new int[subWidth];
+            blockMins = new int[subWidth];
+            blockMaxs = new int[subWidth];
+            blackPoints = new int[blocks];
+            blockAverages = new int[blocks];
+            integral = new int[(subWidth + 1) * (subHeight + 1)];
+            thresholds = new int[width];
+        }
+        if (calculateBlackPoints(luminances, subWidth, subHeight, width, height)
+                * LOW_CONTRAST_BLOCKS < blocks) {
+            return false;
+        }
+        calculateIntegral(subWidth, subHeight);
+        int[] bits = rowBits.getBitArray();
+        for (int by = 0; by < subHeight; by++) {
+            // 周囲 5x5 ブロックの黒点の平均 (端では内側に寄せる) を画素の列ごとに展開
+            int top = cap(by, 2, subHeight - 3) - 2;
+            for (int bx = 0; bx < subWidth; bx++) {
+                int left = cap(bx, 2, subWidth - 3) - 2;
+                int threshold = blockSum(subWidth, left, top) / 25;
+                int xEnd = Math.min((bx + 1) << BLOCK_SIZE_POWER, width);
+                for (int x = bx << BLOCK_SIZE_POWER; x < xEnd; x++) {
+                    thresholds[x] = threshold;
+                }
+            }
+            int yEnd = Math.min((by + 1) << BLOCK_SIZE_POWER, height);
+            for (int y = by << BLOCK_SIZE_POWER; y < yEnd; y++) {
+                int offset = y * width;
+                int word = 0;
+                for (int x = 0; x < width; x++) {
+                    // luminance <= threshold, so that black == 0 pixels are
+                    // black even if the threshold is 0 (分岐なし)
+                    word |= ((((thresholds[x] - (luminances[offset + x] & 0xff)) >>> 31) ^ 1)
+                            << (x & 0x1f));
+                    if ((x & 0x1f) == 0x1f) {
+                        bits[x >> 5] = word;
+                        word = 0;
+                    }
+                }
+                if ((width & 0x1f) != 0) {
+                    bits[width >> 5] = word;
+                }
+                matrix.setRow(y, rowBits);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates a single black point for each 8x8 block of pixels, the last
+     * ones in a row or column covering what is left, by the rules of
+     * HybridBinarizer, and keeps the mean of each block.
+     *
+     * @return the number of blocks with more than MIN_DYNAMIC_RANGE between
+     *         their darkest and lightest pixels
+     */
+    private int calculateBlackPoints(byte[] luminances, int subWidth, int subHeight,
+            int width, int height) {
+        int contrastBlocks = 0;
+        for (int by = 0; by < subHeight; by++) {
+            for (int bx = 0; bx < subWidth; bx++) {
+                blockSums[bx] = 0;
+                blockMins[bx] = 0xff;
+                blockMaxs[bx] = 0;
+            }
+            int yStart = by << BLOCK_SIZE_POWER;
+            int yEnd = Math.min(yStart + BLOCK_SIZE, height);
+            // 行順に走査してブロックごとの和と最小最大を集計
+            int fullBlocks = width >> BLOCK_SIZE_POWER;
+            for (int y = yStart; y < yEnd; y++) {
+                int offset = y * width;
+                for (int bx = 0; bx < fullBlocks; bx++) {
+                    accumulate(luminances, offset + (bx << BLOCK_SIZE_POWER), bx, BLOCK_SIZE);
+                }
+                if (fullBlocks < subWidth) {
+                    accumulate(luminances, offset + (fullBlocks << BLOCK_SIZE_POWER),
+                            fullBlocks, width - (fullBlocks << BLOCK_SIZE_POWER));
+                }
+            }
+            int rows = yEnd - yStart;
+            for (int bx = 0; bx < subWidth; bx++) {
+                int columns = Math.min(BLOCK_SIZE, width - (bx << BLOCK_SIZE_POWER));
+                int min = blockMins[bx];
+                int average = blockSums[bx] / (rows * columns);
+                blockAverages[by * subWidth + bx] = average;
+                if (blockMaxs[bx] - min > MIN_DYNAMIC_RANGE) {
+                    contrastBlocks++;
+                } else {
+                    // If variation within the block is low, assume this is a
+                    // block with only light or only dark pixels, and use half
+                    // the min for the block unless its neighbours, which have
+                    // estimates already, say it is darker than the background.
+                    average = min >> 1;
+                    if (by > 0 && bx > 0) {
+                        int averageNeighborBlackPoint = (blackPoints[(by - 1) * subWidth + bx]
+                                + (2 * blackPoints[by * subWidth + bx - 1])
+                                + blackPoints[(by - 1) * subWidth + bx - 1]) >> 2;
+                        if (min < averageNeighborBlackPoint) {
+                            average = averageNeighborBlackPoint;
+                        }
+                    }
+                }
+                blackPoints[by * subWidth + bx] = average;
+            }
+        }
+        return contrastBlocks;
+    }
+
+    /**
+     * Adds length pixels from offset to the sum of block bx, and to its
+     * minimum and maximum while the block has too little contrast.
+     */
+    private void accumulate(byte[] luminances, int offset, int bx, int length) {
+        int sum = 0;
+        int min = blockMins[bx];
+        int max = blockMaxs[bx];
+        if (max - min > MIN_DYNAMIC_RANGE) {
+            // コントラスト十分なブロックは和のみ
+            for (int i = 0; i < length; i++) {
+                sum += luminances[offset + i] & 0xff;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                int pixel = luminances[offset + i] & 0xff;
+                sum += pixel;
+                min = Math.min(min, pixel);
+                max = Math.max(max, pixel);
+            }
+            blockMins[bx] = min;
+            blockMaxs[bx] = max;
+        }
+        blockSums[bx] += sum;
+    }
+
+    private void calculateIntegral(int subWidth, int subHeight) {
+        int stride = subWidth + 1;
+        for (int by = 0; by < subHeight; by++) {
+            int rowSum = 0;
+            for (int bx = 0; bx < subWidth; bx++) {
+                rowSum += blackPoints[by * subWidth + bx];
+                integral[(by + 1) * stride + bx + 1] = integral[by * stride + bx + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the black points of the 5x5 blocks from (left, top)
+     */
+    private int blockSum(int subWidth, int left, int top) {
+        int stride = subWidth + 1;
+        int upper = top * stride;
+        int lower = (top + 5) * stride;
+        return integral[lower + left + 5] - integral[lower + left]
+                - integral[upper + left + 5] + integral[upper + left];
+    }
+
+    private static int cap(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * @return the black point of the histogram of four rows, as
+     *         GlobalHistogramBinarizer finds it
+     */
+    private int rowBlackPoint(byte[] luminances, int width, int height)
+            throws NotFoundException {
+        for (int i = 0; i < LUMINANCE_BUCKETS; i++) {
+            buckets[i] = 0;
+        }
+        for (int y = 1; y < 5; y++) {
+            int offset = height * y / 5 * width;
+            int right = (width << 2) / 5;
+            for (int x = width / 5; x < right; x++) {
+                buckets[(luminances[offset + x] & 0xff) >> LUMINANCE_SHIFT]++;
+            }
+        }
+        return MyReusableBinarizer.estimateBlackPoint(buckets);
+    }
+
+    /**
+     * @return the black point of the histogram of the block means
+     */
+    private int blockBlackPoint() throws NotFoundException {
+        for (int i = 0; i < LUMINANCE_BUCKETS; i++) {
+            buckets[i] = 0;
+        }
+        int min = 0xff;
+        int max = 0;
+        for (int average : blockAverages) {
+            buckets[average >> LUMINANCE_SHIFT]++;
+            min = Math.min(min, average);
+            max = Math.max(max, average);
+        }
+        if (max - min <= MIN_DYNAMIC_RANGE) {
+            // 一様な画面 (estimateBlackPoint() は単一の山でも谷を返す)
+            throw NotFoundException.getNotFoundInstance();
+        }
+        return MyReusableBinarizer.estimateBlackPoint(buckets);
+    }
+
+    /**
+     * Binarizes the frame with a single threshold.
+     */
+    private void globalThreshold(byte[] luminances, int width, int height, int blackPoint) {
+        int[] bits = rowBits.getBitArray();
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int word = 0;
+            for (int x = 0; x < width; x++) {
+                // luminance < blackPoint
+                word |= (((luminances[offset + x] & 0xff) - blackPoint) >>> 31) << (x & 0x1f);
+                if ((x & 0x1f) == 0x1f) {
+                    bits[x >> 5] = word;
+                    word = 0;
+                }
+            }
+            if ((width & 0x1f) != 0) {
+                bits[width >> 5] = word;
+            }
+            matrix.setRow(y, rowBits);
+        }
+    }
+}
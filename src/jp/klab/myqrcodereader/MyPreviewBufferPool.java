@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.hardware.Camera;
+
+/**
+ * A fixed ring of preallocated NV21 preview buffers which are queued to the
+ * camera with addCallbackBuffer(). The ring needs one buffer per decode
+ * worker, one for the dispatcher's pending frame and one for the camera to
+ * fill, or the workers starve for frames.
+ * <p>
+ * A buffer is checked out of the ring when planeOf() hands out its frame, and
+ * goes back to the camera through release(). The buffers are kept across
+ * camera restarts as long as the preview size is unchanged; a restart queues
+ * only the buffers which are not checked out, and the others follow when
+ * they are released. Each buffer comes with the {@link MyYPlane} which wraps
+ * it for the decode pipeline.
+ */
+final class MyPreviewBufferPool {
+
+    private final int bufferCount;
+    private Camera camera;
+    private byte[][] buffers;
+    private MyYPlane[] planes;
+    // デコード中でカメラに渡してはならないバッファ
+    private boolean[] checkedOut;
+    private int bufferSize;
+
+    MyPreviewBufferPool(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Queues the buffers of the ring which are not checked out to the camera,
+     * allocating a new ring first if the preview size has changed.
+     */
+    synchronized void attach(Camera camera, Point cameraResolution) {
+        int size = cameraResolution.x * cameraResolution.y
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        if (buffers == null || bufferSize != size) {
+            buffers = new byte[bufferCount][];
+            planes = new MyYPlane[bufferCount];
+            checkedOut = new boolean[bufferCount];
+            for (int i = 0; i < bufferCount; i++) {
+                buffers[i] = new byte[size];
+                planes[i] = new MyYPlane(buffers[i], cameraResolution.x);
+            }
+            bufferSize = size;
+        }
+        this.camera = camera;
+        for (int i = 0; i < buffers.length; i++) {
+            if (!checkedOut[i]) {
+                camera.addCallbackBuffer(buffers[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks the given buffer out of the ring until it is released.
+     *
+     * @return the plane wrapping the given buffer of the ring, or null if it
+     *         is not one
+     */
+    synchronized MyYPlane planeOf(byte[] buffer) {
+        int i = indexOf(buffer);
+        if (i < 0) {
+            return null;
+        }
+        checkedOut[i] = true;
+        return planes[i];
+    }
+
+    /**
+     * Gives a buffer back to the camera. Buffers of a previous ring are simply
+     * dropped, and buffers released while the camera is detached wait for the
+     * next attach().
+     */
+    synchronized void release(byte[] buffer) {
+        int i = indexOf(buffer);
+        if (i < 0) {
+            return;
+        }
+        checkedOut[i] = false;
+        if (camera != null) {
+            camera.addCallbackBuffer(buffer);
+        }
+    }
+
+    private int indexOf(byte[] buffer) {
+        if (buffers != null && buffer != null) {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] == buffer) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    synchronized void detach() {
+        camera = null;
+    }
+}
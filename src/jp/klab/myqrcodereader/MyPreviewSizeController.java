@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+/**
+ * Steps the preview size up or down among the candidate sizes to keep the
+ * decode time of a frame within a budget.
+ * <p>
+ * Decode times are averaged over windows of WINDOW frames of the current size
+ * (frames skipped by the quality gate are not reported). When the mean of a
+ * window exceeds the budget the next smaller size is chosen. The next larger
+ * size is chosen when the mean scaled by the ratio of the pixel counts still
+ * fits in UP_HEADROOM of the budget, and fewer than MAX_UP_HIT_RATE of the
+ * window's frames decoded, since a scan which succeeds gains nothing from
+ * more detail. After stepping down from a size, stepping back up to it is
+ * blocked for a number of windows which starts at BLOCK_WINDOWS and doubles
+ * each time, up to MAX_BLOCK_WINDOWS, so the controller settles instead of
+ * oscillating. The first window after a change is discarded.
+ * <p>
+ * A change is only proposed; the caller switches the camera and confirms
+ * with {@link #onSwitched}, and no further change is proposed meanwhile.
+ * Thread safe; frames are reported by the decode threads.
+ */
+final class MyPreviewSizeController {
+
+    private static final int WINDOW = 30;
+    private static final float UP_HEADROOM = 0.7f;
+    private static final float MAX_UP_HIT_RATE = 0.5f;
+    private static final int BLOCK_WINDOWS = 10;
+    private static final int MAX_BLOCK_WINDOWS = 80;
+
+    private final int[][] sizes;
+    private final long budgetNanos;
+    private final int[] blockLength;
+    private final long[] blockedUntil;
+    private int current;
+    private boolean pending;
+    private boolean settling;
+    private long windows;
+    private int frames;
+    private int hits;
+    private long totalNanos;
+    private int switches;
+
+    /**
+     * @param sizes
+     *            the candidate sizes as {width, height}, by increasing pixel
+     *            count
+     * @param current
+     *            index of the size in use
+     * @param budgetMillis
+     *            decode time allowed per frame
+     */
+    MyPreviewSizeController(int[][] sizes, int current, long budgetMillis) {
+        if (sizes.length == 0 || current < 0 || current >= sizes.length) {
+            throw new IllegalArgumentException("Bad preview sizes");
+        }
+        this.sizes = sizes;
+        this.current = current;
+        budgetNanos = budgetMillis * 1000000L;
+        blockLength = new int[sizes.length];
+        blockedUntil = new long[sizes.length];
+    }
+
+    /**
+     * Reports the decode of a frame.
+     *
+     * @return the index of the size to switch to, or -1 to keep the current
+     *         one
+     */
+    synchronized int onFrame(int width, int height, long decodeNanos, boolean hit) {
+        if (pending || width != sizes[current][0] || height != sizes[current][1]) {
+            return -1;
+        }
+        frames++;
+        totalNanos += decodeNanos;
+        if (hit) {
+            hits++;
+        }
+        if (frames < WINDOW) {
+            return -1;
+        }
+        long mean = totalNanos / frames;
+        float hitRate = (float) hits / frames;
+        frames = 0;
+        hits = 0;
+        totalNanos = 0;
+        windows++;
+        if (settling) {
+            // 切替え直後のウィンドウは過渡状態なので判定に使わない
+            settling = false;
+            return -1;
+        }
+        if (mean > budgetNanos && current > 0) {
+            int len = blockLength[current] == 0 ? BLOCK_WINDOWS
+                    : Math.min(blockLength[current] * 2, MAX_BLOCK_WINDOWS);
+            blockLength[current] = len;
+            blockedUntil[current] = windows + len;
+            pending = true;
+            return current - 1;
+        }
+        if (current + 1 < sizes.length && windows >= blockedUntil[current + 1]
+                && hitRate < MAX_UP_HIT_RATE
+                && mean * pixels(current + 1) / pixels(current) < budgetNanos * UP_HEADROOM) {
+            pending = true;
+            return current + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Confirms that the camera now runs at the given size, or at the one it
+     * ran at before if the switch failed.
+     */
+    synchronized void onSwitched(int index) {
+        if (index != current) {
+            switches++;
+            settling = true;
+        }
+        current = index;
+        pending = false;
+        frames = 0;
+        hits = 0;
+        totalNanos = 0;
+    }
+
+    private long pixels(int index) {
+        return (long) sizes[index][0] * sizes[index][1];
+    }
+
+    synchronized int getCurrent() {
+        return current;
+    }
+
+    int getWidth(int index) {
+        return sizes[index][0];
+    }
+
+    int getHeight(int index) {
+        return sizes[index][1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return sizes[current][0] + "x" + sizes[current][1] + " switches=" + switches
+                + " budget=" + budgetNanos / 1000000L + "ms";
+    }
+}
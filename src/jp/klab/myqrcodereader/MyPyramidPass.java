@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Result;
+
+/**
+ * Decodes a window first from a copy decimated 2x or 4x by a box filter,
+ * which a code filling much of the finder survives at a fraction of the
+ * binarization and detection cost, and at full resolution when that fails.
+ * <p>
+ * The full resolution pass runs on the same frame unless the decimated pass
+ * saw no result point and either the frame has already spent its budget or
+ * the window is only part of the crop, which is then decoded whole next.
+ * When the full resolution pass decodes what the decimated pass missed (thin
+ * 1D bars, small codes), the decimated pass is skipped for a number of frames
+ * which doubles each time, up to MAX_BACKOFF, so that a stream of codes which
+ * only decode at full resolution does not pay for both passes.
+ * <p>
+ * An instance belongs to a single decoder.
+ */
+final class MyPyramidPass implements MyDecodePass {
+
+    /**
+     * Decodes a window of the crop decimated by a factor.
+     */
+    interface Decimator {
+        /**
+         * @return the decoded result, with its points relative to the full
+         *         resolution crop, or null if nothing was found
+         */
+        Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+                int x, int y, int width, int height, int factor);
+    }
+
+    // 間引き画像の短辺の下限 (これを下回る倍率は使わない)
+    private static final int MIN_SIDE = 100;
+    // 原寸でのみ認識できた場合に間引き処理を見送るフレーム数の上限
+    private static final int MAX_BACKOFF = 32;
+
+    private final Decimator decimated;
+    private final MyDecodePass full;
+    private final MyResultPointMapper points;
+    private final long budgetNanos;
+    private long frameStartNanos;
+    private int cropWidth;
+    private int cropHeight;
+    private int backoff;
+    private int skips;
+
+    /**
+     * @param points
+     *            the callback the passes report their result points to
+     * @param budgetMillis
+     *            the time a frame may have spent, when the decimated pass
+     *            sees nothing, for the full resolution pass to still run
+     */
+    MyPyramidPass(Decimator decimated, MyDecodePass full, MyResultPointMapper points,
+            long budgetMillis) {
+        this.decimated = decimated;
+        this.full = full;
+        this.points = points;
+        budgetNanos = budgetMillis * 1000000L;
+    }
+
+    /**
+     * Starts a frame with a crop of the given size; its budget runs from now.
+     */
+    void startFrame(int cropWidth, int cropHeight) {
+        frameStartNanos = System.nanoTime();
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+    }
+
+    @Override
+    public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int x, int y, int width, int height) {
+        int factor = factor(width, height);
+        boolean decimatedMissed = false;
+        if (factor > 1 && skips > 0) {
+            skips--;
+        } else if (factor > 1) {
+            Result result = decimated.decode(plane, dataWidth, dataHeight, left, top,
+                    x, y, width, height, factor);
+            if (result != null) {
+                backoff = 0;
+                return result;
+            }
+            if (points.getPointCount() == 0 && (width != cropWidth || height != cropHeight
+                    || System.nanoTime() - frameStartNanos > budgetNanos)) {
+                // コードの気配がない 追跡枠ならこの後クロップ全体で探し直すので
+                // ここでは原寸を試さない
+                return null;
+            }
+            decimatedMissed = true;
+        }
+        Result result = full.decode(plane, dataWidth, dataHeight, left, top, x, y, width,
+                height);
+        if (result != null && decimatedMissed) {
+            // 間引き画像では読めないコードなので しばらく原寸のみで認識
+            backoff = Math.min(Math.max(backoff * 2, 1), MAX_BACKOFF);
+            skips = backoff;
+        }
+        return result;
+    }
+
+    /**
+     * @return the largest decimation factor which keeps the short side of the
+     *         window at MIN_SIDE or more, or 1 when the window is too small to
+     *         decimate
+     */
+    static int factor(int width, int height) {
+        int side = Math.min(width, height);
+        if (side >= MIN_SIDE * 4) {
+            return 4;
+        }
+        return side >= MIN_SIDE * 2 ? 2 : 1;
+    }
+}
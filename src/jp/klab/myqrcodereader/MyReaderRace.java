@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+
+/**
+ * Decodes a crop with the 2D readers (QR Code, Data Matrix) and the 1D
+ * readers running at the same time on two threads of their own, rather than
+ * one after the other as MultiFormatReader does, so that a frame's latency is
+ * that of the reader which finds its code rather than the sum of the readers
+ * tried before it. The first result found is returned at once, and the other
+ * side is told to stop.
+ * <p>
+ * The crop is copied once out of the {@link MyYPlane}, whose buffer may only
+ * be read by one thread, into an array which both sides then read without
+ * copying; each side has its own binarizer over it. The array is only
+ * overwritten for the next frame once both sides have finished with it.
+ * <p>
+ * ZXing's readers cannot be interrupted, so cancellation is cooperative: a
+ * side which has lost stops at the next luminance row it asks for (the 1D
+ * readers ask for one row at a time) or the next result point it reports
+ * (the 2D detectors report each finder and alignment pattern), by a
+ * RuntimeException thrown through the reader. A losing 2D side which is past
+ * its last checkpoint runs to its end; the next frame then waits for it.
+ * <p>
+ * A race takes the place of the sequential readers in the full resolution
+ * passes of the {@link MyDecoder} which owns it. It belongs to a single decode
+ * thread, like the decoder, and {@link #close} ends its threads.
+ */
+final class MyReaderRace implements MyDecodePass {
+
+    private static final BarcodeFormat[] TWO_D = {
+            BarcodeFormat.QR_CODE, BarcodeFormat.DATA_MATRIX,
+    };
+
+    private final Object lock = new Object();
+    private final Side twoD;
+    private final Side oneD;
+    private final ExecutorService executor;
+    private final ResultPointCallback target;
+    private final MyLatencyHistogram latency;
+    private byte[] luminances = new byte[0];
+    // 以下 lock で保護
+    private int pending;
+    private Result winner;
+    private volatile boolean cancelled;
+
+    private MyReaderRace(Map<DecodeHintType, Object> hints, EnumSet<BarcodeFormat> twoDFormats,
+            EnumSet<BarcodeFormat> oneDFormats, boolean adaptive, boolean preview,
+            MyScanMetrics metrics) {
+        target = (ResultPointCallback) hints.get(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+        twoD = new Side(reader(hints, twoDFormats, adaptive, metrics), preview);
+        oneD = new Side(reader(hints, oneDFormats, adaptive, metrics), false);
+        latency = metrics != null ? metrics.reader("RACE") : null;
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "race");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param hints
+     *            the hints of the decoder; the result point callback among
+     *            them receives the points of both sides until one has won
+     * @param binarizeForPreview
+     *            binarize the 2D side with {@link MyPreviewBinarizer} rather
+     *            than {@link MyReusableBinarizer}
+     * @return a race between the 2D and 1D formats of the hints, or null if
+     *         they are not both there
+     */
+    static MyReaderRace create(Map<DecodeHintType, Object> hints, boolean adaptive,
+            boolean binarizeForPreview, MyScanMetrics metrics) {
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> formats = (Collection<BarcodeFormat>) hints
+                .get(DecodeHintType.POSSIBLE_FORMATS);
+        EnumSet<BarcodeFormat> oneD = EnumSet.copyOf(formats == null || formats.isEmpty()
+                ? MyDecodeHints.defaultFormats() : formats);
+        EnumSet<BarcodeFormat> twoD = EnumSet.noneOf(BarcodeFormat.class);
+        for (BarcodeFormat format : TWO_D) {
+            if (oneD.remove(format)) {
+                twoD.add(format);
+            }
+        }
+        oneD.removeAll(EnumSet.of(BarcodeFormat.AZTEC, BarcodeFormat.PDF_417,
+                BarcodeFormat.MAXICODE));
+        if (twoD.isEmpty() || oneD.isEmpty()) {
+            return null;
+        }
+        return new MyReaderRace(hints, twoD, oneD, adaptive, binarizeForPreview, metrics);
+    }
+
+    private Reader reader(Map<DecodeHintType, Object> hints, EnumSet<BarcodeFormat> formats,
+            boolean adaptive, MyScanMetrics metrics) {
+        Map<DecodeHintType, Object> sideHints = new EnumMap<DecodeHintType, Object>(hints);
+        sideHints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        sideHints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, new ResultPointCallback() {
+            @Override
+            public void foundPossibleResultPoint(ResultPoint point) {
+                checkpoint();
+                if (target != null) {
+                    synchronized (lock) {
+                        // 決着後の検出点は次のパスの計数に混ぜない
+                        if (!cancelled) {
+                            target.foundPossibleResultPoint(point);
+                        }
+                    }
+                }
+            }
+        });
+        if (adaptive) {
+            MyAdaptiveReader reader = new MyAdaptiveReader(sideHints);
+            reader.setMetrics(metrics);
+            return reader;
+        }
+        MultiFormatReader reader = new MultiFormatReader();
+        reader.setHints(sideHints);
+        return reader;
+    }
+
+    /**
+     * @return the first result found, with its points relative to the crop,
+     *         or null if neither side found anything
+     */
+    @Override
+    public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int x, int y, int width, int height) {
+        long start = System.nanoTime();
+        try {
+            synchronized (lock) {
+                // 前のフレームで負けた側が配列を読み終えるまで待つ
+                while (pending > 0) {
+                    lock.wait();
+                }
+                winner = null;
+                cancelled = false;
+                pending = 2;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        int area = width * height;
+        if (luminances.length < area) {
+            luminances = new byte[area];
+        }
+        for (int row = 0; row < height; row++) {
+            plane.getRow(left + x, top + y + row, luminances, row * width, width);
+        }
+        twoD.setFrame(luminances, width, height);
+        oneD.setFrame(luminances, width, height);
+        executor.execute(twoD);
+        executor.execute(oneD);
+        try {
+            synchronized (lock) {
+                while (winner == null && pending > 0) {
+                    lock.wait();
+                }
+                cancelled = true;
+                return MyResultPointMapper.map(winner, x, y, 1);
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (latency != null) {
+                latency.recordNanos(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Ends the threads of the race once the current frame is done.
+     */
+    void close() {
+        cancelled = true;
+        executor.shutdown();
+    }
+
+    // 負けた側はここで打ち切る
+    private void checkpoint() {
+        if (cancelled) {
+            throw Cancelled.INSTANCE;
+        }
+    }
+
+    private void finish(Result result) {
+        synchronized (lock) {
+            if (result != null && winner == null && !cancelled) {
+                winner = result;
+            }
+            pending--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * One side of the race: a reader with its own source and binarizer over
+     * the shared luminance array.
+     */
+    private final class Side implements Runnable {
+
+        private final Reader reader;
+        private final boolean preview;
+        private SharedSource source;
+        private Binarizer binarizer;
+        private BinaryBitmap bitmap;
+
+        Side(Reader reader, boolean preview) {
+            this.reader = reader;
+            this.preview = preview;
+        }
+
+        void setFrame(byte[] luminances, int width, int height) {
+            if (source == null || source.getWidth() != width || source.getHeight() != height) {
+                source = new SharedSource(width, height);
+                binarizer = preview ? new MyPreviewBinarizer(source)
+                        : new MyReusableBinarizer(source);
+            }
+            source.luminances = luminances;
+            if (preview) {
+                ((MyPreviewBinarizer) binarizer).invalidate();
+            } else {
+                ((MyReusableBinarizer) binarizer).invalidate();
+            }
+            // BinaryBitmap は行列をキャッシュするのでフレームごとに作る
+            bitmap = new BinaryBitmap(binarizer);
+        }
+
+        @Override
+        public void run() {
+            Result result = null;
+            try {
+                checkpoint();
+                if (reader instanceof MultiFormatReader) {
+                    // decode() はヒントを消すので設定済みのまま読む
+                    result = ((MultiFormatReader) reader).decodeWithState(bitmap);
+                } else {
+                    result = reader.decode(bitmap);
+                }
+            } catch (ReaderException re) {
+                // 見つからなかった
+            } catch (Cancelled c) {
+                // 相手側が先に認識した
+            } finally {
+                reader.reset();
+                finish(result);
+            }
+        }
+    }
+
+    /**
+     * The shared luminance array seen through a LuminanceSource, whose reads
+     * are the checkpoints of the race.
+     */
+    private final class SharedSource extends LuminanceSource {
+
+        byte[] luminances;
+
+        SharedSource(int width, int height) {
+            super(width, height);
+        }
+
+        @Override
+        public byte[] getRow(int y, byte[] row) {
+            checkpoint();
+            int width = getWidth();
+            if (row == null || row.length < width) {
+                row = new byte[width];
+            }
+            System.arraycopy(luminances, y * width, row, 0, width);
+            return row;
+        }
+
+        @Override
+        public byte[] getMatrix() {
+            checkpoint();
+            // 読取り専用として共有 (長さは width * height 以上)
+            return luminances;
+        }
+    }
+
+    /**
+     * Thrown through a reader to stop the losing side.
+     */
+    private static final class Cancelled extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        static final Cancelled INSTANCE = new Cancelled();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; // no stack trace needed
+        }
+    }
+}
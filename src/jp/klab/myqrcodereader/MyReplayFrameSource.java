@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a recorded preview stream. The file is a plain concatenation of
+ * NV21 frames of width * height * 3 / 2 bytes each, as delivered by
+ * onPreviewFrame(), and is read through memory-mapped windows so that large
+ * recordings are neither loaded into the heap nor copied twice.
+ * <p>
+ * With a positive frame rate, frames are paced like a camera: when every
+ * buffer is still held by the receiver the frame is skipped. With a frame rate
+ * of zero only one frame is in flight at a time and the source waits for it to
+ * be released, which replays the file as fast as the decoder can take it.
+ * <p>
+ * With a positive row padding the source stands in for a Camera2 image: each
+ * Y plane is laid out in a direct ByteBuffer whose rows are width + padding
+ * bytes apart, as ImageReader delivers them, and decoded from there rather
+ * than from an array.
+ */
+final class MyReplayFrameSource implements MyFrameSource, Runnable {
+
+    private static final int BUFFER_COUNT = 3;
+    private static final long MAX_WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final long frameIntervalNanos;
+    private final boolean loop;
+    private final int bufferCount;
+    private final int rowPadding;
+
+    private final MyYPlane[] freeBuffers;
+    private int freeCount;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private Callback callback;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile boolean finished;
+    private volatile long framesRead;
+    private volatile long framesSkipped;
+
+    MyReplayFrameSource(File file, int width, int height, float fps, boolean loop) {
+        this(file, width, height, fps, loop, 0);
+    }
+
+    /**
+     * @param rowPadding
+     *            0 to deliver frames as arrays, or the bytes of padding at the
+     *            end of each row of a buffer plane
+     */
+    MyReplayFrameSource(File file, int width, int height, float fps, boolean loop,
+            int rowPadding) {
+        this(file, width, height, fps, loop, rowPadding, BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount
+     *            frames which may be out at a time when replaying at a fixed
+     *            rate, as in the preview buffer ring of the camera; one is
+     *            used when replaying as fast as possible
+     */
+    MyReplayFrameSource(File file, int width, int height, float fps, boolean loop,
+            int rowPadding, int bufferCount) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.frameSize = width * height * 3 / 2;
+        this.frameIntervalNanos = fps > 0 ? (long) (1000000000L / fps) : 0;
+        this.loop = loop;
+        this.bufferCount = fps > 0 ? bufferCount : 1;
+        this.rowPadding = rowPadding;
+        this.freeBuffers = new MyYPlane[bufferCount];
+    }
+
+    @Override
+    public synchronized void start(Callback callback) throws IOException {
+        if (thread != null) {
+            return;
+        }
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        if (channel.size() < frameSize) {
+            stop();
+            throw new IOException(file + " holds no complete " + width + "x" + height + " frame");
+        }
+        for (int i = 0; i < bufferCount; i++) {
+            if (rowPadding > 0) {
+                int rowStride = width + rowPadding;
+                freeBuffers[i] = new MyYPlane();
+                freeBuffers[i].set(ByteBuffer.allocateDirect(rowStride * height), rowStride, 1);
+            } else {
+                freeBuffers[i] = new MyYPlane(new byte[frameSize], width);
+            }
+        }
+        freeCount = bufferCount;
+        this.callback = callback;
+        running = true;
+        finished = false;
+        thread = new Thread(this, "MyReplayFrameSource");
+        thread.start();
+    }
+
+    @Override
+    public synchronized void releaseFrame(MyYPlane plane) {
+        if (plane != null && freeCount < bufferCount) {
+            freeBuffers[freeCount++] = plane;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (t != null && t != Thread.currentThread()) {
+            t.interrupt();
+            try {
+                t.join(500L);
+            } catch (InterruptedException e) {
+            }
+        }
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+        }
+        raf = null;
+        channel = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long frameCount = channel.size() / frameSize;
+            int windowFrames = (int) Math.max(1, MAX_WINDOW_BYTES / frameSize);
+            long next = System.nanoTime();
+            do {
+                for (long first = 0; first < frameCount && running; first += windowFrames) {
+                    int count = (int) Math.min(windowFrames, frameCount - first);
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                            first * frameSize, (long) count * frameSize);
+                    for (int i = 0; i < count && running; i++) {
+                        if (frameIntervalNanos > 0) {
+                            next += frameIntervalNanos;
+                            long wait = next - System.nanoTime();
+                            if (wait > 0) {
+                                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                            }
+                        }
+                        MyYPlane plane = takeBuffer(frameIntervalNanos == 0);
+                        if (plane == null) {
+                            framesSkipped++;
+                            continue;
+                        }
+                        window.position(i * frameSize);
+                        if (plane.array() != null) {
+                            window.get(plane.array(), 0, frameSize);
+                        } else {
+                            copyRows(window, plane);
+                        }
+                        framesRead++;
+                        callback.onFrame(plane, width, height);
+                    }
+                }
+            } while (loop && running);
+            waitForAllBuffers();
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            // 読込み失敗は再生終了として扱う
+        } finally {
+            finished = true;
+        }
+    }
+
+    // ウィンドウの現在位置にある Y プレーンを行間隔付きのバッファへ写す
+    private void copyRows(ByteBuffer window, MyYPlane plane) {
+        ByteBuffer row = window.duplicate();
+        ByteBuffer buffer = plane.buffer();
+        int start = window.position();
+        for (int y = 0; y < height; y++) {
+            row.limit(start + (y + 1) * width);
+            row.position(start + y * width);
+            buffer.position(y * plane.getRowStride());
+            buffer.put(row);
+        }
+    }
+
+    private synchronized MyYPlane takeBuffer(boolean wait) throws InterruptedException {
+        while (freeCount == 0) {
+            if (!wait || !running) {
+                return null;
+            }
+            wait();
+        }
+        MyYPlane buffer = freeBuffers[--freeCount];
+        freeBuffers[freeCount] = null;
+        return buffer;
+    }
+
+    private synchronized void waitForAllBuffers() throws InterruptedException {
+        while (freeCount < bufferCount && running) {
+            wait();
+        }
+    }
+
+    /**
+     * @return true once the whole file has been replayed and every frame has
+     *         been released by the receiver
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    long getFramesRead() {
+        return framesRead;
+    }
+
+    long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+}
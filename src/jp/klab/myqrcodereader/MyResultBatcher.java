@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.zxing.Result;
+
+/**
+ * Collects results for delivery to the UI in batches, at most one batch per
+ * interval. The first result added to an empty batch tells the caller when to
+ * deliver it; results added before then join the same batch. A batch holds at
+ * most a given number of results, and further ones are counted as overflow
+ * and dropped.
+ * <p>
+ * Thread safe: results are added from the decode threads and drained on the
+ * UI thread.
+ */
+final class MyResultBatcher {
+
+    private final long intervalMillis;
+    private final int maxBatch;
+    private List<Result> batch;
+    private boolean scheduled;
+    private long lastDrainMillis = Long.MIN_VALUE / 2;
+    private long batches;
+    private long delivered;
+    private long overflow;
+
+    MyResultBatcher(long intervalMillis, int maxBatch) {
+        this.intervalMillis = intervalMillis;
+        this.maxBatch = maxBatch;
+        batch = new ArrayList<Result>(maxBatch);
+    }
+
+    /**
+     * @return the delay in milliseconds after which the caller must call
+     *         {@link #drain}, or -1 if a delivery is already scheduled
+     */
+    synchronized long add(Result result, long nowMillis) {
+        if (batch.size() < maxBatch) {
+            batch.add(result);
+        } else {
+            overflow++;
+        }
+        if (scheduled) {
+            return -1;
+        }
+        scheduled = true;
+        return Math.max(0, lastDrainMillis + intervalMillis - nowMillis);
+    }
+
+    /**
+     * @return the results added since the last delivery, oldest first
+     */
+    synchronized List<Result> drain(long nowMillis) {
+        List<Result> drained = batch;
+        batch = new ArrayList<Result>(maxBatch);
+        scheduled = false;
+        lastDrainMillis = nowMillis;
+        if (!drained.isEmpty()) {
+            batches++;
+            delivered += drained.size();
+        }
+        return drained;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batches=" + batches + " delivered=" + delivered + " overflow=" + overflow;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.zxing.Result;
+
+/**
+ * Remembers the payloads decoded recently in continuous scanning, so that a
+ * code which stays in view is reported once rather than on every frame. A
+ * payload (format and text) seen again within the time to live of its last
+ * sighting is a repeat; each sighting restarts its time to live, so a code
+ * is reported again only after it has been out of view for that long. At most
+ * a given number of payloads are kept, the least recently seen being
+ * forgotten first.
+ * <p>
+ * Thread safe.
+ */
+final class MyResultDeduplicator {
+
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Long> lastSeen;
+    private long accepted;
+    private long suppressed;
+
+    MyResultDeduplicator(final int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        lastSeen = new LinkedHashMap<String, Long>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if the result is new, false if it repeats a payload seen
+     *         within the time to live
+     */
+    synchronized boolean accept(Result result, long nowMillis) {
+        String key = result.getBarcodeFormat() + ":" + result.getText();
+        Long seen = lastSeen.put(key, nowMillis);
+        if (seen != null && nowMillis - seen < ttlMillis) {
+            suppressed++;
+            return false;
+        }
+        accepted++;
+        return true;
+    }
+
+    synchronized void clear() {
+        lastSeen.clear();
+    }
+
+    synchronized long getAccepted() {
+        return accepted;
+    }
+
+    synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "accepted=" + accepted + " suppressed=" + suppressed + " remembered="
+                + lastSeen.size();
+    }
+}
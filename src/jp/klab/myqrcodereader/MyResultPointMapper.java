@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.ResultPointCallback;
+
+/**
+ * Forwards the result points reported during a pass to the app's callback in
+ * full resolution crop coordinates, whichever window and decimation the pass
+ * used, and counts them: a pass which failed without seeing any point found
+ * nothing like a code, which the stages of {@link MyDecoder} act upon.
+ * <p>
+ * An instance belongs to a single decoder.
+ */
+final class MyResultPointMapper implements ResultPointCallback {
+
+    private final ResultPointCallback target;
+    private int cropWidth;
+    private int cropHeight;
+    private int x;
+    private int y;
+    private int factor = 1;
+    // 現在のパスがクロップ全体の原寸認識か
+    private boolean wholeCrop;
+    private int pointCount;
+
+    /**
+     * @param target
+     *            the app's callback, or null
+     */
+    MyResultPointMapper(ResultPointCallback target) {
+        this.target = target;
+    }
+
+    /**
+     * Starts a frame with a crop of the given size.
+     */
+    void startFrame(int cropWidth, int cropHeight) {
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+        wholeCrop = false;
+        pointCount = 0;
+    }
+
+    /**
+     * Starts a pass over the width x height window at (x, y) of the crop,
+     * decimated by factor.
+     */
+    void startPass(int x, int y, int width, int height, int factor) {
+        this.x = x;
+        this.y = y;
+        this.factor = factor;
+        wholeCrop = x == 0 && y == 0 && factor == 1 && width == cropWidth
+                && height == cropHeight;
+        pointCount = 0;
+    }
+
+    /**
+     * @return the number of points reported during the current pass
+     */
+    int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * @return true if the last pass of the frame went over the whole crop at
+     *         full resolution and saw no point
+     */
+    boolean isCropEmpty() {
+        return wholeCrop && pointCount == 0;
+    }
+
+    @Override
+    public void foundPossibleResultPoint(ResultPoint point) {
+        pointCount++;
+        if (target == null) {
+            return;
+        }
+        if (x != 0 || y != 0 || factor != 1) {
+            point = new ResultPoint(x + point.getX() * factor, y + point.getY() * factor);
+        }
+        target.foundPossibleResultPoint(point);
+    }
+
+    /**
+     * @return the result with its points moved from the coordinates of a
+     *         window at (x, y) decimated by factor to crop coordinates
+     */
+    static Result map(Result result, int x, int y, int factor) {
+        if (result == null || (x == 0 && y == 0 && factor == 1)) {
+            return result;
+        }
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null) {
+            return result;
+        }
+        ResultPoint[] mapped = new ResultPoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            if (points[i] != null) {
+                mapped[i] = new ResultPoint(x + points[i].getX() * factor,
+                        y + points[i].getY() * factor);
+            }
+        }
+        Result full = new Result(result.getText(), result.getRawBytes(), mapped,
+                result.getBarcodeFormat(), result.getTimestamp());
+        full.putAllMetadata(result.getResultMetadata());
+        return full;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2009 ZXing authors
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * The HybridBinarizer and GlobalHistogramBinarizer algorithms of ZXing 2.1,
+ * producing the same bits, but with every working array owned by the instance
+ * and kept from one frame to the next. Paired with a
+ * {@link MyYUVLuminanceSource}, the binarizer is bound to the source once and
+ * {@link #invalidate()} is called whenever the source has been pointed at a
+ * new frame.
+ * <p>
+ * The BitMatrix returned by getBlackMatrix() is overwritten by the next frame,
+ * so it must not be kept beyond the decode of the current one.
+ */
+final class MyReusableBinarizer extends Binarizer {
+
+    private static final int LUMINANCE_BITS = 5;
+    static final int LUMINANCE_SHIFT = 8 - LUMINANCE_BITS;
+    static final int LUMINANCE_BUCKETS = 1 << LUMINANCE_BITS;
+
+    // This class uses 5x5 blocks to compute local luminance, where each block
+    // is 8x8 pixels. So this is the smallest dimension in each axis we can
+    // accept.
+    private static final int BLOCK_SIZE_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+    private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+    private static final int MINIMUM_DIMENSION = BLOCK_SIZE * 5;
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    private final int[] buckets = new int[LUMINANCE_BUCKETS];
+    private byte[] luminances = new byte[0];
+    private int[] blackPoints;
+    private BitMatrix matrix;
+    private boolean matrixValid;
+
+    MyReusableBinarizer(LuminanceSource source) {
+        super(source);
+    }
+
+    /**
+     * Forgets the black matrix of the previous frame.
+     */
+    void invalidate() {
+        matrixValid = false;
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new MyReusableBinarizer(source);
+    }
+
+    // Applies simple sharpening to the row data to improve performance of the
+    // 1D Readers.
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        LuminanceSource source = getLuminanceSource();
+        int width = source.getWidth();
+        if (row == null || row.getSize() < width) {
+            row = new BitArray(width);
+        } else {
+            row.clear();
+        }
+
+        initArrays(width);
+        byte[] localLuminances = source.getRow(y, luminances);
+        int[] localBuckets = buckets;
+        for (int x = 0; x < width; x++) {
+            int pixel = localLuminances[x] & 0xff;
+            localBuckets[pixel >> LUMINANCE_SHIFT]++;
+        }
+        int blackPoint = estimateBlackPoint(localBuckets);
+
+        int left = localLuminances[0] & 0xff;
+        int center = localLuminances[1] & 0xff;
+        for (int x = 1; x < width - 1; x++) {
+            int right = localLuminances[x + 1] & 0xff;
+            // A simple -1 4 -1 box filter with a weight of 2.
+            int luminance = ((center << 2) - left - right) >> 1;
+            if (luminance < blackPoint) {
+                row.set(x);
+            }
+            left = center;
+            center = right;
+        }
+        return row;
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        if (matrixValid) {
+            return matrix;
+        }
+        LuminanceSource source = getLuminanceSource();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (matrix == null) {
+            matrix = new BitMatrix(width, height);
+        } else {
+            matrix.clear();
+        }
+        if (width >= MINIMUM_DIMENSION && height >= MINIMUM_DIMENSION) {
+            byte[] localLuminances = source.getMatrix();
+            int subWidth = width >> BLOCK_SIZE_POWER;
+            if ((width & BLOCK_SIZE_MASK) != 0) {
+                subWidth++;
+            }
+            int subHeight = height >> BLOCK_SIZE_POWER;
+            if ((height & BLOCK_SIZE_MASK) != 0) {
+                subHeight++;
+            }
+            if (blackPoints == null || blackPoints.length != subWidth * subHeight) {
+                blackPoints = new int[subWidth * subHeight];
+            }
+            calculateBlackPoints(localLuminances, subWidth, subHeight, width, height);
+            calculateThresholdForBlock(localLuminances, subWidth, subHeight, width, height);
+        } else {
+            globalHistogramMatrix(source, width, height);
+        }
+        matrixValid = true;
+        return matrix;
+    }
+
+    private void globalHistogramMatrix(LuminanceSource source, int width, int height)
+            throws NotFoundException {
+        // Quickly calculates the histogram by sampling four rows from the
+        // image. This proved to be more robust on the blackbox tests than
+        // sampling a diagonal as we used to do.
+        initArrays(width);
+        int[] localBuckets = buckets;
+        for (int y = 1; y < 5; y++) {
+            int row = height * y / 5;
+            byte[] localLuminances = source.getRow(row, luminances);
+            int right = (width << 2) / 5;
+            for (int x = width / 5; x < right; x++) {
+                int pixel = localLuminances[x] & 0xff;
+                localBuckets[pixel >> LUMINANCE_SHIFT]++;
+            }
+        }
+        int blackPoint = estimateBlackPoint(localBuckets);
+
+        // We delay reading the entire image luminance until the black point
+        // estimation succeeds. Although we end up reading four rows twice, it
+        // is consistent with our motto of "fail quickly" which is necessary
+        // for continuous scanning.
+        byte[] localLuminances = source.getMatrix();
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = localLuminances[offset + x] & 0xff;
+                if (pixel < blackPoint) {
+                    matrix.set(x, y);
+                }
+            }
+        }
+    }
+
+    private void initArrays(int luminanceSize) {
+        if (luminances.length < luminanceSize) {
+            luminances = new byte[luminanceSize];
+        }
+        for (int x = 0; x < LUMINANCE_BUCKETS; x++) {
+            buckets[x] = 0;
+        }
+    }
+
+    /**
+     * For each 8x8 block in the image, calculate the average black point using
+     * a 5x5 grid of the blocks around it. Also handles the corner cases
+     * (fractional blocks are computed based on the last 8 pixels in the
+     * row/column which are also used in the previous block).
+     */
+    private void calculateThresholdForBlock(byte[] luminances, int subWidth,
+            int subHeight, int width, int height) {
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            int maxYOffset = height - BLOCK_SIZE;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                int maxXOffset = width - BLOCK_SIZE;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int left = cap(x, 2, subWidth - 3);
+                int top = cap(y, 2, subHeight - 3);
+                int sum = 0;
+                for (int z = -2; z <= 2; z++) {
+                    int rowOffset = (top + z) * subWidth + left;
+                    sum += blackPoints[rowOffset - 2];
+                    sum += blackPoints[rowOffset - 1];
+                    sum += blackPoints[rowOffset];
+                    sum += blackPoints[rowOffset + 1];
+                    sum += blackPoints[rowOffset + 2];
+                }
+                int average = sum / 25;
+                thresholdBlock(luminances, xoffset, yoffset, average, width);
+            }
+        }
+    }
+
+    private static int cap(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * Applies a single threshold to an 8x8 block of pixels.
+     */
+    private void thresholdBlock(byte[] luminances, int xoffset, int yoffset,
+            int threshold, int stride) {
+        for (int y = 0, offset = yoffset * stride + xoffset; y < BLOCK_SIZE; y++, offset += stride) {
+            for (int x = 0; x < BLOCK_SIZE; x++) {
+                // Comparison needs to be <= so that black == 0 pixels are black
+                // even if the threshold is 0.
+                if ((luminances[offset + x] & 0xFF) <= threshold) {
+                    matrix.set(xoffset + x, yoffset + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates a single black point for each 8x8 block of pixels and saves
+     * it away. See the following thread for a discussion of this algorithm:
+     * http://groups.google.com/group/zxing/browse_thread/thread/d06efa2c35a7ddc0
+     */
+    private void calculateBlackPoints(byte[] luminances, int subWidth,
+            int subHeight, int width, int height) {
+        for (int y = 0; y < subHeight; y++) {
+            int yoffset = y << BLOCK_SIZE_POWER;
+            int maxYOffset = height - BLOCK_SIZE;
+            if (yoffset > maxYOffset) {
+                yoffset = maxYOffset;
+            }
+            for (int x = 0; x < subWidth; x++) {
+                int xoffset = x << BLOCK_SIZE_POWER;
+                int maxXOffset = width - BLOCK_SIZE;
+                if (xoffset > maxXOffset) {
+                    xoffset = maxXOffset;
+                }
+                int sum = 0;
+                int min = 0xFF;
+                int max = 0;
+                for (int yy = 0, offset = yoffset * width + xoffset; yy < BLOCK_SIZE; yy++, offset += width) {
+                    for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                        int pixel = luminances[offset + xx] & 0xFF;
+                        sum += pixel;
+                        // still looking for good contrast
+                        if (pixel < min) {
+                            min = pixel;
+                        }
+                        if (pixel > max) {
+                            max = pixel;
+                        }
+                    }
+                    // short-circuit min/max tests once dynamic range is met
+                    if (max - min > MIN_DYNAMIC_RANGE) {
+                        // finish the rest of the rows quickly
+                        for (yy++, offset += width; yy < BLOCK_SIZE; yy++, offset += width) {
+                            for (int xx = 0; xx < BLOCK_SIZE; xx++) {
+                                sum += luminances[offset + xx] & 0xFF;
+                            }
+                        }
+                    }
+                }
+
+                // The default estimate is the average of the values in the
+                // block.
+                int average = sum >> (BLOCK_SIZE_POWER * 2);
+                if (max - min <= MIN_DYNAMIC_RANGE) {
+                    // If variation within the block is low, assume this is a
+                    // block with only light or only dark pixels. In that case
+                    // we do not want to use the average, as it would divide
+                    // this low contrast area into black and white pixels,
+                    // essentially creating data out of noise.
+                    //
+                    // The default assumption is that the block is light/
+                    // background. Since no estimate for the level of dark
+                    // pixels exists locally, use half the min for the block.
+                    average = min >> 1;
+
+                    if (y > 0 && x > 0) {
+                        // Correct the "white background" assumption for blocks
+                        // that have neighbors by comparing the pixels in this
+                        // block to the previously calculated black points.
+                        // This is based on the fact that dark barcode symbology
+                        // is always surrounded by some amount of light
+                        // background for which reasonable black point
+                        // estimates were made. The bp estimated at the
+                        // boundaries is used for the interior.
+
+                        // The (min < bp) is arbitrary but works better than
+                        // other heuristics that were tried.
+                        int averageNeighborBlackPoint = (blackPoints[(y - 1) * subWidth + x]
+                                + (2 * blackPoints[y * subWidth + x - 1])
+                                + blackPoints[(y - 1) * subWidth + x - 1]) >> 2;
+                        if (min < averageNeighborBlackPoint) {
+                            average = averageNeighborBlackPoint;
+                        }
+                    }
+                }
+                blackPoints[y * subWidth + x] = average;
+            }
+        }
+    }
+
+    static int estimateBlackPoint(int[] buckets) throws NotFoundException {
+        // Find the tallest peak in the histogram.
+        int numBuckets = buckets.length;
+        int maxBucketCount = 0;
+        int firstPeak = 0;
+        int firstPeakSize = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            if (buckets[x] > firstPeakSize) {
+                firstPeak = x;
+                firstPeakSize = buckets[x];
+            }
+            if (buckets[x] > maxBucketCount) {
+                maxBucketCount = buckets[x];
+            }
+        }
+
+        // Find the second-tallest peak which is somewhat far from the tallest
+        // peak.
+        int secondPeak = 0;
+        int secondPeakScore = 0;
+        for (int x = 0; x < numBuckets; x++) {
+            int distanceToBiggest = x - firstPeak;
+            // Encourage more distant second peaks by multiplying by square of
+            // distance.
+            int score = buckets[x] * distanceToBiggest * distanceToBiggest;
+            if (score > secondPeakScore) {
+                secondPeak = x;
+                secondPeakScore = score;
+            }
+        }
+
+        // Make sure firstPeak corresponds to the black peak.
+        if (firstPeak > secondPeak) {
+            int temp = firstPeak;
+            firstPeak = secondPeak;
+            secondPeak = temp;
+        }
+
+        // If there is too little contrast in the image to pick a meaningful
+        // black point, throw rather than waste time trying to decode the image,
+        // and risk false positives.
+        if (secondPeak - firstPeak <= numBuckets >> 4) {
+            throw NotFoundException.getNotFoundInstance();
+        }
+
+        // Find a valley between them that is low and closer to the white peak.
+        int bestValley = secondPeak - 1;
+        int bestValleyScore = -1;
+        for (int x = secondPeak - 1; x > firstPeak; x--) {
+            int fromFirst = x - firstPeak;
+            int score = fromFirst * fromFirst * (secondPeak - x) * (maxBucketCount - buckets[x]);
+            if (score > bestValleyScore) {
+                bestValley = x;
+                bestValleyScore = score;
+            }
+        }
+
+        return bestValley << LUMINANCE_SHIFT;
+    }
+}
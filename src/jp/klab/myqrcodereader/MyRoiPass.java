@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Result;
+
+/**
+ * Decodes only the window around the last decoded code, as a
+ * {@link MyRoiTracker} places it, on the frames which follow it. When the
+ * window pass fails without reporting any result point, the code has left
+ * the window and the whole crop of the same frame is decoded as well.
+ * <p>
+ * The window given to this pass is the whole crop. An instance belongs to a
+ * single decoder.
+ */
+final class MyRoiPass implements MyDecodePass {
+
+    private final MyRoiTracker tracker = new MyRoiTracker();
+    private final MyDecodePass pass;
+    private final MyResultPointMapper points;
+
+    /**
+     * @param pass
+     *            the pass decoding the window, or the whole crop
+     * @param points
+     *            the callback the pass reports its result points to
+     */
+    MyRoiPass(MyDecodePass pass, MyResultPointMapper points) {
+        this.pass = pass;
+        this.points = points;
+    }
+
+    @Override
+    public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int x, int y, int width, int height) {
+        Result result;
+        if (tracker.startFrame(width, height)) {
+            // 前回コードを認識した付近だけを認識
+            result = pass.decode(plane, dataWidth, dataHeight, left, top,
+                    tracker.getLeft(), tracker.getTop(), tracker.getWidth(), tracker.getHeight());
+            if (result == null && points.getPointCount() == 0) {
+                // 枠内にコードの気配がないので 同じフレームのクロップ全体で探し直す
+                result = pass.decode(plane, dataWidth, dataHeight, left, top, 0, 0, width,
+                        height);
+            }
+        } else {
+            result = pass.decode(plane, dataWidth, dataHeight, left, top, 0, 0, width, height);
+        }
+        tracker.endFrame(result);
+        return result;
+    }
+}
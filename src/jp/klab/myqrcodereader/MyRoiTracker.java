@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+
+/**
+ * Narrows the decode window of the next frames to where a code was last seen.
+ * The result points of a decoded frame are turned into their bounding box,
+ * padded by PAD_RATIO of its longer side plus MIN_PAD on every side, and the
+ * following frames decode only that window of the crop. The window is rounded outwards
+ * to multiples of WINDOW_STEP so that its size, and with it the decode
+ * buffers, changes rarely. After MAX_MISSES frames in a row without a decode
+ * the full crop is used again.
+ * <p>
+ * Only the points of a decoded Result are used: the possible result points
+ * reported by a pass which fails include rejected finder pattern candidates
+ * anywhere in the crop, and a window built from them could lose the code.
+ * <p>
+ * All coordinates are relative to the crop. An instance belongs to a single
+ * decoder.
+ */
+final class MyRoiTracker {
+
+    private static final float PAD_RATIO = 0.5f;
+    private static final int MIN_PAD = 16;
+    private static final int WINDOW_STEP = 32;
+    private static final int MAX_MISSES = 4;
+    // これを超える面積比なら絞り込む意味がないので全体を使う
+    private static final float MAX_AREA_RATIO = 0.6f;
+
+    private int cropWidth;
+    private int cropHeight;
+    private boolean tracking;
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+    private int misses;
+
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+    private int points;
+
+    /**
+     * Starts a frame with a crop of the given size, and returns whether the
+     * frame should be decoded within the window rather than the whole crop.
+     */
+    boolean startFrame(int cropWidth, int cropHeight) {
+        if (cropWidth != this.cropWidth || cropHeight != this.cropHeight) {
+            this.cropWidth = cropWidth;
+            this.cropHeight = cropHeight;
+            tracking = false;
+        }
+        return tracking;
+    }
+
+    int getLeft() {
+        return left;
+    }
+
+    int getTop() {
+        return top;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    private void addPoint(float x, float y) {
+        if (points++ == 0) {
+            minX = maxX = x;
+            minY = maxY = y;
+            return;
+        }
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * Ends the current frame and places the window for the next one.
+     *
+     * @param result
+     *            the decoded result, with its points in crop coordinates, or
+     *            null if the frame did not decode
+     */
+    void endFrame(Result result) {
+        if (result == null) {
+            if (++misses >= MAX_MISSES) {
+                // 見失ったのでファインダ全体に戻す
+                misses = 0;
+                tracking = false;
+            }
+            return;
+        }
+        misses = 0;
+        points = 0;
+        ResultPoint[] resultPoints = result.getResultPoints();
+        if (resultPoints != null) {
+            for (ResultPoint point : resultPoints) {
+                if (point != null) {
+                    addPoint(point.getX(), point.getY());
+                }
+            }
+        }
+        if (points > 0) {
+            place();
+        } else {
+            tracking = false;
+        }
+    }
+
+    private void place() {
+        float pad = Math.max(maxX - minX, maxY - minY) * PAD_RATIO + MIN_PAD;
+        int l = Math.max(0, (int) (minX - pad));
+        int t = Math.max(0, (int) (minY - pad));
+        int r = Math.min(cropWidth, (int) Math.ceil(maxX + pad));
+        int b = Math.min(cropHeight, (int) Math.ceil(maxY + pad));
+        int w = Math.min(cropWidth, roundUp(r - l));
+        int h = Math.min(cropHeight, roundUp(b - t));
+        if ((float) w * h > (float) cropWidth * cropHeight * MAX_AREA_RATIO) {
+            tracking = false;
+            return;
+        }
+        // 丸めで広げた分は中心を保ったままクロップ内に収める
+        l = clamp(l - (w - (r - l)) / 2, cropWidth - w);
+        t = clamp(t - (h - (b - t)) / 2, cropHeight - h);
+        left = l;
+        top = t;
+        width = w;
+        height = h;
+        tracking = true;
+    }
+
+    private static int roundUp(int v) {
+        return Math.max(WINDOW_STEP, (v + WINDOW_STEP - 1) / WINDOW_STEP * WINDOW_STEP);
+    }
+
+    private static int clamp(int v, int max) {
+        return v < 0 ? 0 : (v > max ? max : v);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * A crop of a preview frame seen rotated by 90 degrees counterclockwise, or
+ * clockwise (270 degrees), so that a 1D code standing across the landscape
+ * frame lies along the rows the 1D readers scan. Nothing is rotated up
+ * front: a row of the view is read from a column of the {@link MyYPlane}
+ * when asked for, where LuminanceSource.rotateCounterClockwise() would copy
+ * the whole crop for each frame.
+ * <p>
+ * Like {@link MyYUVLuminanceSource}, the source is pointed at each new frame
+ * and its size is fixed at construction: the width of the view is the height
+ * of the crop and the other way round. getMatrix() fills a buffer owned by
+ * the instance; the 1D readers only ask for rows.
+ */
+final class MyRotatedLuminanceSource extends LuminanceSource {
+
+    private MyYPlane plane;
+    private int left;
+    private int top;
+    private boolean clockwise;
+    private byte[] matrix;
+
+    /**
+     * @param width
+     *            width of the view, the height of the crop
+     * @param height
+     *            height of the view, the width of the crop
+     */
+    MyRotatedLuminanceSource(int width, int height) {
+        super(width, height);
+    }
+
+    /**
+     * Points the view at the crop of the given frame whose top left corner is
+     * (left, top), and whose size is the rotated size of the view.
+     */
+    void setFrame(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            boolean clockwise) {
+        if (left < 0 || top < 0 || left + getHeight() > dataWidth
+                || top + getWidth() > dataHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        this.plane = plane;
+        this.left = left;
+        this.top = top;
+        this.clockwise = clockwise;
+    }
+
+    /**
+     * @return the x coordinate in the crop of the point (x, y) of the view
+     */
+    float cropX(float x, float y) {
+        return clockwise ? y : getHeight() - 1 - y;
+    }
+
+    /**
+     * @return the y coordinate in the crop of the point (x, y) of the view
+     */
+    float cropY(float x, float y) {
+        return clockwise ? getWidth() - 1 - x : x;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        // 反時計回りでは行 y がクロップの右から y 番目の列 (上から下へ)
+        // 時計回りでは左から y 番目の列 (下から上へ)
+        int x = clockwise ? left + y : left + getHeight() - 1 - y;
+        plane.getColumn(x, top, row, 0, width);
+        if (clockwise) {
+            for (int i = 0, j = width - 1; i < j; i++, j--) {
+                byte temp = row[i];
+                row[i] = row[j];
+                row[j] = temp;
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        int area = width * height;
+        if (matrix == null || matrix.length != area) {
+            matrix = new byte[area];
+        }
+        byte[] row = null;
+        for (int y = 0; y < height; y++) {
+            row = getRow(y, row);
+            System.arraycopy(row, 0, matrix, y * width, width);
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.oned.MultiFormatOneDReader;
+
+/**
+ * Decodes a crop upright and also looks for 1D codes in a
+ * {@link MyRotatedLuminanceSource} view of it, turned by 90 degrees, which
+ * finds the codes whose bars run along the long side of the frame, as a
+ * portrait hold of the phone gives them. The 1D readers scan each row both
+ * ways, so the other rotation would read the same rows again and is not
+ * tried.
+ * <p>
+ * Which of the upright and rotated passes runs first follows the recent hits
+ * of each, with scores decaying by 1/2^DECAY_SHIFT per hit; the second runs
+ * only when the first found nothing. The view, its binarizer and its
+ * BinaryBitmap are kept across frames, since the 1D readers only ask for rows
+ * and nothing is cached. The rotated pass does not report result points
+ * while it runs.
+ * <p>
+ * The window given to this pass is the whole crop. An instance belongs to a
+ * single decoder.
+ */
+final class MyRotatedPass implements MyDecodePass {
+
+    // 向きごとの認識実績の減衰 (認識のたびに 1/2^n ずつ減らす)
+    private static final int DECAY_SHIFT = 3;
+    private static final int HIT = 1 << 8;
+
+    private final MyDecodePass upright;
+    private final Reader reader;
+    private final MyLatencyHistogram latency;
+    private MyRotatedLuminanceSource source;
+    private MyReusableBinarizer binarizer;
+    private BinaryBitmap bitmap;
+    private int uprightScore;
+    private int rotatedScore;
+
+    private MyRotatedPass(MyDecodePass upright, Reader reader, MyScanMetrics metrics) {
+        this.upright = upright;
+        this.reader = reader;
+        latency = metrics != null ? metrics.reader("ROTATED_1D") : null;
+    }
+
+    /**
+     * @param upright
+     *            the pass decoding the crop as it is
+     * @param hints
+     *            the hints of the decoder
+     * @return the rotated pass in front of the upright one, or null if no 1D
+     *         format is configured
+     */
+    static MyRotatedPass create(MyDecodePass upright, Map<DecodeHintType, Object> hints,
+            boolean adaptive, MyScanMetrics metrics) {
+        @SuppressWarnings("unchecked")
+        Collection<BarcodeFormat> formats = (Collection<BarcodeFormat>) hints
+                .get(DecodeHintType.POSSIBLE_FORMATS);
+        EnumSet<BarcodeFormat> oneD = EnumSet.copyOf(formats == null || formats.isEmpty()
+                ? MyDecodeHints.defaultFormats() : formats);
+        oneD.removeAll(EnumSet.of(BarcodeFormat.QR_CODE, BarcodeFormat.DATA_MATRIX,
+                BarcodeFormat.AZTEC, BarcodeFormat.PDF_417, BarcodeFormat.MAXICODE));
+        if (oneD.isEmpty()) {
+            return null;
+        }
+        // 回転座標の検出点はファインダーに描けないので通知しない
+        Map<DecodeHintType, Object> oneDHints = new EnumMap<DecodeHintType, Object>(hints);
+        oneDHints.remove(DecodeHintType.NEED_RESULT_POINT_CALLBACK);
+        oneDHints.put(DecodeHintType.POSSIBLE_FORMATS, oneD);
+        Reader reader = adaptive ? new MyAdaptiveReader(oneDHints)
+                : new MultiFormatOneDReader(oneDHints);
+        return new MyRotatedPass(upright, reader, metrics);
+    }
+
+    @Override
+    public Result decode(MyYPlane plane, int dataWidth, int dataHeight, int left, int top,
+            int x, int y, int width, int height) {
+        boolean rotatedFirst = rotatedScore > uprightScore;
+        Result result = null;
+        if (rotatedFirst) {
+            result = decodeRotated(plane, dataWidth, dataHeight, left, top, width, height);
+        }
+        boolean rotated = result != null;
+        if (result == null) {
+            result = upright.decode(plane, dataWidth, dataHeight, left, top, x, y, width,
+                    height);
+        }
+        if (result == null && !rotatedFirst) {
+            result = decodeRotated(plane, dataWidth, dataHeight, left, top, width, height);
+            rotated = result != null;
+        }
+        if (result != null) {
+            uprightScore -= uprightScore >> DECAY_SHIFT;
+            rotatedScore -= rotatedScore >> DECAY_SHIFT;
+            if (rotated) {
+                rotatedScore += HIT;
+            } else {
+                uprightScore += HIT;
+            }
+        }
+        return result;
+    }
+
+    // クロップを 90 度回転した画像で 1D コードを認識し 検出点をクロップ座標へ戻す
+    private Result decodeRotated(MyYPlane plane, int dataWidth, int dataHeight, int left,
+            int top, int width, int height) {
+        if (source == null || source.getWidth() != height || source.getHeight() != width) {
+            source = new MyRotatedLuminanceSource(height, width);
+            binarizer = new MyReusableBinarizer(source);
+            bitmap = new BinaryBitmap(binarizer);
+        }
+        source.setFrame(plane, dataWidth, dataHeight, left, top, false);
+        long start = System.nanoTime();
+        Result result;
+        try {
+            result = reader.decode(bitmap);
+        } catch (ReaderException re) {
+            return null;
+        } finally {
+            reader.reset();
+            if (latency != null) {
+                latency.recordNanos(System.nanoTime() - start);
+            }
+        }
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null) {
+            return result;
+        }
+        ResultPoint[] mapped = new ResultPoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            if (points[i] != null) {
+                float px = points[i].getX();
+                float py = points[i].getY();
+                mapped[i] = new ResultPoint(source.cropX(px, py), source.cropY(px, py));
+            }
+        }
+        Result full = new Result(result.getText(), result.getRawBytes(), mapped,
+                result.getBarcodeFormat(), result.getTimestamp());
+        full.putAllMetadata(result.getResultMetadata());
+        return full;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Where the time of a scan session goes, stage by stage, plus the frame
+ * counters. One instance is shared by the whole pipeline of a session and
+ * every stage is a {@link MyLatencyHistogram}, so the memory used is fixed
+ * and recording is lock free:
+ * <ul>
+ * <li>camera_open: opening and configuring the camera</li>
+ * <li>first_frame: from the start of the session to the first preview
+ * frame</li>
+ * <li>frame: interval between two preview frames from the source</li>
+ * <li>queue: from the arrival of a frame to the start of its decode</li>
+ * <li>decode: the whole decode of a frame, gate included</li>
+ * <li>binarize: filling the luminance source and binarizing it, per pass</li>
+ * <li>reader.*: one reader group (see {@link MyAdaptiveReader}), per pass;
+ * reader.MULTI_FORMAT when the adaptive mode is off, reader.QR_MULTI and
+ * reader.GENERIC_MULTI in multi-symbol mode, reader.ROTATED_1D for the 1D
+ * pass over the rotated crop, reader.RACE for a race of the 2D and 1D
+ * readers from start to winner</li>
+ * <li>end_to_end: from the arrival of a frame to the end of its decode</li>
+ * <li>delivery: from the result leaving the dispatcher to the UI thread
+ * handling it</li>
+ * <li>ui_lag: how late the UI thread handles the periodic message of the
+ * {@link MyDecodeGovernor}</li>
+ * </ul>
+ * The decisions of the session's governor, if any, follow on a line of their
+ * own.
+ */
+final class MyScanMetrics {
+
+    private static final String[] READERS = {
+            "QR", "DATA_MATRIX", "ONE_D", "MULTI_FORMAT", "QR_MULTI", "GENERIC_MULTI",
+            "ROTATED_1D", "RACE",
+    };
+
+    final MyLatencyHistogram cameraOpen = new MyLatencyHistogram("camera_open");
+    final MyLatencyHistogram firstFrame = new MyLatencyHistogram("first_frame");
+    final MyLatencyHistogram frameInterval = new MyLatencyHistogram("frame");
+    final MyLatencyHistogram queueWait = new MyLatencyHistogram("queue");
+    final MyLatencyHistogram decode = new MyLatencyHistogram("decode");
+    final MyLatencyHistogram binarize = new MyLatencyHistogram("binarize");
+    final MyLatencyHistogram endToEnd = new MyLatencyHistogram("end_to_end");
+    final MyLatencyHistogram delivery = new MyLatencyHistogram("delivery");
+    final MyLatencyHistogram uiLag = new MyLatencyHistogram("ui_lag");
+    private final MyLatencyHistogram[] readers = new MyLatencyHistogram[READERS.length];
+    private final MyFrameCounters counters = new MyFrameCounters();
+    private volatile MyDecodeGovernor governor;
+    private volatile long startMillis = System.currentTimeMillis();
+    private volatile long startNanos = System.nanoTime();
+
+    MyScanMetrics() {
+        for (int i = 0; i < READERS.length; i++) {
+            readers[i] = new MyLatencyHistogram("reader." + READERS[i]);
+        }
+    }
+
+    /**
+     * @return the histogram of the given reader group
+     * @throws IllegalArgumentException
+     *             if there is no such group
+     */
+    MyLatencyHistogram reader(String name) {
+        for (int i = 0; i < READERS.length; i++) {
+            if (READERS[i].equals(name)) {
+                return readers[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown reader " + name);
+    }
+
+    /**
+     * @return System.nanoTime() at the start of the session
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    MyFrameCounters getCounters() {
+        return counters;
+    }
+
+    void setGovernor(MyDecodeGovernor governor) {
+        this.governor = governor;
+    }
+
+    void reset() {
+        cameraOpen.reset();
+        firstFrame.reset();
+        frameInterval.reset();
+        queueWait.reset();
+        decode.reset();
+        binarize.reset();
+        endToEnd.reset();
+        delivery.reset();
+        uiLag.reset();
+        for (MyLatencyHistogram h : readers) {
+            h.reset();
+        }
+        counters.reset();
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Writes {@link #toString()} to the given file, through a temporary file
+     * renamed over it so that a reader never sees a partial snapshot.
+     */
+    void writeSnapshot(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(toString());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return one line for the counters and the frame rates, then one line
+     *         per stage which has values, then one for the governor
+     */
+    @Override
+    public String toString() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(counters).append(String.format(Locale.US, " %.1f/%.1f fps\n",
+                counters.getCaptured() * 1000.0 / elapsed,
+                counters.getDecoded() * 1000.0 / elapsed));
+        append(sb, cameraOpen);
+        append(sb, firstFrame);
+        append(sb, frameInterval);
+        append(sb, queueWait);
+        append(sb, decode);
+        append(sb, binarize);
+        for (MyLatencyHistogram h : readers) {
+            append(sb, h);
+        }
+        append(sb, endToEnd);
+        append(sb, delivery);
+        append(sb, uiLag);
+        MyDecodeGovernor g = governor;
+        if (g != null) {
+            sb.append(g).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, MyLatencyHistogram h) {
+        if (h.getCount() > 0) {
+            sb.append(h).append('\n');
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records typed events of the scan pipeline into a preallocated ring, for
+ * reproducing jank and stalls in the field where string logging is too slow
+ * to leave on. An event is a timestamp, a frame sequence number, a stage, an
+ * outcome, the recording thread and one int argument; recording one neither
+ * locks nor allocates, and once the ring is full the oldest events are
+ * overwritten.
+ * <p>
+ * Each slot holds its event's sequence number, which the writer clears before
+ * and sets after filling the slot, so that {@link #writeTo} running
+ * concurrently skips a slot being rewritten instead of reading a torn event.
+ * <p>
+ * At most one recorder is active at a time; the pipeline records through the
+ * static {@link #trace}, which costs a volatile read while no recorder is
+ * active. The binary format written by {@link #writeTo}, big endian:
+ *
+ * <pre>
+ * int    MAGIC, int VERSION
+ * long   System.nanoTime() and System.currentTimeMillis() at the time of writing
+ * int    number of events, then per event, oldest first:
+ * long   System.nanoTime() of the event
+ * long   frame sequence number, -1 if none
+ * byte   stage, byte outcome, short low bits of the thread id, int argument
+ * </pre>
+ *
+ * MyTraceDump in the JVM tools turns such a file into a timeline.
+ */
+final class MyTraceRecorder {
+
+    static final int MAGIC = 0x4d515452; // "MQTR"
+    static final int VERSION = 1;
+
+    // ステージ
+    static final int STAGE_DISPATCH = 1;
+    static final int STAGE_PEND = 2;
+    static final int STAGE_DROP = 3;
+    static final int STAGE_DECODE_START = 4;
+    static final int STAGE_DECODE_END = 5;
+    static final int STAGE_DELIVER = 6;
+    static final int STAGE_UI = 7;
+    static final int STAGE_MARK = 8;
+    private static final String[] STAGE_NAMES = {
+            "?", "dispatch", "pend", "drop", "decode_start", "decode_end", "deliver", "ui",
+            "mark",
+    };
+
+    // 結果
+    static final int OUTCOME_NONE = 0;
+    static final int OUTCOME_HIT = 1;
+    static final int OUTCOME_MISS = 2;
+    static final int OUTCOME_DUPLICATE = 3;
+    private static final String[] OUTCOME_NAMES = { "", "hit", "miss", "duplicate" };
+
+    private static final int WORDS = 4;
+    private static volatile MyTraceRecorder active;
+
+    private final int mask;
+    private final AtomicLongArray ring;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            number of events kept, rounded up to a power of two
+     */
+    MyTraceRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = size - 1;
+        ring = new AtomicLongArray(size * WORDS);
+        for (int i = 0; i < size; i++) {
+            ring.set(i * WORDS, -1);
+        }
+    }
+
+    /**
+     * Makes the given recorder, or none if null, the target of
+     * {@link #trace}.
+     */
+    static void setActive(MyTraceRecorder recorder) {
+        active = recorder;
+    }
+
+    static MyTraceRecorder getActive() {
+        return active;
+    }
+
+    /**
+     * Records an event into the active recorder, if any.
+     */
+    static void trace(int stage, long frame, int outcome, int arg) {
+        MyTraceRecorder recorder = active;
+        if (recorder != null) {
+            recorder.record(stage, frame, outcome, arg);
+        }
+    }
+
+    void record(int stage, long frame, int outcome, int arg) {
+        long time = System.nanoTime();
+        long seq = cursor.getAndIncrement();
+        int base = (int) (seq & mask) * WORDS;
+        ring.set(base, -1);
+        ring.lazySet(base + 1, time);
+        ring.lazySet(base + 2, frame);
+        ring.lazySet(base + 3, (long) (stage & 0xff) << 56 | (long) (outcome & 0xff) << 48
+                | (Thread.currentThread().getId() & 0xffffL) << 32 | (arg & 0xffffffffL));
+        ring.lazySet(base, seq);
+    }
+
+    long getRecorded() {
+        return cursor.get();
+    }
+
+    /**
+     * Writes the events currently in the ring; recording may go on meanwhile.
+     */
+    void writeTo(OutputStream stream) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - (mask + 1));
+        long[] events = new long[(int) (end - start) * (WORDS - 1)];
+        int count = 0;
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & mask) * WORDS;
+            if (ring.get(base) != seq) {
+                continue;
+            }
+            long time = ring.get(base + 1);
+            long frame = ring.get(base + 2);
+            long packed = ring.get(base + 3);
+            if (ring.get(base) != seq) {
+                // 読込み中に上書きされた
+                continue;
+            }
+            events[count * 3] = time;
+            events[count * 3 + 1] = frame;
+            events[count * 3 + 2] = packed;
+            count++;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.nanoTime());
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            long packed = events[i * 3 + 2];
+            out.writeLong(events[i * 3]);
+            out.writeLong(events[i * 3 + 1]);
+            out.writeByte((int) (packed >>> 56));
+            out.writeByte((int) (packed >>> 48));
+            out.writeShort((int) (packed >>> 32));
+            out.writeInt((int) packed);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the events to the given file, through a temporary file renamed
+     * over it.
+     */
+    void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Installs, once per process, a default uncaught exception handler which
+     * writes the active recorder to the given file before handing the
+     * exception to the handler installed before.
+     */
+    static synchronized void writeOnCrash(File file) {
+        Thread.UncaughtExceptionHandler current = Thread.getDefaultUncaughtExceptionHandler();
+        if (current instanceof CrashWriter) {
+            ((CrashWriter) current).file = file;
+            return;
+        }
+        Thread.setDefaultUncaughtExceptionHandler(new CrashWriter(current, file));
+    }
+
+    private static final class CrashWriter implements Thread.UncaughtExceptionHandler {
+
+        private final Thread.UncaughtExceptionHandler next;
+        volatile File file;
+
+        CrashWriter(Thread.UncaughtExceptionHandler next, File file) {
+            this.next = next;
+            this.file = file;
+        }
+
+        @Override
+        public void uncaughtException(Thread thread, Throwable ex) {
+            MyTraceRecorder recorder = active;
+            if (recorder != null) {
+                try {
+                    recorder.writeTo(file);
+                } catch (Throwable t) {
+                    // 異常終了処理を妨げない
+                }
+            }
+            if (next != null) {
+                next.uncaughtException(thread, ex);
+            }
+        }
+    }
+
+    static String stageName(int stage) {
+        return stage > 0 && stage < STAGE_NAMES.length ? STAGE_NAMES[stage] : "?" + stage;
+    }
+
+    static String outcomeName(int outcome) {
+        return outcome >= 0 && outcome < OUTCOME_NAMES.length ? OUTCOME_NAMES[outcome]
+                : "?" + outcome;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The luminance plane of a preview frame, as the frame sources deliver it and
+ * the decoders read it: either a byte array whose rows are rowStride bytes
+ * apart (the Y plane at the head of an NV21 frame), or a ByteBuffer with a
+ * row stride and a pixel stride, such as plane 0 of a YUV_420_888 Image. The
+ * pixel (x, y) is at y * rowStride + x * pixelStride.
+ * <p>
+ * Reading a buffer plane moves its position, so a plane must be read by one
+ * thread at a time, which the pipeline guarantees by handing each frame to a
+ * single decode worker. A plane is refilled for each frame by its source;
+ * owner is for the source to find the frame it wraps when it is released.
+ */
+final class MyYPlane {
+
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int rowStride;
+    private int pixelStride;
+    Object owner;
+
+    MyYPlane() {
+    }
+
+    MyYPlane(byte[] array, int rowStride) {
+        set(array, rowStride);
+    }
+
+    void set(byte[] array, int rowStride) {
+        this.array = array;
+        this.buffer = null;
+        this.rowStride = rowStride;
+        this.pixelStride = 1;
+    }
+
+    void set(ByteBuffer buffer, int rowStride, int pixelStride) {
+        if (pixelStride < 1 || rowStride < pixelStride) {
+            throw new IllegalArgumentException("Bad strides " + rowStride + "/" + pixelStride);
+        }
+        this.array = null;
+        this.buffer = buffer;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+    }
+
+    /**
+     * @return the array of an array plane, or null for a buffer plane
+     */
+    byte[] array() {
+        return array;
+    }
+
+    /**
+     * @return the buffer of a buffer plane, or null for an array plane
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int getRowStride() {
+        return rowStride;
+    }
+
+    int getPixelStride() {
+        return pixelStride;
+    }
+
+    /**
+     * @return the luminance of the pixel, 0 to 255
+     */
+    int get(int x, int y) {
+        int index = y * rowStride + x * pixelStride;
+        return (array != null ? array[index] : buffer.get(index)) & 0xff;
+    }
+
+    /**
+     * Copies length pixels of row y from column x.
+     */
+    void getRow(int x, int y, byte[] row, int offset, int length) {
+        int index = y * rowStride + x * pixelStride;
+        if (array != null) {
+            System.arraycopy(array, index, row, offset, length);
+        } else if (pixelStride == 1) {
+            buffer.position(index);
+            buffer.get(row, offset, length);
+        } else {
+            for (int i = 0; i < length; i++, index += pixelStride) {
+                row[offset + i] = buffer.get(index);
+            }
+        }
+    }
+
+    /**
+     * Copies length pixels of column x from row y, downwards.
+     */
+    void getColumn(int x, int y, byte[] column, int offset, int length) {
+        int index = y * rowStride + x * pixelStride;
+        if (array != null) {
+            for (int i = 0; i < length; i++, index += rowStride) {
+                column[offset + i] = array[index];
+            }
+        } else {
+            for (int i = 0; i < length; i++, index += rowStride) {
+                column[offset + i] = buffer.get(index);
+            }
+        }
+    }
+}
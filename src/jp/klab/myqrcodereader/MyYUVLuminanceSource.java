@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 KLab Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.klab.myqrcodereader;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * A PlanarYUVLuminanceSource which can be pointed at a new preview frame
+ * instead of being rebuilt for each one. The crop size is fixed at
+ * construction (LuminanceSource keeps it final); the frame data and the crop
+ * position can change from frame to frame. getMatrix() copies into a buffer
+ * owned by the instance, so a decode thread that keeps one source allocates
+ * nothing per frame.
+ * <p>
+ * The frame is a {@link MyYPlane}, so the rows are read straight from the
+ * buffer of a camera image, honouring its strides, without first copying the
+ * plane into an array.
+ */
+final class MyYUVLuminanceSource extends LuminanceSource {
+
+    private final MyYPlane arrayPlane = new MyYPlane();
+    private MyYPlane plane;
+    private int dataHeight;
+    private int left;
+    private int top;
+    private byte[] matrix;
+
+    MyYUVLuminanceSource(int width, int height) {
+        super(width, height);
+    }
+
+    void setFrame(byte[] yuvData, int dataWidth, int dataHeight, int left, int top) {
+        arrayPlane.set(yuvData, dataWidth);
+        setFrame(arrayPlane, dataWidth, dataHeight, left, top);
+    }
+
+    void setFrame(MyYPlane plane, int dataWidth, int dataHeight, int left, int top) {
+        if (left < 0 || top < 0 || left + getWidth() > dataWidth
+                || top + getHeight() > dataHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        this.plane = plane;
+        this.dataHeight = dataHeight;
+        this.left = left;
+        this.top = top;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        plane.getRow(left, y + top, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        byte[] array = plane.array();
+
+        // If the caller asks for the entire underlying image, save the copy and
+        // give them the original data. The docs specifically warn that
+        // result.length must be ignored.
+        if (array != null && width == plane.getRowStride() && left == 0 && top == 0) {
+            return array;
+        }
+
+        int area = width * height;
+        if (matrix == null || matrix.length != area) {
+            matrix = new byte[area];
+        }
+
+        // If the rows are contiguous, perform a single copy.
+        if (array != null && width == plane.getRowStride()) {
+            System.arraycopy(array, top * width, matrix, 0, area);
+            return matrix;
+        }
+
+        // Otherwise copy one cropped row at a time.
+        for (int y = 0; y < height; y++) {
+            plane.getRow(left, top + y, matrix, y * width, width);
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        byte[] array = plane.array();
+        if (array != null) {
+            return new PlanarYUVLuminanceSource(array, plane.getRowStride(), dataHeight,
+                    this.left + left, this.top + top, width, height, false);
+        }
+        // バッファ上のフレームは切り出し範囲だけ配列へ写す
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            plane.getRow(this.left + left, this.top + top + y, pixels, y * width, width);
+        }
+        return new PlanarYUVLuminanceSource(pixels, width, height, 0, 0, width, height, false);
+    }
+}
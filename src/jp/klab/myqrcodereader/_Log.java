@@ -18,7 +18,7 @@ package jp.klab.myqrcodereader;
 import android.util.Log;
 
 public final class _Log {
-    private static final boolean DEVELOP = false;
+    public static final boolean DEVELOP = false;
     private _Log(){
     }
     public static int e(String tag, String msg) {